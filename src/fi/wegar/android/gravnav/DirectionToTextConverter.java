@@ -3,12 +3,21 @@
  */
 package fi.wegar.android.gravnav;
 
+import java.util.Locale;
+
 import fi.wegar.android.gravnav.R;
 import android.content.Context;
+import android.content.res.Resources;
 
 /**
  * Generates a text from a given direction integer, telling the user which direction to go. Integers must range from 1 to X
  * 
+ * The texts are kept in a lookup table per number of choices, built the first time a number of choices is 
+ * asked for and thrown away when the locale changes.
+ * 
+ * Spokes at the real angles of a junction are described by the turn and the compass direction instead, 
+ * e.g. "Go slight left, heading northeast", from a table with an entry per turn and direction.
+ * 
  * @author jenswegar
  *
  */
@@ -18,7 +27,85 @@ public class DirectionToTextConverter {
 	static final String SECOND = "nd";
 	static final String THIRD = "rd";
 	static final String N_TH = "th";
-
+	
+	/**
+	 * The default largest number of choices kept in the lookup table
+	 */
+	public static final int DEFAULT_MAX_CACHED_CHOICES = 32;
+	
+	/**
+	 * Turns less than this many degrees from straight ahead are straight, less than SLIGHT_TURN slight, 
+	 * and more than SHARP_TURN sharp
+	 */
+	static final float STRAIGHT_TURN = 20;
+	static final float SLIGHT_TURN = 60;
+	static final float SHARP_TURN = 120;
+	
+	/**
+	 * The turns, from sharp left to sharp right
+	 */
+	static final int[] TURNS = { R.string.sharp_left, R.string.left, R.string.slight_left, R.string.straight, 
+		R.string.slight_right, R.string.right, R.string.sharp_right };
+	
+	static final int[] COMPASS_POINTS = { R.string.north, R.string.northeast, R.string.east, R.string.southeast, 
+		R.string.south, R.string.southwest, R.string.west, R.string.northwest };
+	
+	private static int sMaxCachedChoices = DEFAULT_MAX_CACHED_CHOICES;
+	
+	/**
+	 * The texts for each number of choices, indexed by [numChoices][dir]
+	 */
+	private static String[][] sTable;
+	
+	/**
+	 * The locale the table was built for
+	 */
+	private static Locale sTableLocale;
+	
+	/**
+	 * The texts for each turn and compass point, indexed by [turn][point], with no compass point at the last index
+	 */
+	private static String[][] sBearingTable;
+	
+	/**
+	 * The strings of the resources last asked for, kept so that a lookup doesn't allocate
+	 */
+	private static ResourceStrings sResourceStrings;
+	
+	
+	/**
+	 * The strings the texts are made of, from the resources of the application or a stand-in off-device
+	 */
+	public interface Strings {
+		
+		/**
+		 * @return The locale of the strings, the lookup tables are thrown away when it changes
+		 */
+		Locale getLocale();
+		
+		String getString(int resId);
+	}
+	
+	/**
+	 * The strings in the resources of the application
+	 */
+	static class ResourceStrings implements Strings {
+		
+		final Resources res;
+		
+		ResourceStrings(Resources res) {
+			this.res = res;
+		}
+		
+		public Locale getLocale() {
+			return res.getConfiguration().locale;
+		}
+		
+		public String getString(int resId) {
+			return res.getString(resId);
+		}
+	}
+	
 	
 	/**
 	 * 
@@ -27,32 +114,215 @@ public class DirectionToTextConverter {
 	 * @param ctx The context of the application, used for generating the return string.
 	 * @return A String representing the direction to travel, e.g. 4th choice from the left
 	 */
-	public static String getText(int dir, int numChoices, Context ctx) {
+	public static synchronized String getText(int dir, int numChoices, Context ctx) {
+		return getText(dir, numChoices, getStrings(ctx));
+	}
+	
+	/**
+	 * @param dir
+	 * @param numChoices
+	 * @param strings
+	 * @return The text for the direction from the lookup table, built if it isn't there yet
+	 */
+	public static synchronized String getText(int dir, int numChoices, Strings strings) {
+		
+		if(numChoices > sMaxCachedChoices || dir < 1 || dir > numChoices) {
+			// outside the table, build it the slow way
+			return buildText(dir, numChoices, strings);
+		}
 		
-		String rtnStr = ctx.getResources().getString(R.string.go)+" ";
+		checkLocale(strings);
+		
+		String[] row = sTable[numChoices];
+		
+		if(row == null) {
+			row = new String[numChoices+1];
+			
+			for(int i=1; i <= numChoices; i++) {
+				row[i] = buildText(i, numChoices, strings);
+			}
+			
+			sTable[numChoices] = row;
+		}
+		
+		return row[dir];
+	}
+	
+	/**
+	 * @return The text for the direction, built on every call without the lookup table
+	 */
+	public static String getUncachedText(int dir, int numChoices, Strings strings) {
+		return buildText(dir, numChoices, strings);
+	}
+	
+	/**
+	 * 
+	 * @param angle The angle of the chosen street in degrees clockwise from the one the user came from
+	 * @param bearing The bearing of the chosen street in degrees clockwise from north, or NaN if not known
+	 * @param ctx The context of the application, used for generating the return string.
+	 * @return A String describing the turn to make, e.g. slight left, heading northeast
+	 */
+	public static synchronized String getText(float angle, float bearing, Context ctx) {
+		return getText(angle, bearing, getStrings(ctx));
+	}
+	
+	/**
+	 * @param angle
+	 * @param bearing
+	 * @param strings
+	 * @return The text for the turn from the lookup table, built if it isn't there yet
+	 */
+	public static synchronized String getText(float angle, float bearing, Strings strings) {
+		
+		checkLocale(strings);
+		
+		int turnIndex = getTurnIndex(angle);
+		int point = getCompassPoint(bearing);
+		
+		String text = sBearingTable[turnIndex][point];
+		
+		if(text == null) {
+			text = buildBearingText(turnIndex, point, strings);
+			sBearingTable[turnIndex][point] = text;
+		}
+		
+		return text;
+	}
+	
+	/**
+	 * @return The text for the turn, built on every call without the lookup table
+	 */
+	public static String getUncachedText(float angle, float bearing, Strings strings) {
+		return buildBearingText(getTurnIndex(angle), getCompassPoint(bearing), strings);
+	}
+	
+	/**
+	 * @param angle The angle of the street in degrees clockwise from the one the user came from
+	 * @return The index of the turn in TURNS
+	 */
+	private static int getTurnIndex(float angle) {
+		
+		// straight ahead is opposite to the way the user came, turns to the left are clockwise from there
+		float turn = 180 - angle;
+		
+		int turnIndex;
+		if(Math.abs(turn) < STRAIGHT_TURN) {
+			turnIndex = 3;
+		} else if(Math.abs(turn) < SLIGHT_TURN) {
+			turnIndex = (turn > 0) ? 2 : 4;
+		} else if(Math.abs(turn) <= SHARP_TURN) {
+			turnIndex = (turn > 0) ? 1 : 5;
+		} else {
+			turnIndex = (turn > 0) ? 0 : 6;
+		}
+		
+		return turnIndex;
+	}
+	
+	/**
+	 * @param bearing The bearing in degrees clockwise from north, or NaN
+	 * @return The index of the nearest point in COMPASS_POINTS, or the length of COMPASS_POINTS for NaN
+	 */
+	private static int getCompassPoint(float bearing) {
+		
+		int point = COMPASS_POINTS.length;
+		if(!Float.isNaN(bearing)) {
+			point = Math.round(bearing / (360f / COMPASS_POINTS.length)) % COMPASS_POINTS.length;
+			point = (point < 0) ? point + COMPASS_POINTS.length : point;
+		}
+		
+		return point;
+	}
+	
+	/**
+	 * Build the text for one turn and compass point
+	 */
+	private static String buildBearingText(int turnIndex, int point, Strings strings) {
+		
+		StringBuilder rtnStr = new StringBuilder( strings.getString(R.string.go) ).append(' ')
+			.append( strings.getString(TURNS[turnIndex]) );
+		
+		if(point < COMPASS_POINTS.length) {
+			rtnStr.append(", ").append( strings.getString(R.string.heading) )
+				.append(' ').append( strings.getString(COMPASS_POINTS[point]) );
+		}
+		
+		return rtnStr.toString();
+	}
+	
+	/**
+	 * Start the lookup tables over on first use or when the locale has changed
+	 */
+	private static void checkLocale(Strings strings) {
+		
+		Locale locale = strings.getLocale();
+		
+		if(sTable == null || (locale != sTableLocale && (locale == null || !locale.equals(sTableLocale)))) {
+			sTable = new String[sMaxCachedChoices+1][];
+			sBearingTable = new String[TURNS.length][COMPASS_POINTS.length+1];
+			sTableLocale = locale;
+		}
+	}
+	
+	/**
+	 * @return The strings of the resources of the context, the same instance as long as the resources are
+	 */
+	private static Strings getStrings(Context ctx) {
+		
+		Resources res = ctx.getResources();
+		
+		if(sResourceStrings == null || sResourceStrings.res != res) {
+			sResourceStrings = new ResourceStrings(res);
+		}
+		
+		return sResourceStrings;
+	}
+	
+	/**
+	 * Set the largest number of choices kept in the lookup table. Texts for more choices are built on every call.
+	 * 
+	 * @param maxChoices
+	 */
+	public static synchronized void setMaxCachedChoices(int maxChoices) {
+		sMaxCachedChoices = maxChoices;
+		invalidate();
+	}
+	
+	/**
+	 * Throw away the lookup table, it will be rebuilt when next needed
+	 */
+	public static synchronized void invalidate() {
+		sTable = null;
+		sTableLocale = null;
+	}
+	
+	/**
+	 * Build the text for one direction
+	 */
+	private static String buildText(int dir, int numChoices, Strings strings) {
+		
+		StringBuilder rtnStr = new StringBuilder( strings.getString(R.string.go) ).append(' ');
 		
 		
 		if( numChoices == 2 ) {
 			// special case, we'll use a switch to tell where to go
-			rtnStr += getChoiceFromTwo(dir, ctx);
+			rtnStr.append( getChoiceFromTwo(dir, strings) );
 		} else if(numChoices == 3){
 			// special case, we'll use a switch to tell where to go
-			rtnStr += getChoiceFromThree(dir, ctx);
+			rtnStr.append( getChoiceFromThree(dir, strings) );
 		} else {
 			// need to calculate the center
 			
-			String leftRightCenter = "";
-			
 			int center = (int) Math.floor(numChoices / 2) + 1;
 			
 			// check if dir is below or above center, determines left or right direction
-			leftRightCenter = (center > dir) ? ctx.getResources().getString(R.string.left) : ctx.getResources().getString(R.string.right);
+			String leftRightCenter = (center > dir) ? strings.getString(R.string.left) : strings.getString(R.string.right);
 
 			
 			
 			if(numChoices % 2 > 0 && dir == center) {
 				// the center direction was chosen
-				leftRightCenter = ctx.getResources().getString(R.string.straight);
+				rtnStr.append( strings.getString(R.string.straight) );
 			} else {
 				
 				int tmpDir = dir;
@@ -62,15 +332,15 @@ public class DirectionToTextConverter {
 					tmpDir = (numChoices+1) - dir;
 				}
 				
-				leftRightCenter = getDirSuffix( tmpDir, ctx )+" "+ctx.getResources().getString(R.string.to_your)+" "+leftRightCenter;
+				rtnStr.append( getDirSuffix( tmpDir, strings ) )
+					.append(' ').append( strings.getString(R.string.to_your) )
+					.append(' ').append( leftRightCenter );
 			}
-
-			rtnStr += leftRightCenter;
 			
 		}
 		
 		
-		return rtnStr;
+		return rtnStr.toString();
 	}
 
 	/**
@@ -78,21 +348,21 @@ public class DirectionToTextConverter {
 	 * @param order
 	 * @return
 	 */
-	private static String getDirSuffix(int order, Context ctx) {
+	private static String getDirSuffix(int order, Strings strings) {
 		String rtnStr = ""+order;
 		
 		switch(order) {
 			case 1:
-				rtnStr += ctx.getResources().getString(R.string.first_short);
+				rtnStr += strings.getString(R.string.first_short);
 				break;
 			case 2:
-				rtnStr += ctx.getResources().getString(R.string.second_short);
+				rtnStr += strings.getString(R.string.second_short);
 				break;
 			case 3:
-				rtnStr += ctx.getResources().getString(R.string.third_short);
+				rtnStr += strings.getString(R.string.third_short);
 				break;
 			default:
-				rtnStr += ctx.getResources().getString(R.string.nth_short);
+				rtnStr += strings.getString(R.string.nth_short);
 				break;
 			}
 		
@@ -100,35 +370,35 @@ public class DirectionToTextConverter {
 	}
 
 
-	private static String getChoiceFromThree(int dir, Context ctx) {
+	private static String getChoiceFromThree(int dir, Strings strings) {
 		
 		String rtnStr = "";
 		
 		switch(dir) {
 			case 1:
-				rtnStr = ctx.getResources().getString(R.string.left);
+				rtnStr = strings.getString(R.string.left);
 				break;
 			case 2:
-				rtnStr = ctx.getResources().getString(R.string.straight);
+				rtnStr = strings.getString(R.string.straight);
 				break;
 			case 3:
-				rtnStr = ctx.getResources().getString(R.string.right);
+				rtnStr = strings.getString(R.string.right);
 				break;
 		}
 		
 		return rtnStr;
 	}
 	
-	private static String getChoiceFromTwo(int dir, Context ctx) {
+	private static String getChoiceFromTwo(int dir, Strings strings) {
 		
 		String rtnStr = "";
 		
 		switch(dir) {
 		case 1:
-			rtnStr = ctx.getResources().getString(R.string.left);
+			rtnStr = strings.getString(R.string.left);
 			break;
 		case 2:
-			rtnStr = ctx.getResources().getString(R.string.right);
+			rtnStr = strings.getString(R.string.right);
 			break;
 		}
 		
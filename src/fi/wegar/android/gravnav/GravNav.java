@@ -5,41 +5,173 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PowerManager;
+import android.util.Log;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.TextView;
 import fi.wegar.android.gravnav.R;
-import fi.wegar.android.gravnav.view.ArrowView;
-import fi.wegar.android.gravnav.view.SpokeView;
+import fi.wegar.android.gravnav.graph.Junction;
+import fi.wegar.android.gravnav.graph.StreetGraph;
+import fi.wegar.android.gravnav.graph.StreetGraphFile;
+import fi.wegar.android.gravnav.graph.VisitedEdgeSketch;
+import fi.wegar.android.gravnav.heading.HeadingFilter;
+import fi.wegar.android.gravnav.journal.WalkJournal;
+import fi.wegar.android.gravnav.metrics.Counter;
+import fi.wegar.android.gravnav.metrics.LatencyHistogram;
+import fi.wegar.android.gravnav.metrics.MetricsRegistry;
+import fi.wegar.android.gravnav.power.SamplingController;
+import fi.wegar.android.gravnav.shake.GravityShakeDetector;
+import fi.wegar.android.gravnav.shake.SampleRingBuffer;
+import fi.wegar.android.gravnav.shake.ShakeHandoff;
+import fi.wegar.android.gravnav.shake.ShakeSnapshot;
+import fi.wegar.android.gravnav.shake.ShakeDetector;
+import fi.wegar.android.gravnav.spin.NoveltyDirectionChooser;
+import fi.wegar.android.gravnav.spin.SpinEngine;
+import fi.wegar.android.gravnav.spin.SpinModel;
+import fi.wegar.android.gravnav.spin.SpokeAngles;
+import fi.wegar.android.gravnav.spin.UniformDirectionChooser;
+import fi.wegar.android.gravnav.util.Clock;
+import fi.wegar.android.gravnav.util.GravNavConfig;
+import fi.wegar.android.gravnav.view.BitmapCache;
+import fi.wegar.android.gravnav.view.CompassView;
+import fi.wegar.android.gravnav.view.OnFrameListener;
 
-public class GravNav extends Activity implements SensorEventListener {
+public class GravNav extends Activity implements SensorEventListener, ShakeDetector.OnShakeListener, OnFrameListener {
+	
+	// handler for the background updating, kept over configuration changes with the spin it runs
+	private Handler mRefreshHandler;
+	
+	/**
+	 * The state handed to the next instance when the activity is recreated for a configuration change
+	 */
+	private Retained mRetained;
+	
+	/**
+	 * true once this instance has handed its state on, so onDestroy leaves it running
+	 */
+	private boolean mRetaining = false;
+	
+	/**
+	 * true until finishStartup has run, the sensors are not started before that
+	 */
+	private boolean mStartupPending = true;
+	
+	private final Runnable mStartupRunner = new Runnable() {
+		public void run() {
+			if(mStartupPending) {
+				finishStartup();
+			}
+		}
+	};
+	
+	/**
+	 * true until onFrame has been called for the first time
+	 */
+	private boolean mFirstFramePending = true;
+	private long mCreateNanos;
+	
+	/**
+	 * true once the street graph has been asked for, by this or an earlier instance
+	 */
+	private boolean mGraphRequested = false;
 	
-	// handler for the background updating
-	private Handler mRefreshHandler = new Handler();
-	private RefreshRunner mRunner = new RefreshRunner();
+	// true once the arrow has come to rest, no more frames are needed until the spin stops
+	private boolean mSettled = false;
 
 	private SensorManager mSensorMgr;
+	
+	// thread the sensor events are delivered on when THREADED_SENSOR_PROCESSING is on. The detector, the 
+	// sampling controller and the receipt times below are only touched from it, shakes reach the UI through mShakeHandoff.
+	private HandlerThread mSensorThread;
+	private Handler mSensorHandler;
+	private ShakeHandoff mShakeHandoff = new ShakeHandoff();
+	private ShakeRunner mShakeRunner = new ShakeRunner();
+	
 	private Sensor mAccelerometer;
+	private Sensor mMagnetometer;
+	private Sensor mGyroscope;
 	private PowerManager.WakeLock wakeLock;
+	private PowerManager.WakeLock mDimLock;
+	
+	/**
+	 * Lowers the sensor rate and dims the screen while the phone is not being handled
+	 */
+	private SamplingController mSampling = new SamplingController(Clock.SYSTEM, new ModeUpdater());
+	private int mSensorDelay = -1;
+	
+	/**
+	 * Fuses the sensors into the heading of the screen, owned by the sensor thread
+	 */
+	private HeadingFilter mHeadingFilter = new HeadingFilter();
+	private HeadingRunner mHeadingRunner = new HeadingRunner();
+	private final AtomicBoolean mHeadingPending = new AtomicBoolean();
+	
+	/**
+	 * The shift of the compass to draw in the next frame, NaN when it is already on screen
+	 */
+	private double mPendingShift = Double.NaN;
+	
+	/**
+	 * The heading of the top of the screen in radians, NaN until the first one is known
+	 */
+	private volatile double mHeading = Double.NaN;
+	
+	/**
+	 * The rotation of the screen from the natural orientation of the device, in quarter turns
+	 */
+	private int mDisplayRotation = 0;
+	
+	/**
+	 * The bearing in radians that the backwards spoke is locked to, NaN until there is a heading
+	 */
+	private double mBackBearing = Double.NaN;
+	
+	/**
+	 * true if mBackBearing is the street the user came from
+	 */
+	private boolean mBackFromStreet = false;
+	
+	private LocationManager mLocationMgr;
+	private LocationUpdater mLocationUpdater = new LocationUpdater();
+	
+	/**
+	 * The streets around the user, null until loaded or if there is no street graph file
+	 */
+	private StreetGraph mStreetGraph;
+	private Junction mJunction = new Junction();
+	
+	private boolean mResumed = false;
 	
 	private TextView mTextDisplay;
 	private TextView mNumChoicesDisplay;
-	private ArrowView mArrowDisplay;
-	private SpokeView mSpokeDisplay;
+	private CompassView mCompassDisplay;
 	
 	private ImageButton mIncrementButton;
 	private ImageButton mDecrementButton;
 	
-	private long lastUpdate = -1;
-	// hold the last known values of the accelerometer for the next update
-	private float lastX, lastY, lastZ;
+	private ShakeDetector mShakeDetector;
+	
+	// buffer and runner used when BATCHED_SENSOR_INGESTION is on, only touched from the thread that owns the sensor state
+	private SampleRingBuffer mSampleBuffer = new SampleRingBuffer(SAMPLE_BUFFER_SIZE);
+	private DrainRunner mDrainRunner = new DrainRunner();
+	private boolean mDrainPending = false;
 	
 	/**
 	 * The number of choices that we should iterate over when deciding next direction
@@ -47,51 +179,244 @@ public class GravNav extends Activity implements SensorEventListener {
 	private int numChoices = 3;
 	
 	/**
-	 * Used to keep an intermediate value when the UI is updated
+	 * The number of choices picked while the arrow was spinning, applied when it stops, or 0 if there is none
+	 */
+	private int mDeferredNumChoices = 0;
+	
+	/**
+	 * The shake and spin parameters, the defaults unless CONFIG_FILE exists
+	 */
+	private GravNavConfig mConfig;
+	
+	/**
+	 * Runs the spins, the arrow angle is calculated from it on every frame. Directions are chosen 
+	 * uniformly until a street graph is loaded.
+	 */
+	private SpinEngine mEngine;
+	
+	/**
+	 * The streets the user has walked, and the chooser that prefers the others. Set once the street graph is loaded.
+	 */
+	private VisitedEdgeSketch mVisited;
+	private NoveltyDirectionChooser mNoveltyChooser;
+	
+	/**
+	 * The graph node of the junction the user was last at
+	 */
+	private int mLastNode = -1;
+	
+	/**
+	 * Whether the user was at mLastNode at the last fix and the street they leave it by is still to be recorded
+	 */
+	private boolean mAtLastNode = false;
+	
+	/**
+	 * The street of mJunction taken as the one the user came from, or -1 if there is none
+	 */
+	private int mBackStreet = -1;
+	
+	/**
+	 * The spokes at the angles of the streets of the junction
+	 */
+	private SpokeAngles mSpokeAngles = new SpokeAngles();
+	
+	/**
+	 * Log of every spin decision
+	 */
+	private WalkJournal mJournal;
+	
+	/**
+	 * Performance metrics, logged when the activity is paused
+	 */
+	private final MetricsRegistry mMetrics = MetricsRegistry.getDefault();
+	private final Counter mSensorReceived = mMetrics.counter("sensor.received");
+	private final Counter mSensorDropped = mMetrics.counter("sensor.dropped");
+	private final Counter mSensorThrottled = mMetrics.counter("sensor.throttled");
+	private final LatencyHistogram mDetectLatency = mMetrics.histogram("shake.detect");
+	private final LatencyHistogram mResultLatency = mMetrics.histogram("shake.to_result");
+	private final LatencyHistogram mSpinDuration = mMetrics.histogram("spin.duration");
+	private final LatencyHistogram mTickJitter = mMetrics.histogram("tick.jitter");
+	private final LatencyHistogram mFrameInterval = mMetrics.histogram("frame.interval");
+	private final LatencyHistogram mDrawTime = mMetrics.histogram("draw.compass");
+	private final LatencyHistogram mReattachTime = mMetrics.histogram("activity.reattach");
+	private final LatencyHistogram mCreateTime = mMetrics.histogram("activity.create");
+	private final LatencyHistogram mFirstFrameTime = mMetrics.histogram("activity.first_frame");
+	private final LatencyHistogram mFinishStartupTime = mMetrics.histogram("activity.finish_startup");
+	private final LatencyHistogram mStartupTime = mMetrics.histogram("activity.startup");
+	
+	// sensor timestamps are on their own clock, so times are measured from when the samples arrived
+	private long mLastReceiptNanos;
+	private long mLastReceiptTimestamp;
+	private long mSpinShakeNanos;
+	
+	private long mLastThrottledCount = 0;
+	private long mLastFrameNanos = 0;
+	private int mLastDrawCount = 0;
+	
+	/**
+	 * The direction text of the current spin, prepared when the phone is shaken
+	 */
+	private String mResultText;
+	private int mResultSpoke;
+	private int mResultNumChoices;
+	
+	/**
+	 * true while the result of the last spin is on display
 	 */
-	private float speedDelay;
+	private boolean mResultShown = false;
 	
-	private int time = 0;
+	static final String TAG = "GravNav";
 	
 	static final int DIALOG_NO_ACCELEROMETER_ID = 0;
 	
 	/**
-	 * The delta threshold at which the activity decides that a shake has taken place.
+	 * Properties in the application files dir overriding the shake threshold, update frequency, stop 
+	 * threshold and decay of the spin, e.g. as written by the ParameterTuner
+	 */
+	static final String CONFIG_FILE = "gravnav.properties";
+	
+	/**
+	 * When true, shakes are detected from the gravity filtered magnitude of the acceleration instead of the summed delta.
+	 * Off until recorded traces show it does better: the summed delta is what the released versions use and what 
+	 * CONFIG_FILE tunes, while the gravity detector ignores the config and is only tuned on synthetic traces. 
+	 * Compare the two with ShakeBenchmark and TraceReplay -gravity.
+	 */
+	static final boolean GRAVITY_FILTERED_SHAKE = false;
+	
+	/**
+	 * Street graph in the application files dir. When it exists, the number of choices follows the intersection the user is at. 
+	 * Converted from an OpenStreetMap extract off the device with StreetGraphConverter, the app only maps it.
+	 */
+	static final String STREET_GRAPH_FILE = "streets.gsg";
+	
+	/**
+	 * The max distance in meters from the user to an intersection for it to be used
+	 */
+	static final float JUNCTION_SNAP_DISTANCE = 25;
+	
+	/**
+	 * The min nr of ms and meters between location updates
+	 */
+	static final int LOCATION_UPDATE_INTERVAL = 2000;
+	static final int LOCATION_UPDATE_DISTANCE = 5;
+	
+	/**
+	 * Walk journal in the application files dir, every finished spin is appended to it
+	 */
+	static final String JOURNAL_FILE = "walk.journal";
+	
+	/**
+	 * When true and there is a street graph, streets the user has not walked yet are chosen more often
+	 */
+	static final boolean EXPLORE_UNVISITED_STREETS = true;
+	
+	/**
+	 * The walked streets in the application files dir
+	 */
+	static final String VISITED_FILE = "visited.bloom";
+	
+	/**
+	 * When true, the sensor rate and screen brightness follow the SamplingController instead of 
+	 * staying at the game rate and full brightness
+	 */
+	static final boolean ADAPTIVE_SAMPLING = true;
+	
+	/**
+	 * When true, sensor events are delivered to a background thread that runs the shake detection, 
+	 * and only the detected shakes are handed to the UI thread. When false, everything runs on the UI thread.
 	 */
-	static final int SHAKE_THRESHOLD = 700;
+	static final boolean THREADED_SENSOR_PROCESSING = true;
 	
 	/**
-	 * The threshold at which the runner is considered stopped
+	 * When true, sensor events are only copied into a ring buffer and the shake calculations run once per batch, 
+	 * on the same thread the events are delivered on. Compare the two paths with BatchParity.
 	 */
-	static final int STOP_THRESHOLD = 150;
+	static final boolean BATCHED_SENSOR_INGESTION = true;
 	
 	/**
-	 * The nr of ms between each update of the shake calculations
+	 * The nr of ms to collect sensor samples before a batch is processed, roughly one frame
 	 */
-	static final int UPDATE_FREQUENCY = 100;
+	static final int BATCH_INTERVAL = 16;
+	
+	/**
+	 * The nr of samples the ring buffer can hold between two batches
+	 */
+	static final int SAMPLE_BUFFER_SIZE = 256;
+	
+	/**
+	 * When true, the compass rose is locked to the world using the magnetometer and, if there is one, 
+	 * the gyroscope, instead of being fixed to the screen
+	 */
+	static final boolean HEADING_MODE = true;
+	
+	/**
+	 * The compass is turned in steps of this many radians, a heading that stays within a step doesn't redraw it. 
+	 * The resolution of the angle tables.
+	 */
+	static final double HEADING_SHIFT_STEP = Math.toRadians(0.25);
+	
+	/**
+	 * When true, the spokes point along the streets of the junction the user is at instead of being 
+	 * evenly spaced, and the result is told by the turn and the compass direction
+	 */
+	static final boolean BEARING_SPOKES = true;
+	
+	/**
+	 * When true, onCreate only sets up what the first frame needs. The sensors, the wake locks, the 
+	 * location updates and the street graph follow once it has been drawn.
+	 */
+	static final boolean LAZY_STARTUP = true;
 	
 	
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
+    	long start = System.nanoTime();
+    	mCreateNanos = start;
+    	
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
         
+        // a configuration change hands over the running spin instead of starting over
+        mRetained = (Retained) getLastNonConfigurationInstance();
+        boolean reattach = (mRetained != null);
+        
+        if(reattach) {
+        	restoreRetained();
+        } else {
+        	mRetained = new Retained();
+        	mRefreshHandler = new Handler();
+        }
+        mRetained.activity = this;
+        
         mTextDisplay = (TextView) findViewById(R.id.text_display);
         mTextDisplay.setText(R.string.shake_me);
         
         mNumChoicesDisplay = (TextView) findViewById(R.id.numchoices_display);
-        mNumChoicesDisplay.setText( ""+getNumChoices() );
+        mNumChoicesDisplay.setText( ""+getShownNumChoices() );
 
-        mArrowDisplay = (ArrowView) findViewById(R.id.arrow_display);
-        mArrowDisplay.setShiftRadians( 0.5*Math.PI );
+        mCompassDisplay = (CompassView) findViewById(R.id.compass_display);
+        mCompassDisplay.setShiftRadians( 0.5*Math.PI );
+        mCompassDisplay.setSpokeColor(0xff909090);
+        mCompassDisplay.setNumSpokes(numChoices+1);
+        mCompassDisplay.setDrawFromSpoke(1);
+        mCompassDisplay.setOnFrameListener(this);
+        
+        if(!reattach) {
+        	mConfig = loadConfig();
+        	
+        	mEngine = new SpinEngine(new SpinModel(mConfig.getStopThreshold(), mConfig.getDecay()), new UniformDirectionChooser(), 
+        			Clock.SYSTEM, new HandlerScheduler(mRefreshHandler));
+        	mEngine.setNumChoices(numChoices);
+        }
+        mEngine.setListener(new SpinUpdater());
         
-        mSpokeDisplay = (SpokeView) findViewById(R.id.spokes_display);
-        mSpokeDisplay.setShiftRadians( 0.5*Math.PI );
-        mSpokeDisplay.setColor(0xff909090);
-        mSpokeDisplay.setNumSpokes(numChoices+1);
-        mSpokeDisplay.setDrawFromSpoke(1);
         
+        if(GRAVITY_FILTERED_SHAKE) {
+        	mShakeDetector = new GravityShakeDetector(this);
+        } else {
+        	mShakeDetector = new ShakeDetector(mConfig.getShakeThreshold(), mConfig.getMinIntervalNanos(), this);
+        }
         
         mIncrementButton = (ImageButton) findViewById(R.id.increment_button);
         mDecrementButton = (ImageButton) findViewById(R.id.decrement_button);
@@ -99,69 +424,256 @@ public class GravNav extends Activity implements SensorEventListener {
         // attach listeners to the buttons
         mIncrementButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View view) {
-            	setNumChoices( getNumChoices()+1 );
-            	mSpokeDisplay.setNumSpokes(getNumChoices()+1);
-            	mNumChoicesDisplay.setText( ""+getNumChoices() );
+            	updateNumChoices( getShownNumChoices()+1 );
             }
 
         });
         
         mDecrementButton.setOnClickListener(new View.OnClickListener() {
         	public void onClick(View view) {
-        		setNumChoices( getNumChoices()-1 );
-        		mSpokeDisplay.setNumSpokes(getNumChoices()+1);
-        		mNumChoicesDisplay.setText( ""+getNumChoices() );
+        		updateNumChoices( getShownNumChoices()-1 );
         	}
         	
         });
         
         
+        if(THREADED_SENSOR_PROCESSING && mSensorThread == null) {
+        	mSensorThread = new HandlerThread("GravNavSensors");
+        	mSensorThread.start();
+        	mSensorHandler = new Handler( mSensorThread.getLooper() );
+        }
+        
+        if(!reattach) {
+        	// opened on the journal's own thread, appending never waits for the disk
+        	mJournal = new WalkJournal( new File(getFilesDir(), JOURNAL_FILE) );
+        }
+        
+        if(!LAZY_STARTUP) {
+        	finishStartup();
+        }
+        
+        if(reattach) {
+        	// carry on from where the previous instance was, in the first frame of the new views
+        	reattachViews();
+        	mReattachTime.record(System.nanoTime() - start);
+        	return;
+        }
+        
+        mCreateTime.record(System.nanoTime() - start);
+        
+        // next step is done in the onResume life-cycle event handler, and in finishStartup after the first frame
+        
+    }
+    
+    /**
+     * Set up what the first frame does not need: the sensors, the wake locks and the street graph. 
+     * Starts the sensors if the activity has already been resumed.
+     */
+    private void finishStartup() {
+    	
+    	long start = System.nanoTime();
+    	mStartupPending = false;
+    	
         // check if accelerometer is available
         mSensorMgr = (SensorManager) getSystemService(SENSOR_SERVICE);
         mAccelerometer = mSensorMgr.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
         
+        if(HEADING_MODE) {
+        	mMagnetometer = mSensorMgr.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        	mGyroscope = mSensorMgr.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        	mDisplayRotation = getWindowManager().getDefaultDisplay().getOrientation();
+        }
+        
         if(mAccelerometer == null) {
         	// user device does not support accelerometer, so application is useless.
         	// Show dialog informing user of this
         	showDialog(DIALOG_NO_ACCELEROMETER_ID);
         }
         
-        // make sure screen does not go to sleep
-        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        wakeLock = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK, "GravNavTag");
-        wakeLock.acquire();
+        mLocationMgr = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        
+        if(wakeLock == null) {
+        	// keeps the screen from going to sleep, acquired when the sensors are started
+        	PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        	wakeLock = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK, "GravNavTag");
+        	mDimLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, "GravNavDimTag");
+        }
+        
+        if(!mGraphRequested) {
+        	mGraphRequested = true;
+        	loadStreetGraph();
+        }
+        
+        if(mResumed) {
+        	startSensing();
+        }
         
-        // next step is done in the onResume life-cycle event handler
+        // the texts of the current number of choices are ready before the first shake needs them
+        DirectionToTextConverter.getText(1, getNumChoices(), this);
         
+        // the deferred part alone, and everything from onCreate until the app responds to shakes
+        long end = System.nanoTime();
+        mFinishStartupTime.record(end - start);
+        mStartupTime.record(end - mCreateNanos);
+    }
+    
+    /**
+     * Hand the spin, the sensor thread and the walk so far to the instance created after a configuration change
+     */
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+    	mRetaining = true;
+    	saveRetained();
+    	
+    	return mRetained;
     }
     
     @Override
     protected void onResume() {
+    	
+    	mResumed = true;
+    	
+    	if(!mStartupPending) {
+    		startSensing();
+    	}
+    	// otherwise finishStartup starts them, once the first frame has been drawn
+    	
+    	super.onResume();
+    }
+    
+    /**
+     * Register the sensors, take the wake lock and follow the location
+     */
+    private void startSensing() {
     	// re-attach resourses when we continue
-    	if(mSensorMgr != null) {
-    		mSensorMgr.registerListener(this, mAccelerometer, SensorManager.SENSOR_DELAY_GAME);
+    	if(ADAPTIVE_SAMPLING) {
+    		// registers the sensor and acquires a wake lock for the starting mode
+    		runOnSensorThread(new Runnable() {
+    			public void run() {
+    				mSampling.start();
+    			}
+    		});
+    	} else {
+    		runOnSensorThread(new Runnable() {
+    			public void run() {
+    				registerSensor(SensorManager.SENSOR_DELAY_GAME);
+    			}
+    		});
+    		
+    		// make sure the screen is not locked
+    		wakeLock.acquire();
     	}
     	
-    	// make sure the screen is not locked
-    	wakeLock.acquire();
+    	runOnSensorThread(new Runnable() {
+    		public void run() {
+    			registerHeadingSensors();
+    		}
+    	});
     	
-    	super.onResume();
+    	if(mEngine.isSpinning()) {
+    		// a spin handed over from the previous instance keeps the sensors at the spinning rate
+    		runOnSensorThread(mSpinStartedRunner);
+    	}
+    	
+    	startLocationUpdates();
     }
     
     @Override
     protected void onPause() {
     
-    	// clean up some resources when activity is paused
-    	if(mSensorMgr != null) {
-    		mSensorMgr.unregisterListener(this, mAccelerometer);
+    	// samples collected before the pause are stale by the time we resume
+    	mRefreshHandler.removeCallbacks(mShakeRunner);
+    	mShakeHandoff.clear();
+    	mRefreshHandler.removeCallbacks(mHeadingRunner);
+    	mHeadingPending.set(false);
+    	if(!mBackFromStreet) {
+    		// the user may be facing anywhere when they come back
+    		mBackBearing = Double.NaN;
+    	}
+    	
+    	// clean up some resources when activity is paused, on the sensor thread so a mode change 
+    	// already queued there can't register the sensor again
+    	runOnSensorThread(new Runnable() {
+    		public void run() {
+    			if(mSensorMgr != null) {
+    				mSensorMgr.unregisterListener(GravNav.this, mAccelerometer);
+    				unregisterHeadingSensors();
+    			}
+    			mSensorDelay = -1;
+    			mSampling.stop();
+    			getSensorStateHandler().removeCallbacks(mDrainRunner);
+    			mDrainPending = false;
+    			mSampleBuffer.clear();
+    			mShakeDetector.reset();
+    			mHeadingFilter.reset();
+    			mHeading = Double.NaN;
+    			
+    			// make sure we're not keeping the screen unlocked anymore
+    			if(wakeLock != null && wakeLock.isHeld()) {
+    				wakeLock.release();
+    			}
+    			if(mDimLock != null && mDimLock.isHeld()) {
+    				mDimLock.release();
+    			}
+    			
+    			Log.i(TAG, "sampling duty cycle "+mSampling.getDutyCycle());
+    		}
+    	});
+    	
+    	mResumed = false;
+    	if(mLocationMgr != null) {
+    		mLocationMgr.removeUpdates(mLocationUpdater);
     	}
     	
-    	// make sure we're not keeping the screen unlocked anymore
-    	wakeLock.release();
+    	Log.i(TAG, "metrics\n"+mMetrics.dump());
+    	
+    	// the process may be killed any time after this
+    	mJournal.flush();
+    	saveVisited();
     	
     	super.onPause();
     }
     
+    @Override
+    protected void onDestroy() {
+    	mRetained.activity = null;
+    	// the handler outlives this instance
+    	mRefreshHandler.removeCallbacks(mStartupRunner);
+    	
+    	if(mRetaining) {
+    		// the next instance takes over the journal and the sensor thread
+    		super.onDestroy();
+    		return;
+    	}
+    	
+    	// a spin still running would be reported to a closed journal
+    	mEngine.cancel();
+    	mJournal.close();
+    	
+    	if(mSensorThread != null) {
+    		// quit drops whatever is still queued, so it goes after the cleanup onPause posted
+    		final HandlerThread sensorThread = mSensorThread;
+    		mSensorHandler.post(new Runnable() {
+    			public void run() {
+    				sensorThread.quit();
+    			}
+    		});
+    	}
+    	
+    	super.onDestroy();
+    }
+    
+    /**
+     * Let go of the cached graphics, the views keep the ones they draw. onTrimMemory would be 
+     * called earlier but needs API level 14.
+     */
+    @Override
+    public void onLowMemory() {
+    	BitmapCache.getDefault().clear();
+    	
+    	super.onLowMemory();
+    }
+    
     /**
      * Create dialogs used by this Activity
      * 
@@ -203,50 +715,167 @@ public class GravNav extends Activity implements SensorEventListener {
 	}
 
 	/**
-	 * Called when the accelerometer changes it's values. Determines if a shake activity has taken place
-	 * based on the SHAKE_THRESHOLD
+	 * Called when the accelerometer changes it's values. The values are handed to the ShakeDetector, which
+	 * determines if a shake activity has taken place based on the configured shake threshold. Runs on the sensor thread
+	 * when THREADED_SENSOR_PROCESSING is on.
 	 */
 	@Override
 	public void onSensorChanged(SensorEvent event) {
 
 		if(event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-			long curTime = System.currentTimeMillis();
 			
-			// only allow one update every X ms as determined by UPDATE_FREQUENCY
-			if( (curTime - lastUpdate) > UPDATE_FREQUENCY) {
-				
-				long diffTime = (curTime - lastUpdate);
-				lastUpdate = curTime;
-				
-				float x = event.values[0]; // x-axis
-				float y = event.values[1]; // y-axis
-				float z = event.values[2]; // z-axis
-				
-				// calculate the total delta since last update 
-				float delta = Math.abs(x+y+z - lastX - lastY - lastZ) / diffTime * 10000;
-				
-				lastX = x;
-				lastY = y;
-				lastZ = z;
+			mSensorReceived.increment();
+			mLastReceiptNanos = System.nanoTime();
+			mLastReceiptTimestamp = event.timestamp;
+			
+			if(ADAPTIVE_SAMPLING) {
+				mSampling.onSample(event.values[0], event.values[1], event.values[2]);
+			}
+			
+			if(HEADING_MODE) {
+				mHeadingFilter.onAccelerometer(event.timestamp, event.values[0], event.values[1], event.values[2]);
+			}
+			
+			if(BATCHED_SENSOR_INGESTION) {
+				// just copy the values, the detector runs when the batch is drained on this same thread
+				if( !mSampleBuffer.write(event.timestamp, event.values) ) {
+					mSensorDropped.increment();
+				}
 				
-				if (delta > SHAKE_THRESHOLD) {
-				    // this is a shake action
-
-					// clear the text result display
-					mTextDisplay.setText( "" );
-					
-					if(speedDelay > STOP_THRESHOLD) {
-						// the runner has not been allowed to stop (assuming the user is still shaking the device), so just add to the speed
-						speedDelay += delta;
-					} else {
-						speedDelay = delta;
-						mRefreshHandler.removeCallbacks( mRunner );
-						mRefreshHandler.postDelayed(mRunner, getNextUpdateDelay() );
-					}
+				if(!mDrainPending) {
+					mDrainPending = true;
+					getSensorStateHandler().postDelayed(mDrainRunner, BATCH_INTERVAL);
 				}
+			} else {
+				mShakeDetector.onSample(event.timestamp, event.values[0], event.values[1], event.values[2]);
+				recordThrottled();
+			}
+		} else if(event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
+			
+			if( mHeadingFilter.onMagneticField(event.timestamp, event.values[0], event.values[1], event.values[2]) ) {
+				publishHeading();
+			}
+		} else if(event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+			
+			if( mHeadingFilter.onGyroscope(event.timestamp, event.values[0], event.values[1], event.values[2]) ) {
+				publishHeading();
+			}
+		}
+		
+	}
+	
+	/**
+	 * Hand the heading of the screen to the UI thread, posting at most one update at a time
+	 */
+	private void publishHeading() {
+		
+		mHeading = HeadingFilter.wrapTwoPi( mHeadingFilter.getHeading() + mDisplayRotation * 0.5*Math.PI );
+		
+		if( mHeadingPending.compareAndSet(false, true) ) {
+			mRefreshHandler.post(mHeadingRunner);
+		}
+	}
+	
+	/**
+	 * Called by the ShakeDetector when a shake action has taken place
+	 */
+	@Override
+	public void onShake(long timestampNanos, float delta) {
+		
+		// when the sample that crossed the threshold arrived, translated from the sensor clock
+		long received = mLastReceiptNanos - (mLastReceiptTimestamp - timestampNanos);
+		mDetectLatency.record( System.nanoTime() - received );
+		
+		if(THREADED_SENSOR_PROCESSING) {
+			// on the sensor thread, the spin is run by the UI thread
+			if( mShakeHandoff.publish(timestampNanos, received, delta) ) {
+				mRefreshHandler.post(mShakeRunner);
+			}
+			return;
+		}
+		
+		applyShake(received, delta);
+	}
+	
+	/**
+	 * Apply a shake to the spin and choose the direction it stops on. Runs on the UI thread.
+	 * 
+	 * @param received When the sample that triggered the shake was received
+	 * @param delta The intensity of the shake
+	 */
+	private void applyShake(long received, float delta) {
+		
+		// clear the text result display
+		mTextDisplay.setText( "" );
+		mResultShown = false;
+		
+		// every shake picks a new direction, the spin then takes just enough extra spokes to stop on it
+		if( mEngine.shake(delta) ) {
+			// a new spin was started from the current spoke
+			mSpinShakeNanos = received;
+			mLastFrameNanos = 0;
+			
+			if(!mBackFromStreet && !Double.isNaN(mHeading)) {
+				// without a street to go by, the direction the user came from is behind them
+				mBackBearing = mHeading + Math.PI;
+				mHeadingRunner.run();
 			}
 		}
+		mSettled = false;
+		
+		// the outcome is known as soon as the speed is, so prepare the text while the arrow spins
+		prepareResult();
 		
+		// start drawing frames
+		mCompassDisplay.requestFrame();
+	}
+	
+	/**
+	 * Called by the compass view after the first draw and for every frame requested while the arrow moves, 
+	 * moves the arrow to where the spin is at for the frame
+	 */
+	@Override
+	public void onFrame(View view, long frameTimeNanos) {
+		
+		if(mFirstFramePending) {
+			mFirstFramePending = false;
+			mFirstFrameTime.record(frameTimeNanos - mCreateNanos);
+			
+			if(mStartupPending) {
+				// the first frame is on screen, the rest of the startup follows in a message of its own
+				mRefreshHandler.post(mStartupRunner);
+			}
+		}
+		
+		if(!Double.isNaN(mPendingShift)) {
+			// only rotating, the view keeps its size and position
+			mCompassDisplay.setShiftRadians(mPendingShift);
+			mPendingShift = Double.NaN;
+		}
+		
+		// the frame has been drawn by now
+		if(mCompassDisplay.getDrawCount() != mLastDrawCount) {
+			mLastDrawCount = mCompassDisplay.getDrawCount();
+			mDrawTime.record( mCompassDisplay.getLastDrawNanos() );
+		}
+		
+		if(!mEngine.isSpinning() || mSettled) {
+			return;
+		}
+		
+		if(mLastFrameNanos != 0) {
+			mFrameInterval.record(frameTimeNanos - mLastFrameNanos);
+		}
+		mLastFrameNanos = frameTimeNanos;
+		
+		// setting the angle invalidates the area the arrow moves over
+		mCompassDisplay.setAngle( mEngine.getAngle(frameTimeNanos) );
+		
+		// the engine finishes the spin once the arrow has settled, no frames are posted after that
+		mSettled = !mEngine.isMoving() || frameTimeNanos >= mEngine.getStopTime();
+		if(!mSettled) {
+			mCompassDisplay.requestFrame();
+		}
 	}
 	
 	/**
@@ -258,6 +887,7 @@ public class GravNav extends Activity implements SensorEventListener {
 		numChoices = (numChoices < 2) ? 2 : numChoices;
 		
 		this.numChoices = numChoices;
+		mEngine.setNumChoices(numChoices);
 	}
 
 	/**
@@ -268,55 +898,655 @@ public class GravNav extends Activity implements SensorEventListener {
 	}	
 	
 	/**
-	 * Calculate the number of ms to delay the next call to the runner
+	 * @return The number of choices shown, the deferred one while there is one
+	 */
+	private int getShownNumChoices() {
+		return (mDeferredNumChoices > 0) ? mDeferredNumChoices : getNumChoices();
+	}
+	
+	/**
+	 * Set the number of choices and update the views showing it. While the arrow is spinning only the 
+	 * number shown changes, the spokes change when the spin stops.
 	 * 
-	 * @return
+	 * @param numChoices
+	 */
+	private void updateNumChoices(int numChoices) {
+		
+		if(mEngine.isSpinning()) {
+			mDeferredNumChoices = Math.max(2, numChoices);
+			mNumChoicesDisplay.setText( ""+mDeferredNumChoices );
+			return;
+		}
+		
+		mDeferredNumChoices = 0;
+		setNumChoices(numChoices);
+		mEngine.setSpokeAngles(null);
+		mCompassDisplay.setSpokeAngles(null);
+		mCompassDisplay.setNumSpokes(getNumChoices()+1);
+		mResultText = null;
+		mNumChoicesDisplay.setText( ""+getNumChoices() );
+	}
+	
+	/**
+	 * Map the street graph in the background, if there is one
 	 */
-	private long getNextUpdateDelay() {
+	private void loadStreetGraph() {
+		
+		final File file = new File(getFilesDir(), STREET_GRAPH_FILE);
+		final File visitedFile = new File(getFilesDir(), VISITED_FILE);
 		
-		long delay = Math.round( 1 / speedDelay * 60000 );
+		final Retained retained = mRetained;
+		
+		if(!file.exists()) {
+			return;
+		}
 		
-		return delay;
+		new Thread(new Runnable() {
+			public void run() {
+				// on any failure the number of choices stays fixed, as without a graph
+				try {
+					final StreetGraph graph = StreetGraphFile.open(file);
+					final VisitedEdgeSketch visited = EXPLORE_UNVISITED_STREETS ? loadVisited(visitedFile, graph) : null;
+					
+					mRefreshHandler.post(new Runnable() {
+						public void run() {
+							// the activity may have been recreated while the graph was loading
+							GravNav activity = retained.activity;
+							if(activity != null) {
+								activity.onStreetGraphLoaded(graph, visited);
+							}
+						}
+					});
+				} catch(IOException e) {
+					// e.g. written by another version, convert it again with StreetGraphConverter
+					Log.w(TAG, "Could not load street graph", e);
+				} catch(RuntimeException e) {
+					Log.w(TAG, "Invalid street graph", e);
+				} catch(OutOfMemoryError e) {
+					Log.w(TAG, "Street graph too large", e);
+				}
+			}
+		}, "StreetGraphLoader").start();
+	}
+	
+	/**
+	 * Start following the user on a loaded street graph. Runs on the UI thread.
+	 */
+	private void onStreetGraphLoaded(StreetGraph graph, VisitedEdgeSketch visited) {
 		
+		mStreetGraph = graph;
+		if(visited != null) {
+			mVisited = visited;
+			mNoveltyChooser = new NoveltyDirectionChooser(visited);
+			mEngine.setChooser(mNoveltyChooser);
+		}
+		startLocationUpdates();
 	}
 	
-	private void updateUI() {
+	/**
+	 * Copy the state that outlives this instance into mRetained
+	 */
+	private void saveRetained() {
 		
-		// add 1 to numChoices to we account for the backwards direction in the arrow angles. The backwards arrow is not drawn on screen.
-		double stepSize = (360 / (getNumChoices()+1) );
-
-		double angle = stepSize * (++time);
+		Retained retained = mRetained;
+		
+		retained.refreshHandler = mRefreshHandler;
+		retained.sensorThread = mSensorThread;
+		retained.sensorHandler = mSensorHandler;
+		retained.wakeLock = wakeLock;
+		retained.dimLock = mDimLock;
 		
-		// if angle would draw arrow south, add one more to time and recalculate
-		if( time >= getNumChoices()+1) {
-			time = 1;
-			angle = stepSize;
+		retained.config = mConfig;
+		retained.engine = mEngine;
+		retained.journal = mJournal;
+		
+		retained.numChoices = numChoices;
+		retained.deferredNumChoices = mDeferredNumChoices;
+		retained.resultShown = mResultShown;
+		retained.spinShakeNanos = mSpinShakeNanos;
+		
+		retained.streetGraph = mStreetGraph;
+		retained.visited = mVisited;
+		retained.noveltyChooser = mNoveltyChooser;
+		retained.junction = mJunction;
+		retained.spokeAngles = mSpokeAngles;
+		retained.lastNode = mLastNode;
+		retained.atLastNode = mAtLastNode;
+		retained.backStreet = mBackStreet;
+		retained.backBearing = mBackBearing;
+		retained.backFromStreet = mBackFromStreet;
+		retained.graphRequested = mGraphRequested;
+	}
+	
+	/**
+	 * Take over the state the previous instance left in mRetained
+	 */
+	private void restoreRetained() {
+		
+		Retained retained = mRetained;
+		
+		mRefreshHandler = retained.refreshHandler;
+		mSensorThread = retained.sensorThread;
+		mSensorHandler = retained.sensorHandler;
+		wakeLock = retained.wakeLock;
+		mDimLock = retained.dimLock;
+		
+		mConfig = retained.config;
+		mEngine = retained.engine;
+		mJournal = retained.journal;
+		
+		// not through setNumChoices, the engine already has it and may be spinning
+		numChoices = retained.numChoices;
+		mDeferredNumChoices = retained.deferredNumChoices;
+		mResultShown = retained.resultShown;
+		mSpinShakeNanos = retained.spinShakeNanos;
+		
+		mStreetGraph = retained.streetGraph;
+		mVisited = retained.visited;
+		mNoveltyChooser = retained.noveltyChooser;
+		mJunction = retained.junction;
+		mSpokeAngles = retained.spokeAngles;
+		mLastNode = retained.lastNode;
+		mAtLastNode = retained.atLastNode;
+		mBackStreet = retained.backStreet;
+		mBackBearing = retained.backBearing;
+		mBackFromStreet = retained.backFromStreet;
+		mGraphRequested = retained.graphRequested;
+	}
+	
+	/**
+	 * Show the state taken over from the previous instance on the new views: the spokes, the arrow 
+	 * where the spin is at now, and the result if the spin has stopped
+	 */
+	private void reattachViews() {
+		
+		if(mEngine.getSpokeAngles() != null) {
+			mCompassDisplay.setSpokeAngles(mSpokeAngles);
 		}
 		
-		mArrowDisplay.setAngle(angle);
+		mCompassDisplay.setAngle( mEngine.getAngle(System.nanoTime()) );
 		
+		if(mEngine.isSpinning()) {
+			// the first frame of the new view moves the arrow on from here
+			mTextDisplay.setText( "" );
+			mSettled = false;
+			mCompassDisplay.requestFrame();
+		} else if(mResultShown) {
+			prepareResult();
+			mTextDisplay.setText( mResultText );
+		}
 	}
 	
-	class RefreshRunner implements Runnable {
-
+	/**
+	 * Run on the thread that owns the sensor state, right away when that is the UI thread
+	 */
+	private void runOnSensorThread(Runnable runnable) {
+		if(THREADED_SENSOR_PROCESSING) {
+			mSensorHandler.post(runnable);
+		} else {
+			runnable.run();
+		}
+	}
+	
+	/**
+	 * @return the handler of the thread that owns the sensor state
+	 */
+	private Handler getSensorStateHandler() {
+		return THREADED_SENSOR_PROCESSING ? mSensorHandler : mRefreshHandler;
+	}
+	
+	private final Runnable mSpinStartedRunner = new Runnable() {
+		public void run() {
+			mSampling.onSpinStarted();
+		}
+	};
+	
+	private final Runnable mSpinFinishedRunner = new Runnable() {
+		public void run() {
+			mSampling.onSpinFinished();
+		}
+	};
+	
+	/**
+	 * (Re-)register the accelerometer at the given SensorManager rate, if it isn't already
+	 */
+	private void registerSensor(int delay) {
+		if(mSensorMgr == null || mAccelerometer == null || delay == mSensorDelay) {
+			return;
+		}
+		
+		if(mSensorDelay >= 0) {
+			mSensorMgr.unregisterListener(this, mAccelerometer);
+		}
+		if(THREADED_SENSOR_PROCESSING) {
+			mSensorMgr.registerListener(this, mAccelerometer, delay, mSensorHandler);
+		} else {
+			mSensorMgr.registerListener(this, mAccelerometer, delay);
+		}
+		mSensorDelay = delay;
+	}
+	
+	/**
+	 * Register the sensors for the heading at the full rate, the heading has to keep up with every frame
+	 */
+	private void registerHeadingSensors() {
+		if(!HEADING_MODE || mSensorMgr == null || mMagnetometer == null) {
+			return;
+		}
+		
+		Sensor[] sensors = { mMagnetometer, mGyroscope };
+		for(Sensor sensor : sensors) {
+			if(sensor == null) {
+				continue;
+			}
+			if(THREADED_SENSOR_PROCESSING) {
+				mSensorMgr.registerListener(this, sensor, SensorManager.SENSOR_DELAY_GAME, mSensorHandler);
+			} else {
+				mSensorMgr.registerListener(this, sensor, SensorManager.SENSOR_DELAY_GAME);
+			}
+		}
+	}
+	
+	private void unregisterHeadingSensors() {
+		if(mMagnetometer != null) {
+			mSensorMgr.unregisterListener(this, mMagnetometer);
+		}
+		if(mGyroscope != null) {
+			mSensorMgr.unregisterListener(this, mGyroscope);
+		}
+	}
+	
+	/**
+	 * Count the samples the detector has ignored since the last call
+	 */
+	private void recordThrottled() {
+		long throttled = mShakeDetector.getThrottledCount();
+		mSensorThrottled.add(throttled - mLastThrottledCount);
+		mLastThrottledCount = throttled;
+	}
+	
+	/**
+	 * Read the shake and spin parameters, falling back to the defaults
+	 */
+	private GravNavConfig loadConfig() {
+		
+		File file = new File(getFilesDir(), CONFIG_FILE);
+		
+		if(file.exists()) {
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					return GravNavConfig.load(in);
+				} finally {
+					in.close();
+				}
+			} catch(IOException e) {
+				Log.w(TAG, "Could not read "+CONFIG_FILE+", using defaults", e);
+			}
+		}
+		
+		return new GravNavConfig();
+	}
+	
+	/**
+	 * Read the walked streets, starting over if they can't be read or were walked on another graph
+	 */
+	private static VisitedEdgeSketch loadVisited(File file, StreetGraph graph) {
+		if(file.exists()) {
+			try {
+				return VisitedEdgeSketch.load(file, graph);
+			} catch(IOException e) {
+				Log.w(TAG, "Could not read visited streets", e);
+			}
+		}
+		return new VisitedEdgeSketch();
+	}
+	
+	/**
+	 * Write the walked streets in the background
+	 */
+	private void saveVisited() {
+		
+		if(mVisited == null) {
+			return;
+		}
+		
+		final VisitedEdgeSketch visited = mVisited.copy();
+		final StreetGraph graph = mStreetGraph;
+		final File file = new File(getFilesDir(), VISITED_FILE);
+		
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					visited.save(file, graph);
+				} catch(IOException e) {
+					Log.w(TAG, "Could not save visited streets", e);
+				}
+			}
+		}, "VisitedSaver").start();
+	}
+	
+	/**
+	 * Follow the user's position, if there is a street graph to look it up in
+	 */
+	private void startLocationUpdates() {
+		if(mResumed && mStreetGraph != null && mLocationMgr != null) {
+			mLocationMgr.requestLocationUpdates(LocationManager.GPS_PROVIDER, LOCATION_UPDATE_INTERVAL, LOCATION_UPDATE_DISTANCE, mLocationUpdater);
+		}
+	}
+	
+	/**
+	 * Find the street of mJunction the user came from: the one from the last junction if it leads there, 
+	 * otherwise the one closest to behind the user
+	 * 
+	 * @return The street, or -1 if there is no way to tell
+	 */
+	private int findBackStreet() {
+		
+		for(int i=0; i < mJunction.getStreetCount(); i++) {
+			if(mLastNode >= 0 && mJunction.getTarget(i) == mLastNode) {
+				return i;
+			}
+		}
+		
+		if(!Double.isNaN(mBackBearing)) {
+			// binary search over the bearings of the streets
+			return SpokeAngles.getNearestStreet(mJunction, Math.toDegrees( HeadingFilter.wrapTwoPi(mBackBearing) ));
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Lock the backwards spoke to a street of mJunction
+	 * 
+	 * @param street The street, or -1 to unlock
+	 */
+	private void lockToStreet(int street) {
+		
+		if(street < 0) {
+			mBackFromStreet = false;
+			return;
+		}
+		
+		mBackBearing = Math.toRadians( mJunction.getBearing(street) );
+		mBackFromStreet = true;
+		mHeadingRunner.run();
+	}
+	
+	/**
+	 * Point the spokes along the streets of mJunction, with the back street as the backwards spoke
+	 */
+	private void useStreetSpokes() {
+		
+		mSpokeAngles.set(mJunction, Math.max(0, mBackStreet));
+		
+		mEngine.setSpokeAngles(mSpokeAngles);
+		mCompassDisplay.setSpokeAngles(mSpokeAngles);
+		mResultText = null;
+	}
+	
+	/**
+	 * Resolve the text for the spoke the current spin will stop on
+	 */
+	private void prepareResult() {
+		
+		int spoke = mEngine.getFinalSpoke();
+		
+		if(mResultText == null || spoke != mResultSpoke || getNumChoices() != mResultNumChoices) {
+			mResultSpoke = spoke;
+			mResultNumChoices = getNumChoices();
+			
+			SpokeAngles spokes = mEngine.getSpokeAngles();
+			if(spokes != null) {
+				// the real turn and the compass direction of the street
+				mResultText = DirectionToTextConverter.getText(spokes.getAngle(spoke), spokes.getBearing(spoke), getApplicationContext() );
+			} else {
+				mResultText = DirectionToTextConverter.getText(spoke, mResultNumChoices, getApplicationContext() );
+			}
+		}
+	}
+	
+	/**
+	 * Applies the sampling modes to the sensor rate and the wake locks
+	 */
+	class ModeUpdater implements SamplingController.OnModeChangeListener {
+		
+		@Override
+		public void onModeChanged(SamplingController.Mode mode) {
+			
+			switch(mode) {
+				case IDLE:
+					registerSensor(SensorManager.SENSOR_DELAY_NORMAL);
+					break;
+				case ACTIVE:
+					registerSensor(SensorManager.SENSOR_DELAY_UI);
+					break;
+				default:
+					registerSensor(SensorManager.SENSOR_DELAY_GAME);
+					break;
+			}
+			
+			// take the new lock before letting go of the old one, so the screen never turns off in between
+			PowerManager.WakeLock held = mSampling.isBright() ? wakeLock : mDimLock;
+			PowerManager.WakeLock other = mSampling.isBright() ? mDimLock : wakeLock;
+			
+			if(!held.isHeld()) {
+				held.acquire();
+			}
+			if(other.isHeld()) {
+				other.release();
+			}
+		}
+	}
+	
+	/**
+	 * Rotates the compass so the backwards spoke stays on mBackBearing as the phone turns. The rotation is 
+	 * drawn in the next frame, at most one per frame and only when it moves the compass by a whole step.
+	 */
+	class HeadingRunner implements Runnable {
+		
 		@Override
 		public void run() {
+			mHeadingPending.set(false);
 			
-			if(speedDelay > STOP_THRESHOLD)
-			{
-				// logarithmically decrease the speed
-				speedDelay -= speedDelay * 0.1;
-				
-				updateUI();
+			double heading = mHeading;
+			if(Double.isNaN(heading)) {
+				return;
+			}
+			
+			if(Double.isNaN(mBackBearing)) {
+				mBackBearing = heading + Math.PI;
+			}
+			
+			// a bearing is drawn at its angle from the top of the screen, and angle 0 of the view points right
+			double shift = HeadingFilter.wrapTwoPi(mBackBearing - heading - 0.5*Math.PI);
+			shift = HeadingFilter.wrapTwoPi( Math.round(shift / HEADING_SHIFT_STEP) * HEADING_SHIFT_STEP );
+			
+			double shown = Double.isNaN(mPendingShift) ? mCompassDisplay.getShiftRadians() : mPendingShift;
+			if(shift == shown) {
+				return;
+			}
+			
+			// drawn in the next frame, however many headings arrive before it
+			mPendingShift = shift;
+			mCompassDisplay.requestFrame();
+		}
+	}
+	
+	/**
+	 * Feeds the samples collected in the ring buffer to the shake detector, on the thread that owns the sensor state
+	 */
+	class DrainRunner implements Runnable {
+		
+		@Override
+		public void run() {
+			mDrainPending = false;
+			mSampleBuffer.drainTo(mShakeDetector);
+			recordThrottled();
+		}
+	}
+	
+	/**
+	 * Applies the shakes handed over by the sensor thread
+	 */
+	class ShakeRunner implements Runnable {
+		
+		@Override
+		public void run() {
+			ShakeSnapshot shakes = mShakeHandoff.take();
+			
+			if(shakes != null) {
+				applyShake(shakes.receivedNanos, shakes.intensity);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the number of choices from the intersection closest to the user
+	 */
+	class LocationUpdater implements LocationListener {
+		
+		@Override
+		public void onLocationChanged(Location location) {
+			
+			if(mStreetGraph == null || mEngine.isSpinning()) {
+				// don't change the choices under a spinning arrow
+				return;
+			}
+			
+			boolean found = mStreetGraph.getJunction(location.getLatitude(), location.getLongitude(), JUNCTION_SNAP_DISTANCE, mJunction);
+			int node = mJunction.getNode();
+			
+			if(mAtLastNode && node != mLastNode) {
+				// the first fix away from the last junction, the user left it by the street pointing this way
+				if(mVisited != null) {
+					int target = mStreetGraph.getStreetTowards(mLastNode, location.getLatitude(), location.getLongitude());
+					if(target >= 0) {
+						mVisited.add(mLastNode, target);
+					}
+				}
+				mAtLastNode = false;
+			}
+			
+			if(!found) {
+				return;
+			}
+			
+			if(node != mLastNode) {
+				mBackStreet = findBackStreet();
 				
-				mRefreshHandler.postDelayed(this, getNextUpdateDelay() );
+				if(HEADING_MODE) {
+					lockToStreet(mBackStreet);
+				}
+				// directions are counted from the same street as the spokes
+				if(mVisited != null) {
+					mNoveltyChooser.setJunction(mJunction, (mBackStreet >= 0) ? mJunction.getTarget(mBackStreet) : -1);
+				}
+				mLastNode = node;
 			}
-			else
-			{
-				// set the direction text
-				mTextDisplay.setText( DirectionToTextConverter.getText(time, numChoices, GravNav.this.getApplicationContext() ) );
+			mAtLastNode = true;
+			
+			if(mJunction.getNumChoices() >= 2) {
+				updateNumChoices( mJunction.getNumChoices() );
 				
-				mRefreshHandler.removeCallbacks(this);
+				if(BEARING_SPOKES) {
+					useStreetSpokes();
+				}
+			}
+		}
+
+		@Override
+		public void onStatusChanged(String provider, int status, Bundle extras) {
+		}
+
+		@Override
+		public void onProviderEnabled(String provider) {
+		}
+
+		@Override
+		public void onProviderDisabled(String provider) {
+		}
+	}
+	
+	/**
+	 * What outlives the activity when it is recreated for a configuration change, e.g. a rotation: the 
+	 * spin, the handler and thread its tasks are queued on, the wake locks and the walk so far. 
+	 * Everything that holds on to the activity, like the views, the shake detector and the sampling 
+	 * controller, is created again.
+	 */
+	static class Retained {
+		
+		/**
+		 * The instance currently attached, null from onDestroy to the next onCreate
+		 */
+		GravNav activity;
+		
+		Handler refreshHandler;
+		HandlerThread sensorThread;
+		Handler sensorHandler;
+		PowerManager.WakeLock wakeLock;
+		PowerManager.WakeLock dimLock;
+		
+		GravNavConfig config;
+		SpinEngine engine;
+		WalkJournal journal;
+		
+		int numChoices;
+		int deferredNumChoices;
+		boolean resultShown;
+		long spinShakeNanos;
+		
+		StreetGraph streetGraph;
+		VisitedEdgeSketch visited;
+		NoveltyDirectionChooser noveltyChooser;
+		Junction junction;
+		SpokeAngles spokeAngles;
+		int lastNode;
+		boolean atLastNode;
+		int backStreet;
+		double backBearing;
+		boolean backFromStreet;
+		boolean graphRequested;
+	}
+	
+	/**
+	 * Follows the spins of the engine, shows the result when one stops
+	 */
+	class SpinUpdater implements SpinEngine.Listener {
+		
+		@Override
+		public void onSpinStarted(SpinEngine engine) {
+			runOnSensorThread(mSpinStartedRunner);
+		}
+		
+		@Override
+		public void onSpinStopped(SpinEngine engine, int spoke) {
+			
+			long now = System.nanoTime();
+			
+			// how late the handler ran the final tick
+			mTickJitter.record(now - engine.getStopTime());
+			
+			mSettled = false;
+			mCompassDisplay.setAngle( engine.getAngle(now) );
+			
+			// set the direction text, prepared at shake time unless the number of choices has changed since
+			prepareResult();
+			mTextDisplay.setText( mResultText );
+			mResultShown = true;
+			
+			mResultLatency.record(now - mSpinShakeNanos);
+			mSpinDuration.record(now - engine.getStartTime());
+			
+			runOnSensorThread(mSpinFinishedRunner);
+			
+			int duration = (int) ( (now - engine.getStartTime()) / 1000000L );
+			mJournal.append(System.currentTimeMillis(), engine.getNumChoices(), spoke, engine.getEnergy(), duration);
+			
+			// a number of choices picked during the spin, the result stays shown until the next one
+			if(mDeferredNumChoices > 0) {
+				updateNumChoices(mDeferredNumChoices);
 			}
 		}
 	}
@@ -0,0 +1,27 @@
+package fi.wegar.android.gravnav;
+
+import android.os.Handler;
+import fi.wegar.android.gravnav.util.Scheduler;
+
+/**
+ * Scheduler that posts its tasks to a Handler, rounding the delays up to whole ms
+ */
+public class HandlerScheduler implements Scheduler {
+
+	private final Handler mHandler;
+	
+	
+	public HandlerScheduler(Handler handler) {
+		mHandler = handler;
+	}
+	
+	@Override
+	public void schedule(Runnable task, long delayNanos) {
+		mHandler.postDelayed(task, Math.max(0, (delayNanos + 999999L) / 1000000L) );
+	}
+	
+	@Override
+	public void cancel(Runnable task) {
+		mHandler.removeCallbacks(task);
+	}
+}
@@ -0,0 +1,193 @@
+package fi.wegar.android.gravnav.graph;
+
+import java.nio.IntBuffer;
+
+/**
+ * Uniform grid over the bounding box of the graph nodes. The nodes of each cell are stored contiguously, 
+ * so the nearest node to a position is found by scanning the cells in growing rings around it.
+ * 
+ * Coordinates are in 1e-7 degrees.
+ */
+public class GridIndex {
+
+	/**
+	 * The default cell size, roughly 200 m north to south
+	 */
+	public static final int DEFAULT_CELL_SIZE = 20000;
+	
+	private final int mMinLat, mMinLon;
+	private final int mCellSize;
+	private final int mRows, mCols;
+	
+	/**
+	 * For each cell, the index in mCellNodes of its first node. Has one extra entry at the end.
+	 */
+	private final IntBuffer mCellOffsets;
+	private final IntBuffer mCellNodes;
+	
+	
+	public GridIndex(int minLat, int minLon, int cellSize, int rows, int cols, IntBuffer cellOffsets, IntBuffer cellNodes) {
+		mMinLat = minLat;
+		mMinLon = minLon;
+		mCellSize = cellSize;
+		mRows = rows;
+		mCols = cols;
+		mCellOffsets = cellOffsets;
+		mCellNodes = cellNodes;
+	}
+	
+	public int getMinLat() {
+		return mMinLat;
+	}
+	
+	public int getMinLon() {
+		return mMinLon;
+	}
+	
+	public int getCellSize() {
+		return mCellSize;
+	}
+	
+	public int getRows() {
+		return mRows;
+	}
+	
+	public int getCols() {
+		return mCols;
+	}
+	
+	IntBuffer getCellOffsets() {
+		return mCellOffsets;
+	}
+	
+	IntBuffer getCellNodes() {
+		return mCellNodes;
+	}
+	
+	/**
+	 * Find the node closest to a position
+	 * 
+	 * @param coords Node coordinates, latitude and longitude interleaved
+	 * @param lat
+	 * @param lon
+	 * @param maxMeters Nodes further away than this are ignored
+	 * @param distance Receives the distance to the node in meters at index 0, may be null
+	 * @return The node, or -1 if there is none within maxMeters
+	 */
+	int findNearest(IntBuffer coords, int lat, int lon, double maxMeters, double[] distance) {
+		
+		double metersPerLat = StreetGraph.METERS_PER_E7;
+		double metersPerLon = StreetGraph.METERS_PER_E7 * Math.cos( Math.toRadians(lat / StreetGraph.E7) );
+		
+		// any node outside ring k is at least this far away
+		double ringMeters = mCellSize * Math.min(metersPerLat, metersPerLon);
+		
+		int row = clamp( (lat - mMinLat) / mCellSize, mRows );
+		int col = clamp( (lon - mMinLon) / mCellSize, mCols );
+		
+		double best = maxMeters * maxMeters;
+		int bestNode = -1;
+		
+		int maxRing = Math.max(mRows, mCols);
+		
+		for(int k=0; k <= maxRing; k++) {
+			
+			for(int r=row-k; r <= row+k; r++) {
+				if(r < 0 || r >= mRows) {
+					continue;
+				}
+				
+				// inner rows only need the two cells on the edge of the ring
+				int step = (r == row-k || r == row+k) ? 1 : Math.max(1, 2*k);
+				
+				for(int c=col-k; c <= col+k; c+=step) {
+					if(c < 0 || c >= mCols) {
+						continue;
+					}
+					
+					int cell = r*mCols + c;
+					int end = mCellOffsets.get(cell+1);
+					
+					for(int i=mCellOffsets.get(cell); i < end; i++) {
+						int node = mCellNodes.get(i);
+						
+						double dy = (coords.get(node*2) - lat) * metersPerLat;
+						double dx = (coords.get(node*2+1) - lon) * metersPerLon;
+						double d = dx*dx + dy*dy;
+						
+						if(d < best) {
+							best = d;
+							bestNode = node;
+						}
+					}
+				}
+			}
+			
+			// stop once the next ring can only hold nodes further away than the best found
+			double reach = k * ringMeters;
+			if(reach*reach >= best) {
+				break;
+			}
+		}
+		
+		if(distance != null) {
+			distance[0] = Math.sqrt(best);
+		}
+		
+		return bestNode;
+	}
+	
+	private static int clamp(int i, int size) {
+		return (i < 0) ? 0 : (i >= size) ? size-1 : i;
+	}
+	
+	/**
+	 * Build an index over the given nodes
+	 * 
+	 * @param coords Node coordinates, latitude and longitude interleaved
+	 * @param nodeCount
+	 * @param cellSize In 1e-7 degrees
+	 * @return
+	 */
+	public static GridIndex build(int[] coords, int nodeCount, int cellSize) {
+		
+		int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+		
+		for(int i=0; i < nodeCount; i++) {
+			minLat = Math.min(minLat, coords[i*2]);
+			maxLat = Math.max(maxLat, coords[i*2]);
+			minLon = Math.min(minLon, coords[i*2+1]);
+			maxLon = Math.max(maxLon, coords[i*2+1]);
+		}
+		
+		if(nodeCount == 0) {
+			minLat = minLon = maxLat = maxLon = 0;
+		}
+		
+		int rows = (int) (((long) maxLat - minLat) / cellSize) + 1;
+		int cols = (int) (((long) maxLon - minLon) / cellSize) + 1;
+		
+		// counting sort of the nodes by cell
+		int[] offsets = new int[rows*cols+1];
+		int[] cells = new int[nodeCount];
+		
+		for(int i=0; i < nodeCount; i++) {
+			cells[i] = ((coords[i*2] - minLat) / cellSize) * cols + (coords[i*2+1] - minLon) / cellSize;
+			offsets[cells[i]+1]++;
+		}
+		
+		for(int c=0; c < rows*cols; c++) {
+			offsets[c+1] += offsets[c];
+		}
+		
+		int[] fill = new int[rows*cols];
+		int[] nodes = new int[nodeCount];
+		
+		for(int i=0; i < nodeCount; i++) {
+			nodes[ offsets[cells[i]] + fill[cells[i]]++ ] = i;
+		}
+		
+		return new GridIndex(minLat, minLon, cellSize, rows, cols, IntBuffer.wrap(offsets), IntBuffer.wrap(nodes));
+	}
+}
@@ -0,0 +1,85 @@
+package fi.wegar.android.gravnav.graph;
+
+/**
+ * The streets leaving a node of the street graph. Reused between lookups so snapping to a new 
+ * position does not allocate.
+ */
+public class Junction {
+
+	private int mNode = -1;
+	private double mDistance;
+	private int mCount = 0;
+	
+	/**
+	 * Bearings of the streets in degrees clockwise from north, sorted ascending
+	 */
+	private float[] mBearings = new float[8];
+	private int[] mTargets = new int[8];
+	
+	
+	void set(int node, double distanceMeters) {
+		mNode = node;
+		mDistance = distanceMeters;
+		mCount = 0;
+	}
+	
+	void add(int target, float bearing) {
+		
+		if(mCount == mBearings.length) {
+			float[] bearings = new float[mCount*2];
+			int[] targets = new int[mCount*2];
+			System.arraycopy(mBearings, 0, bearings, 0, mCount);
+			System.arraycopy(mTargets, 0, targets, 0, mCount);
+			mBearings = bearings;
+			mTargets = targets;
+		}
+		
+		mBearings[mCount] = bearing;
+		mTargets[mCount] = target;
+		mCount++;
+	}
+	
+	/**
+	 * @return The graph node of the junction, or -1 if none was found
+	 */
+	public int getNode() {
+		return mNode;
+	}
+	
+	/**
+	 * @return The distance in meters from the position that was looked up to the node
+	 */
+	public double getDistance() {
+		return mDistance;
+	}
+	
+	/**
+	 * @return The number of streets leaving the junction, including the one the user came from
+	 */
+	public int getStreetCount() {
+		return mCount;
+	}
+	
+	/**
+	 * @return The number of streets to choose from, not counting the one the user came from
+	 */
+	public int getNumChoices() {
+		return Math.max(0, mCount - 1);
+	}
+	
+	/**
+	 * @param i
+	 * @return The bearing of street i in degrees clockwise from north
+	 */
+	public float getBearing(int i) {
+		return mBearings[i];
+	}
+	
+	/**
+	 * @param i
+	 * @return The node at the other end of street i
+	 */
+	public int getTarget(int i) {
+		return mTargets[i];
+	}
+}
@@ -0,0 +1,96 @@
+package fi.wegar.android.gravnav.graph;
+
+/**
+ * Open addressing hash map from long keys to int values, backed by two primitive arrays. 
+ * Used to look up OSM node ids without an object per entry.
+ */
+class LongIntMap {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+	
+	private long[] mKeys;
+	private int[] mValues;
+	private int mMask;
+	private int mSize = 0;
+	
+	
+	LongIntMap(int expectedSize) {
+		int capacity = 16;
+		while(capacity < expectedSize*2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mValues = new int[capacity];
+		mMask = capacity-1;
+		java.util.Arrays.fill(mKeys, EMPTY);
+	}
+	
+	int size() {
+		return mSize;
+	}
+	
+	/**
+	 * @param key Any value except Long.MIN_VALUE
+	 * @param value
+	 */
+	void put(long key, int value) {
+		
+		if(mSize*2 >= mKeys.length) {
+			grow();
+		}
+		
+		int i = slot(key);
+		if(mKeys[i] == EMPTY) {
+			mKeys[i] = key;
+			mSize++;
+		}
+		mValues[i] = value;
+	}
+	
+	/**
+	 * @param key
+	 * @return the value, or -1 if the key is not in the map
+	 */
+	int get(long key) {
+		int i = slot(key);
+		
+		return (mKeys[i] == EMPTY) ? -1 : mValues[i];
+	}
+	
+	/**
+	 * @return the slot holding the key, or the empty slot where it would go
+	 */
+	private int slot(long key) {
+		
+		int i = (int) mix(key) & mMask;
+		
+		while(mKeys[i] != EMPTY && mKeys[i] != key) {
+			i = (i+1) & mMask;
+		}
+		
+		return i;
+	}
+	
+	private void grow() {
+		long[] keys = mKeys;
+		int[] values = mValues;
+		
+		allocate(keys.length*2);
+		mSize = 0;
+		
+		for(int i=0; i < keys.length; i++) {
+			if(keys[i] != EMPTY) {
+				put(keys[i], values[i]);
+			}
+		}
+	}
+	
+	private static long mix(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		return z ^ (z >>> 33);
+	}
+}
@@ -0,0 +1,145 @@
+package fi.wegar.android.gravnav.graph;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the walkable streets of an OpenStreetMap XML extract (.osm) into a StreetGraph. 
+ * The file is streamed, so only the nodes and way references are held in memory.
+ */
+public class OsmXmlImporter extends DefaultHandler {
+
+	/**
+	 * Highway types that cannot, or should not, be walked
+	 */
+	static final String[] EXCLUDED_HIGHWAYS = { 
+		"motorway", "motorway_link", "trunk", "trunk_link", "construction", "proposed", "raceway", "bus_guideway" 
+	};
+	
+	private final StreetGraphBuilder mBuilder;
+	
+	/**
+	 * The node references of the way being read
+	 */
+	private long[] mWayNodes = new long[256];
+	private int mWayNodeCount = 0;
+	
+	private boolean mInWay = false;
+	private boolean mWalkable = false;
+	
+	
+	public OsmXmlImporter(StreetGraphBuilder builder) {
+		mBuilder = builder;
+	}
+	
+	/**
+	 * Read an OSM XML file into a graph
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException if the file cannot be read or parsed
+	 */
+	public static StreetGraph read(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+		
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Read OSM XML into a graph
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException if the stream cannot be read or parsed
+	 */
+	public static StreetGraph read(InputStream in) throws IOException {
+		
+		StreetGraphBuilder builder = new StreetGraphBuilder();
+		
+		try {
+			SAXParserFactory.newInstance().newSAXParser().parse(in, new OsmXmlImporter(builder));
+		} catch(SAXException e) {
+			throw new IOException("Invalid OSM XML: "+e.getMessage());
+		} catch(ParserConfigurationException e) {
+			throw new IOException("No XML parser available: "+e.getMessage());
+		}
+		
+		return builder.build();
+	}
+	
+	@Override
+	public void startElement(String uri, String localName, String qName, Attributes attributes) {
+		
+		String name = (localName == null || localName.length() == 0) ? qName : localName;
+		
+		if("node".equals(name)) {
+			String lat = attributes.getValue("lat");
+			String lon = attributes.getValue("lon");
+			
+			if(lat != null && lon != null) {
+				mBuilder.addNode( Long.parseLong(attributes.getValue("id")), Double.parseDouble(lat), Double.parseDouble(lon) );
+			}
+		} else if("way".equals(name)) {
+			mInWay = true;
+			mWalkable = false;
+			mWayNodeCount = 0;
+		} else if(mInWay && "nd".equals(name)) {
+			addWayNode( Long.parseLong(attributes.getValue("ref")) );
+		} else if(mInWay && "tag".equals(name) && "highway".equals(attributes.getValue("k"))) {
+			mWalkable = isWalkable( attributes.getValue("v") );
+		}
+	}
+	
+	@Override
+	public void endElement(String uri, String localName, String qName) {
+		
+		String name = (localName == null || localName.length() == 0) ? qName : localName;
+		
+		if("way".equals(name)) {
+			if(mWalkable) {
+				mBuilder.addWay(mWayNodes, mWayNodeCount);
+			}
+			mInWay = false;
+		}
+	}
+	
+	private void addWayNode(long ref) {
+		
+		if(mWayNodeCount == mWayNodes.length) {
+			long[] nodes = new long[mWayNodes.length*2];
+			System.arraycopy(mWayNodes, 0, nodes, 0, mWayNodeCount);
+			mWayNodes = nodes;
+		}
+		
+		mWayNodes[mWayNodeCount++] = ref;
+	}
+	
+	static boolean isWalkable(String highway) {
+		
+		if(highway == null) {
+			return false;
+		}
+		
+		for(int i=0; i < EXCLUDED_HIGHWAYS.length; i++) {
+			if(EXCLUDED_HIGHWAYS[i].equals(highway)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,232 @@
+package fi.wegar.android.gravnav.graph;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Street network in compressed sparse row form. Nodes are numbered from 0, and the streets leaving 
+ * node i are the edges from edgeOffsets[i] to edgeOffsets[i+1], sorted by bearing. All data is held in 
+ * primitive buffers, so a whole city takes a few bytes per node and edge and no object per node.
+ * 
+ * Coordinates are stored in 1e-7 degrees, latitude and longitude interleaved.
+ */
+public class StreetGraph {
+
+	/**
+	 * Coordinate units per degree
+	 */
+	public static final double E7 = 1e7;
+	
+	/**
+	 * Meters per coordinate unit along a meridian
+	 */
+	static final double METERS_PER_E7 = 6371008.8 * Math.PI / 180 / E7;
+	
+	private final int mNodeCount;
+	private final int mEdgeCount;
+	
+	private final IntBuffer mCoords;
+	private final IntBuffer mEdgeOffsets;
+	private final IntBuffer mEdgeTargets;
+	
+	/**
+	 * Bearing of each edge in degrees clockwise from north
+	 */
+	private final FloatBuffer mBearings;
+	
+	private final GridIndex mIndex;
+	
+	/**
+	 * CRC-32 of the file the graph was read from, 0 if it was not read from one
+	 */
+	private final int mChecksum;
+	
+	/**
+	 * Scratch space for the snap distance
+	 */
+	private final double[] mDistance = new double[1];
+	
+	
+	public StreetGraph(int nodeCount, int edgeCount, IntBuffer coords, IntBuffer edgeOffsets, IntBuffer edgeTargets, 
+			FloatBuffer bearings, GridIndex index) {
+		this(nodeCount, edgeCount, coords, edgeOffsets, edgeTargets, bearings, index, 0);
+	}
+	
+	public StreetGraph(int nodeCount, int edgeCount, IntBuffer coords, IntBuffer edgeOffsets, IntBuffer edgeTargets, 
+			FloatBuffer bearings, GridIndex index, int checksum) {
+		
+		mNodeCount = nodeCount;
+		mEdgeCount = edgeCount;
+		mCoords = coords;
+		mEdgeOffsets = edgeOffsets;
+		mEdgeTargets = edgeTargets;
+		mBearings = bearings;
+		mIndex = index;
+		mChecksum = checksum;
+	}
+	
+	public int getNodeCount() {
+		return mNodeCount;
+	}
+	
+	/**
+	 * @return The number of directed edges, two per street segment
+	 */
+	public int getEdgeCount() {
+		return mEdgeCount;
+	}
+	
+	public GridIndex getIndex() {
+		return mIndex;
+	}
+	
+	/**
+	 * @return The CRC-32 of the graph file, 0 if the graph was not read from one or the file has none
+	 */
+	public int getChecksum() {
+		return mChecksum;
+	}
+	
+	/**
+	 * @param node
+	 * @return The latitude in degrees
+	 */
+	public double getLatitude(int node) {
+		return mCoords.get(node*2) / E7;
+	}
+	
+	/**
+	 * @param node
+	 * @return The longitude in degrees
+	 */
+	public double getLongitude(int node) {
+		return mCoords.get(node*2+1) / E7;
+	}
+	
+	/**
+	 * @param node
+	 * @return The index of the first edge leaving the node
+	 */
+	public int getFirstEdge(int node) {
+		return mEdgeOffsets.get(node);
+	}
+	
+	/**
+	 * @param node
+	 * @return The number of edges leaving the node
+	 */
+	public int getDegree(int node) {
+		return mEdgeOffsets.get(node+1) - mEdgeOffsets.get(node);
+	}
+	
+	public int getEdgeTarget(int edge) {
+		return mEdgeTargets.get(edge);
+	}
+	
+	/**
+	 * @param edge
+	 * @return The bearing of the edge in degrees clockwise from north
+	 */
+	public float getBearing(int edge) {
+		return mBearings.get(edge);
+	}
+	
+	IntBuffer getCoords() {
+		return mCoords;
+	}
+	
+	IntBuffer getEdgeOffsets() {
+		return mEdgeOffsets;
+	}
+	
+	IntBuffer getEdgeTargets() {
+		return mEdgeTargets;
+	}
+	
+	FloatBuffer getBearings() {
+		return mBearings;
+	}
+	
+	/**
+	 * Find the node closest to a position
+	 * 
+	 * @param latitude In degrees
+	 * @param longitude In degrees
+	 * @param maxMeters Nodes further away than this are ignored
+	 * @return The node, or -1 if there is none within maxMeters
+	 */
+	public int snap(double latitude, double longitude, double maxMeters) {
+		return mIndex.findNearest(mCoords, (int) Math.round(latitude * E7), (int) Math.round(longitude * E7), maxMeters, null);
+	}
+	
+	/**
+	 * Find the street leaving a node that points most nearly towards a position
+	 * 
+	 * @param node
+	 * @param latitude In degrees
+	 * @param longitude In degrees
+	 * @return The node the street leads to, or -1 if no street leaves the node
+	 */
+	public int getStreetTowards(int node, double latitude, double longitude) {
+		
+		float towards = bearing(mCoords.get(node*2), mCoords.get(node*2+1), (int) Math.round(latitude * E7), (int) Math.round(longitude * E7));
+		
+		int target = -1;
+		float best = Float.MAX_VALUE;
+		
+		int end = mEdgeOffsets.get(node+1);
+		for(int e=mEdgeOffsets.get(node); e < end; e++) {
+			float diff = Math.abs(mBearings.get(e) - towards);
+			diff = Math.min(diff, 360 - diff);
+			
+			if(diff < best) {
+				best = diff;
+				target = mEdgeTargets.get(e);
+			}
+		}
+		
+		return target;
+	}
+	
+	/**
+	 * Snap a position to the closest node and describe the streets leaving it
+	 * 
+	 * @param latitude In degrees
+	 * @param longitude In degrees
+	 * @param maxMeters Nodes further away than this are ignored
+	 * @param out Receives the junction, with node -1 if there is none within maxMeters
+	 * @return true if a node was found
+	 */
+	public boolean getJunction(double latitude, double longitude, double maxMeters, Junction out) {
+		
+		int node = mIndex.findNearest(mCoords, (int) Math.round(latitude * E7), (int) Math.round(longitude * E7), maxMeters, mDistance);
+		
+		out.set(node, mDistance[0]);
+		
+		if(node < 0) {
+			return false;
+		}
+		
+		int end = mEdgeOffsets.get(node+1);
+		for(int e=mEdgeOffsets.get(node); e < end; e++) {
+			out.add(mEdgeTargets.get(e), mBearings.get(e));
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * The initial bearing from one position to another, using a flat approximation that is accurate for street length distances
+	 * 
+	 * @return The bearing in degrees clockwise from north, from 0 to 360
+	 */
+	static float bearing(int fromLat, int fromLon, int toLat, int toLon) {
+		
+		double north = toLat - fromLat;
+		double east = (toLon - fromLon) * Math.cos( Math.toRadians( (fromLat + (double) toLat) / 2 / E7 ) );
+		
+		double degrees = Math.toDegrees( Math.atan2(east, north) );
+		
+		return (float) ( (degrees < 0) ? degrees + 360 : degrees );
+	}
+}
@@ -0,0 +1,249 @@
+package fi.wegar.android.gravnav.graph;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Collects nodes and ways, e.g. from an OSM extract, and builds a compact StreetGraph from them. 
+ * Only junctions and dead ends of the ways end up in the graph: a chain of nodes that only shape a street 
+ * becomes one edge between the nodes at its ends, with the bearing of its first segment, so a position 
+ * snaps to a place where the walker has a choice. Every street becomes an edge in both directions, since 
+ * a walker can go both ways down a one-way street.
+ */
+public class StreetGraphBuilder {
+
+	private LongIntMap mNodeIds = new LongIntMap(1024);
+	
+	/**
+	 * Coordinates of all added nodes, latitude and longitude interleaved in 1e-7 degrees
+	 */
+	private int[] mCoords = new int[2048];
+	private int mNodeCount = 0;
+	
+	/**
+	 * The two nodes of each segment
+	 */
+	private int[] mSegments = new int[2048];
+	private int mSegmentCount = 0;
+	
+	private int mCellSize = GridIndex.DEFAULT_CELL_SIZE;
+	
+	
+	/**
+	 * @param cellSize The size of the spatial index cells in 1e-7 degrees
+	 */
+	public void setCellSize(int cellSize) {
+		mCellSize = cellSize;
+	}
+	
+	/**
+	 * Add a node. Nodes must be added before the ways that use them.
+	 * 
+	 * @param id The id of the node in the source data
+	 * @param latitude In degrees
+	 * @param longitude In degrees
+	 */
+	public void addNode(long id, double latitude, double longitude) {
+		
+		if(mNodeCount*2 == mCoords.length) {
+			int[] coords = new int[mCoords.length*2];
+			System.arraycopy(mCoords, 0, coords, 0, mCoords.length);
+			mCoords = coords;
+		}
+		
+		mCoords[mNodeCount*2] = (int) Math.round(latitude * StreetGraph.E7);
+		mCoords[mNodeCount*2+1] = (int) Math.round(longitude * StreetGraph.E7);
+		mNodeIds.put(id, mNodeCount);
+		mNodeCount++;
+	}
+	
+	/**
+	 * Add a way as a sequence of node ids. Segments to nodes that have not been added are skipped.
+	 * 
+	 * @param nodeIds
+	 * @param count The number of ids in use
+	 */
+	public void addWay(long[] nodeIds, int count) {
+		
+		int prev = -1;
+		
+		for(int i=0; i < count; i++) {
+			int node = mNodeIds.get(nodeIds[i]);
+			
+			if(node >= 0 && prev >= 0 && node != prev) {
+				addSegment(prev, node);
+			}
+			prev = node;
+		}
+	}
+	
+	private void addSegment(int a, int b) {
+		
+		if(mSegmentCount*2 == mSegments.length) {
+			int[] segments = new int[mSegments.length*2];
+			System.arraycopy(mSegments, 0, segments, 0, mSegments.length);
+			mSegments = segments;
+		}
+		
+		mSegments[mSegmentCount*2] = a;
+		mSegments[mSegmentCount*2+1] = b;
+		mSegmentCount++;
+	}
+	
+	/**
+	 * @return The graph of all ways added so far
+	 */
+	public StreetGraph build() {
+		
+		// number the nodes used by ways from 0, in the order they were added
+		int[] remap = new int[mNodeCount];
+		java.util.Arrays.fill(remap, -1);
+		
+		for(int i=0; i < mSegmentCount*2; i++) {
+			remap[ mSegments[i] ] = 0;
+		}
+		
+		int wayNodeCount = 0;
+		for(int i=0; i < mNodeCount; i++) {
+			if(remap[i] == 0) {
+				remap[i] = wayNodeCount++;
+			}
+		}
+		
+		// the segments leaving each way node, both ways
+		int[] segmentOffsets = new int[wayNodeCount+1];
+		for(int i=0; i < mSegmentCount*2; i++) {
+			segmentOffsets[ remap[mSegments[i]] + 1 ]++;
+		}
+		for(int i=0; i < wayNodeCount; i++) {
+			segmentOffsets[i+1] += segmentOffsets[i];
+		}
+		
+		int[] fill = new int[wayNodeCount];
+		int[] neighbours = new int[mSegmentCount*2];
+		
+		for(int s=0; s < mSegmentCount; s++) {
+			int a = remap[ mSegments[s*2] ];
+			int b = remap[ mSegments[s*2+1] ];
+			neighbours[ segmentOffsets[a] + fill[a]++ ] = b;
+			neighbours[ segmentOffsets[b] + fill[b]++ ] = a;
+		}
+		
+		// nodes with two segments are shape points along a street, the graph only keeps the junctions and 
+		// dead ends. A loop of shape points with no junction on it keeps one of them.
+		boolean[] keep = new boolean[wayNodeCount];
+		for(int n=0; n < wayNodeCount; n++) {
+			keep[n] = segmentOffsets[n+1] - segmentOffsets[n] != 2;
+		}
+		
+		// from, to and the first node along the way of each edge
+		int[] edges = new int[mSegmentCount*6];
+		int edgeCount = 0;
+		boolean[] walked = new boolean[wayNodeCount];
+		
+		for(int pass=0; pass < 2; pass++) {
+			for(int n=0; n < wayNodeCount; n++) {
+				
+				if(pass == 1) {
+					if(keep[n] || walked[n]) {
+						continue;
+					}
+					keep[n] = true;
+				} else if(!keep[n]) {
+					continue;
+				}
+				
+				for(int i=segmentOffsets[n]; i < segmentOffsets[n+1]; i++) {
+					// follow the street to the next kept node, every kept node walks its own edges
+					int prev = n;
+					int node = neighbours[i];
+					
+					while(!keep[node]) {
+						walked[node] = true;
+						int next = neighbours[ segmentOffsets[node] ];
+						if(next == prev) {
+							next = neighbours[ segmentOffsets[node]+1 ];
+						}
+						prev = node;
+						node = next;
+					}
+					
+					// the street from n to node, heading along the first segment
+					edges[edgeCount*3] = n;
+					edges[edgeCount*3+1] = node;
+					edges[edgeCount*3+2] = neighbours[i];
+					edgeCount++;
+				}
+			}
+		}
+		
+		// number the kept nodes from 0, in the same order
+		int nodeCount = 0;
+		int[] graphNode = new int[wayNodeCount];
+		for(int n=0; n < wayNodeCount; n++) {
+			graphNode[n] = keep[n] ? nodeCount++ : -1;
+		}
+		
+		int[] wayCoords = new int[wayNodeCount*2];
+		for(int i=0; i < mNodeCount; i++) {
+			if(remap[i] >= 0) {
+				wayCoords[remap[i]*2] = mCoords[i*2];
+				wayCoords[remap[i]*2+1] = mCoords[i*2+1];
+			}
+		}
+		
+		int[] coords = new int[nodeCount*2];
+		for(int n=0; n < wayNodeCount; n++) {
+			if(keep[n]) {
+				coords[graphNode[n]*2] = wayCoords[n*2];
+				coords[graphNode[n]*2+1] = wayCoords[n*2+1];
+			}
+		}
+		
+		// count the edges leaving each node, then turn the counts into offsets
+		int[] offsets = new int[nodeCount+1];
+		
+		for(int e=0; e < edgeCount; e++) {
+			offsets[ graphNode[edges[e*3]] + 1 ]++;
+		}
+		for(int i=0; i < nodeCount; i++) {
+			offsets[i+1] += offsets[i];
+		}
+		
+		fill = new int[nodeCount];
+		int[] targets = new int[edgeCount];
+		float[] bearings = new float[edgeCount];
+		
+		for(int e=0; e < edgeCount; e++) {
+			int from = edges[e*3];
+			int first = edges[e*3+2];
+			int a = graphNode[from];
+			
+			int i = offsets[a] + fill[a]++;
+			targets[i] = graphNode[ edges[e*3+1] ];
+			bearings[i] = StreetGraph.bearing(wayCoords[from*2], wayCoords[from*2+1], wayCoords[first*2], wayCoords[first*2+1]);
+		}
+		
+		// sort the edges of each node by bearing, nodes only have a handful so insertion sort will do
+		for(int n=0; n < nodeCount; n++) {
+			for(int i=offsets[n]+1; i < offsets[n+1]; i++) {
+				float bearing = bearings[i];
+				int target = targets[i];
+				int j = i-1;
+				
+				while(j >= offsets[n] && bearings[j] > bearing) {
+					bearings[j+1] = bearings[j];
+					targets[j+1] = targets[j];
+					j--;
+				}
+				bearings[j+1] = bearing;
+				targets[j+1] = target;
+			}
+		}
+		
+		GridIndex index = GridIndex.build(coords, nodeCount, mCellSize);
+		
+		return new StreetGraph(nodeCount, edgeCount, IntBuffer.wrap(coords), IntBuffer.wrap(offsets), 
+				IntBuffer.wrap(targets), FloatBuffer.wrap(bearings), index);
+	}
+}
@@ -0,0 +1,114 @@
+package fi.wegar.android.gravnav.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Command line tool that converts an OpenStreetMap XML extract to a street graph file, checks that the 
+ * file maps back to the same graph and measures the lookup latency of the mapped graph.
+ * 
+ * Usage: StreetGraphConverter input.osm output.gsg [lookups]
+ */
+public class StreetGraphConverter {
+
+	public static void main(String[] args) throws IOException {
+		
+		if(args.length < 2) {
+			System.err.println("Usage: StreetGraphConverter input.osm output.gsg [lookups]");
+			System.exit(1);
+		}
+		
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		int lookups = (args.length > 2) ? Integer.parseInt(args[2]) : 1000000;
+		
+		long start = System.nanoTime();
+		StreetGraph graph = OsmXmlImporter.read(input);
+		System.out.println( String.format("imported %d nodes, %d edges in %.1f ms", 
+				graph.getNodeCount(), graph.getEdgeCount(), (System.nanoTime() - start) / 1e6) );
+		
+		start = System.nanoTime();
+		StreetGraphFile.write(graph, output);
+		System.out.println( String.format("wrote %d bytes in %.1f ms", output.length(), (System.nanoTime() - start) / 1e6) );
+		
+		start = System.nanoTime();
+		StreetGraph mapped = StreetGraphFile.open(output);
+		System.out.println( String.format("opened in %.3f ms", (System.nanoTime() - start) / 1e6) );
+		
+		int mismatch = compare(graph, mapped);
+		if(mismatch >= 0) {
+			System.err.println("round trip failed at node "+mismatch);
+			System.exit(2);
+		}
+		System.out.println("round trip ok");
+		
+		if(graph.getNodeCount() > 0) {
+			measureLookups(mapped, lookups);
+		}
+	}
+	
+	/**
+	 * @return The first node that differs, or -1 if the graphs are equal
+	 */
+	static int compare(StreetGraph a, StreetGraph b) {
+		
+		if(a.getNodeCount() != b.getNodeCount() || a.getEdgeCount() != b.getEdgeCount()) {
+			return 0;
+		}
+		
+		for(int n=0; n < a.getNodeCount(); n++) {
+			
+			if(a.getLatitude(n) != b.getLatitude(n) || a.getLongitude(n) != b.getLongitude(n) 
+					|| a.getFirstEdge(n) != b.getFirstEdge(n) || a.getDegree(n) != b.getDegree(n)) {
+				return n;
+			}
+			
+			for(int e=a.getFirstEdge(n); e < a.getFirstEdge(n) + a.getDegree(n); e++) {
+				if(a.getEdgeTarget(e) != b.getEdgeTarget(e) || a.getBearing(e) != b.getBearing(e)) {
+					return n;
+				}
+			}
+			
+			// every node must snap to itself in both graphs
+			if(a.snap(a.getLatitude(n), a.getLongitude(n), 1) < 0 || b.snap(b.getLatitude(n), b.getLongitude(n), 1) < 0) {
+				return n;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Snap random positions near random nodes and print the average time per lookup
+	 */
+	static void measureLookups(StreetGraph graph, int lookups) {
+		
+		Random random = new Random(1);
+		Junction junction = new Junction();
+		double[] positions = new double[lookups*2];
+		
+		for(int i=0; i < lookups; i++) {
+			int node = random.nextInt(graph.getNodeCount());
+			positions[i*2] = graph.getLatitude(node) + (random.nextDouble() - 0.5) * 0.0005;
+			positions[i*2+1] = graph.getLongitude(node) + (random.nextDouble() - 0.5) * 0.0005;
+		}
+		
+		// the first round warms up the JIT and pages in the mapping
+		for(int round=0; round < 2; round++) {
+			
+			int found = 0;
+			long start = System.nanoTime();
+			
+			for(int i=0; i < lookups; i++) {
+				if( graph.getJunction(positions[i*2], positions[i*2+1], 50, junction) ) {
+					found++;
+				}
+			}
+			
+			long elapsed = System.nanoTime() - start;
+			System.out.println( String.format("%s: %d lookups, %d found, %.0f ns per lookup", 
+					(round == 0) ? "cold" : "warm", lookups, found, (double) elapsed / lookups) );
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package fi.wegar.android.gravnav.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file format for a StreetGraph that is memory mapped and queried in place, with no parsing 
+ * or copying when it is opened.
+ * 
+ * All values are little-endian 32 bit ints or floats. The file starts with a 64 byte header:
+ * 
+ * <pre>
+ *  0  magic "GNSG"
+ *  4  format version
+ *  8  node count
+ * 12  edge count
+ * 16  grid min latitude, min longitude, cell size, rows, cols
+ * 36  file offsets of the sections: coordinates, edge offsets, edge targets, bearings, cell offsets, cell nodes
+ * 60  CRC-32 of the sections, 0 in files written before it was added
+ * </pre>
+ * 
+ * followed by the sections, each an array in the same layout as the StreetGraph and GridIndex buffers.
+ */
+public class StreetGraphFile {
+
+	static final int MAGIC = 0x47534e47;
+	
+	/**
+	 * The version written by this class. Files with another version are rejected.
+	 */
+	public static final int VERSION = 1;
+	
+	static final int HEADER_SIZE = 64;
+	
+	private static final int SECTION_COUNT = 6;
+	
+	
+	/**
+	 * Write a graph to a file, replacing it if it exists. The graph is written to a temporary file next 
+	 * to it, synced and renamed over it, so a crash leaves either the old file or the new one.
+	 * 
+	 * @param graph
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(StreetGraph graph, File file) throws IOException {
+		
+		GridIndex index = graph.getIndex();
+		
+		IntBuffer[] sections = { 
+			graph.getCoords(), graph.getEdgeOffsets(), graph.getEdgeTargets(), null, 
+			index.getCellOffsets(), index.getCellNodes() 
+		};
+		int[] lengths = { 
+			graph.getNodeCount()*2, graph.getNodeCount()+1, graph.getEdgeCount(), graph.getEdgeCount(), 
+			index.getRows()*index.getCols()+1, graph.getNodeCount() 
+		};
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(graph.getNodeCount());
+		header.putInt(graph.getEdgeCount());
+		header.putInt(index.getMinLat());
+		header.putInt(index.getMinLon());
+		header.putInt(index.getCellSize());
+		header.putInt(index.getRows());
+		header.putInt(index.getCols());
+		
+		int offset = HEADER_SIZE;
+		for(int i=0; i < SECTION_COUNT; i++) {
+			header.putInt(offset);
+			offset += lengths[i]*4;
+		}
+		
+		File temp = getTempFile(file);
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		boolean written = false;
+		
+		try {
+			out.setLength(0);
+			FileChannel channel = out.getChannel();
+			channel.position(HEADER_SIZE);
+			
+			ByteBuffer chunk = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN);
+			CRC32 crc = new CRC32();
+			
+			for(int s=0; s < SECTION_COUNT; s++) {
+				for(int i=0; i < lengths[s]; i++) {
+					
+					if(chunk.remaining() < 4) {
+						flush(channel, chunk, crc);
+					}
+					
+					if(sections[s] != null) {
+						chunk.putInt( sections[s].get(i) );
+					} else {
+						chunk.putFloat( graph.getBearings().get(i) );
+					}
+				}
+			}
+			
+			flush(channel, chunk, crc);
+			
+			// the header goes in last, once the checksum is known
+			header.putInt( (int) crc.getValue() );
+			header.clear();
+			while(header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+			
+			channel.force(true);
+			written = true;
+		} finally {
+			out.close();
+			if(!written) {
+				temp.delete();
+			}
+		}
+		
+		replace(temp, file);
+	}
+	
+	/**
+	 * @return The file a replacement for the given one is written to before it is renamed over it
+	 */
+	static File getTempFile(File file) {
+		return new File(file.getPath() + ".tmp");
+	}
+	
+	/**
+	 * Rename a written and synced temporary file over the file it replaces
+	 * 
+	 * @param temp
+	 * @param file
+	 * @throws IOException
+	 */
+	static void replace(File temp, File file) throws IOException {
+		
+		if(temp.renameTo(file)) {
+			return;
+		}
+		
+		// some platforms don't rename over an existing file
+		if(file.delete() && temp.renameTo(file)) {
+			return;
+		}
+		
+		temp.delete();
+		throw new IOException("Could not rename "+temp+" to "+file);
+	}
+	
+	private static void flush(FileChannel channel, ByteBuffer chunk, CRC32 crc) throws IOException {
+		crc.update(chunk.array(), 0, chunk.position());
+		chunk.flip();
+		while(chunk.hasRemaining()) {
+			channel.write(chunk);
+		}
+		chunk.clear();
+	}
+	
+	/**
+	 * Map a graph file into memory. The returned graph reads straight from the mapping.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException if the file cannot be read or is not a valid graph file
+	 */
+	public static StreetGraph open(File file) throws IOException {
+		
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		MappedByteBuffer map;
+		
+		try {
+			// the mapping stays valid after the file is closed
+			map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		} finally {
+			in.close();
+		}
+		
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		
+		if(map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+			throw new IOException("Not a street graph file: "+file);
+		}
+		if(map.getInt(4) != VERSION) {
+			throw new IOException("Unsupported street graph version "+map.getInt(4)+" in "+file);
+		}
+		
+		int nodeCount = map.getInt(8);
+		int edgeCount = map.getInt(12);
+		int minLat = map.getInt(16);
+		int minLon = map.getInt(20);
+		int cellSize = map.getInt(24);
+		int rows = map.getInt(28);
+		int cols = map.getInt(32);
+		int checksum = map.getInt(60);
+		
+		int[] lengths = { nodeCount*2, nodeCount+1, edgeCount, edgeCount, rows*cols+1, nodeCount };
+		ByteBuffer[] sections = new ByteBuffer[SECTION_COUNT];
+		
+		for(int i=0; i < SECTION_COUNT; i++) {
+			sections[i] = section(map, map.getInt(36 + i*4), lengths[i]*4, file);
+		}
+		
+		GridIndex index = new GridIndex(minLat, minLon, cellSize, rows, cols, 
+				sections[4].asIntBuffer(), sections[5].asIntBuffer());
+		
+		return new StreetGraph(nodeCount, edgeCount, sections[0].asIntBuffer(), sections[1].asIntBuffer(), 
+				sections[2].asIntBuffer(), sections[3].asFloatBuffer(), index, checksum);
+	}
+	
+	/**
+	 * @return A little-endian view of part of the mapping
+	 */
+	private static ByteBuffer section(ByteBuffer map, int offset, int length, File file) throws IOException {
+		
+		if(offset < HEADER_SIZE || length < 0 || (long) offset + length > map.capacity()) {
+			throw new IOException("Truncated street graph file: "+file);
+		}
+		
+		ByteBuffer view = map.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		
+		// slice() resets the byte order, so set it again
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
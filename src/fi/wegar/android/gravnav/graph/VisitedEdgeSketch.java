@@ -0,0 +1,246 @@
+package fi.wegar.android.gravnav.graph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+
+/**
+ * Bloom filter of the street edges the user has walked. An edge is never reported unvisited once 
+ * it has been added, but an unvisited edge is reported visited with a small probability.
+ * 
+ * Adding and checking an edge costs a fixed number of hashes and bit operations and allocates 
+ * nothing. With the default sizing, 300 000 edges fit in about 360 KB at a 1% false positive rate.
+ * 
+ * The edges are node pairs of one street graph, so a saved filter records the node count and checksum 
+ * of the graph it was filled on, and is only loaded for that graph.
+ * 
+ * Not thread safe.
+ */
+public class VisitedEdgeSketch {
+
+	public static final int DEFAULT_EXPECTED_EDGES = 300000;
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+	
+	static final int MAGIC = 0x43455647;
+	
+	/**
+	 * Magic, word count, hash count, added count, graph node count and graph checksum
+	 */
+	static final int HEADER_SIZE = 24;
+	
+	/**
+	 * The most hashes per edge a loaded filter may use, far more than any sensible sizing needs
+	 */
+	static final int MAX_HASH_COUNT = 16;
+	
+	private final long[] mBits;
+	private final long mBitCount;
+	private final int mHashCount;
+	
+	private int mAdded = 0;
+	
+	
+	public VisitedEdgeSketch() {
+		this(DEFAULT_EXPECTED_EDGES, DEFAULT_FALSE_POSITIVE_RATE);
+	}
+	
+	/**
+	 * @param expectedEdges The number of edges at which the false positive rate is reached
+	 * @param falsePositiveRate
+	 */
+	public VisitedEdgeSketch(int expectedEdges, double falsePositiveRate) {
+		this( getWordCount(expectedEdges, falsePositiveRate), 
+				getHashCount(expectedEdges, getWordCount(expectedEdges, falsePositiveRate)*64L) );
+	}
+	
+	private VisitedEdgeSketch(int wordCount, int hashCount) {
+		mBits = new long[wordCount];
+		mBitCount = wordCount*64L;
+		mHashCount = hashCount;
+	}
+	
+	/**
+	 * Mark the street between two nodes as visited, in either direction
+	 * 
+	 * @param from
+	 * @param to
+	 */
+	public void add(int from, int to) {
+		
+		long hash = hash(from, to);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		
+		for(int i=0; i < mHashCount; i++) {
+			long bit = ( ( (h1 + i*h2) & 0xffffffffL ) * mBitCount ) >>> 32;
+			mBits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+		mAdded++;
+	}
+	
+	/**
+	 * @param from
+	 * @param to
+	 * @return false if the street between the nodes has certainly not been visited
+	 */
+	public boolean mightContain(int from, int to) {
+		
+		long hash = hash(from, to);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		
+		for(int i=0; i < mHashCount; i++) {
+			long bit = ( ( (h1 + i*h2) & 0xffffffffL ) * mBitCount ) >>> 32;
+			if( (mBits[(int) (bit >>> 6)] & (1L << bit)) == 0 ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return The number of times add has been called, including repeated edges
+	 */
+	public int getAddedCount() {
+		return mAdded;
+	}
+	
+	/**
+	 * @return The size of the filter in bytes
+	 */
+	public int getSizeBytes() {
+		return mBits.length*8;
+	}
+	
+	public int getHashCount() {
+		return mHashCount;
+	}
+	
+	/**
+	 * Copy the filter, for saving it on another thread while this one is still updated
+	 * 
+	 * @return
+	 */
+	public VisitedEdgeSketch copy() {
+		VisitedEdgeSketch copy = new VisitedEdgeSketch(mBits.length, mHashCount);
+		System.arraycopy(mBits, 0, copy.mBits, 0, mBits.length);
+		copy.mAdded = mAdded;
+		return copy;
+	}
+	
+	public void clear() {
+		for(int i=0; i < mBits.length; i++) {
+			mBits[i] = 0;
+		}
+		mAdded = 0;
+	}
+	
+	/**
+	 * Write the filter to a file, replacing it if it exists. Like the street graph it is written to a 
+	 * temporary file, synced and renamed, so a crash during a save keeps the previous history.
+	 * 
+	 * @param file
+	 * @param graph The graph the filter was filled on
+	 * @throws IOException
+	 */
+	public void save(File file, StreetGraph graph) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mBits.length*8).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(mBits.length).putInt(mHashCount).putInt(mAdded);
+		buffer.putInt(graph.getNodeCount()).putInt(graph.getChecksum());
+		buffer.asLongBuffer().put(mBits);
+		buffer.rewind();
+		
+		File temp = StreetGraphFile.getTempFile(file);
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		boolean written = false;
+		
+		try {
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+			written = true;
+		} finally {
+			out.close();
+			if(!written) {
+				temp.delete();
+			}
+		}
+		
+		StreetGraphFile.replace(temp, file);
+	}
+	
+	/**
+	 * Read a filter written with save
+	 * 
+	 * @param file
+	 * @param graph The graph the filter is used with
+	 * @return
+	 * @throws IOException if the file is not a filter, or was filled on another graph or another conversion of it
+	 */
+	public static VisitedEdgeSketch load(File file, StreetGraph graph) throws IOException {
+		
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			
+			if(header.getInt(0) != MAGIC) {
+				throw new IOException("Not a visited edge sketch: "+file);
+			}
+			
+			// the bits must fill the rest of the file exactly
+			int wordCount = header.getInt(4);
+			if(wordCount <= 0 || channel.size() != HEADER_SIZE + wordCount*8L) {
+				throw new IOException("Invalid word count "+wordCount+" for "+channel.size()+" bytes in "+file);
+			}
+			
+			int hashCount = header.getInt(8);
+			if(hashCount < 1 || hashCount > MAX_HASH_COUNT) {
+				throw new IOException("Invalid hash count "+hashCount+" in "+file);
+			}
+			if(header.getInt(16) != graph.getNodeCount() || header.getInt(20) != graph.getChecksum()) {
+				throw new IOException("Visited edge sketch of another street graph: "+file);
+			}
+			
+			VisitedEdgeSketch sketch = new VisitedEdgeSketch(wordCount, hashCount);
+			sketch.mAdded = header.getInt(12);
+			
+			ByteBuffer bits = ByteBuffer.allocate(wordCount*8).order(ByteOrder.LITTLE_ENDIAN);
+			while(bits.hasRemaining() && channel.read(bits, HEADER_SIZE + bits.position()) > 0);
+			bits.flip();
+			bits.asLongBuffer().get(sketch.mBits);
+			
+			return sketch;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Hash of the unordered node pair, so a street is the same edge whichever way it was walked
+	 */
+	private static long hash(int from, int to) {
+		long z = from < to ? ( (long) from << 32 | (to & 0xffffffffL) ) : ( (long) to << 32 | (from & 0xffffffffL) );
+		return Xoshiro256Random.mix64(z);
+	}
+	
+	private static int getWordCount(int expectedEdges, double falsePositiveRate) {
+		double bits = -expectedEdges * Math.log(falsePositiveRate) / (Math.log(2)*Math.log(2));
+		return (int) Math.max(1, Math.ceil(bits / 64));
+	}
+	
+	private static int getHashCount(int expectedEdges, long bitCount) {
+		return (int) Math.max(1, Math.round( (double) bitCount / Math.max(1, expectedEdges) * Math.log(2) ));
+	}
+}
@@ -0,0 +1,319 @@
+package fi.wegar.android.gravnav.heading;
+
+/**
+ * Fuses accelerometer, magnetometer and, if the device has one, gyroscope samples into the compass
+ * heading of the device.
+ *
+ * The accelerometer gives the direction of gravity, which the magnetic field is projected onto to get
+ * a tilt compensated heading. With a gyroscope the heading follows the rotation rate around gravity
+ * and the magnetometer only corrects its drift, a complementary filter. Without one the magnetic heading
+ * is smoothed with a cutoff that rises with the turn rate, so a still phone gets a steady heading and a
+ * turning phone a heading that does not lag behind.
+ *
+ * While the phone is being shaken the accelerometer does not measure gravity, so the heading is held
+ * until it has been still for a moment.
+ *
+ * All state is primitive and no sample allocates. Instances are not thread safe and hold no references
+ * to Android classes; feed all samples from the same thread.
+ */
+public class HeadingFilter {
+	
+	public static final float GRAVITY = 9.80665f;
+	
+	/**
+	 * Time constant of the gravity low-pass, in seconds
+	 */
+	public static final double DEFAULT_GRAVITY_TIME_CONSTANT = 0.05;
+	
+	/**
+	 * Time constant of the magnetometer correction when there is a gyroscope, in seconds
+	 */
+	public static final double DEFAULT_GYRO_TIME_CONSTANT = 1.0;
+	
+	/**
+	 * Cutoff frequency of the magnetic heading smoothing for a still phone, in Hz
+	 */
+	public static final double DEFAULT_MIN_CUTOFF = 0.5;
+	
+	/**
+	 * How much the cutoff rises per radian per second of turn rate
+	 */
+	public static final double DEFAULT_CUTOFF_SLOPE = 4.0;
+	
+	/**
+	 * Accelerations further than this from gravity, in m/s^2, are not used as the direction of gravity
+	 */
+	public static final float DEFAULT_DISTURBANCE_THRESHOLD = 2.5f;
+	
+	/**
+	 * How long the heading is held after the last disturbed accelerometer sample
+	 */
+	public static final long DISTURBANCE_HOLD_NANOS = 300000000L;
+	
+	/**
+	 * Gaps between samples longer than this restart the smoothing instead of being integrated over
+	 */
+	static final long MAX_GAP_NANOS = 500000000L;
+	
+	static final double TWO_PI = 2 * Math.PI;
+	
+	private final double mGravityTimeConstant;
+	private final double mGyroTimeConstant;
+	private final double mMinCutoff;
+	private final double mCutoffSlope;
+	private final float mDisturbanceThreshold;
+	
+	/**
+	 * Low-passed accelerometer, pointing up
+	 */
+	private double mGravityX, mGravityY, mGravityZ;
+	private boolean mHasGravity = false;
+	private long mLastAccelerometer;
+	private long mDisturbedUntil = Long.MIN_VALUE;
+	
+	private double mHeading;
+	private boolean mHasHeading = false;
+	private long mLastMagnetic;
+	
+	/**
+	 * Smoothed turn rate of the magnetic heading, in radians per second
+	 */
+	private double mRate = 0;
+	
+	private long mLastGyroscope;
+	private boolean mHasGyroscope = false;
+	
+	private int mUpdateCount = 0;
+	
+	
+	public HeadingFilter() {
+		this(DEFAULT_GRAVITY_TIME_CONSTANT, DEFAULT_GYRO_TIME_CONSTANT, DEFAULT_MIN_CUTOFF, DEFAULT_CUTOFF_SLOPE,
+				DEFAULT_DISTURBANCE_THRESHOLD);
+	}
+	
+	/**
+	 * @param gravityTimeConstant Time constant of the gravity low-pass, in seconds
+	 * @param gyroTimeConstant Time constant of the magnetometer correction when there is a gyroscope, in seconds
+	 * @param minCutoff Cutoff of the magnetic heading smoothing for a still phone, in Hz
+	 * @param cutoffSlope Rise of the cutoff per radian per second of turn rate
+	 * @param disturbanceThreshold Accelerations further than this from gravity are ignored, in m/s^2
+	 */
+	public HeadingFilter(double gravityTimeConstant, double gyroTimeConstant, double minCutoff, double cutoffSlope,
+			float disturbanceThreshold) {
+		mGravityTimeConstant = gravityTimeConstant;
+		mGyroTimeConstant = gyroTimeConstant;
+		mMinCutoff = minCutoff;
+		mCutoffSlope = cutoffSlope;
+		mDisturbanceThreshold = disturbanceThreshold;
+	}
+	
+	/**
+	 * @param timestampNanos
+	 * @param x, y, z The acceleration in m/s^2, including gravity, in device coordinates
+	 */
+	public void onAccelerometer(long timestampNanos, float x, float y, float z) {
+		
+		double magnitude = Math.sqrt(x*x + y*y + z*z);
+		
+		if(Math.abs(magnitude - GRAVITY) > mDisturbanceThreshold) {
+			// shaken or swung, this is not the direction of gravity
+			mDisturbedUntil = timestampNanos + DISTURBANCE_HOLD_NANOS;
+			return;
+		}
+		
+		long dt = timestampNanos - mLastAccelerometer;
+		mLastAccelerometer = timestampNanos;
+		
+		if(!mHasGravity || dt <= 0 || dt > MAX_GAP_NANOS) {
+			mGravityX = x;
+			mGravityY = y;
+			mGravityZ = z;
+			mHasGravity = true;
+			return;
+		}
+		
+		double alpha = getAlpha(dt, mGravityTimeConstant);
+		mGravityX += (x - mGravityX) * alpha;
+		mGravityY += (y - mGravityY) * alpha;
+		mGravityZ += (z - mGravityZ) * alpha;
+	}
+	
+	/**
+	 * @param timestampNanos
+	 * @param x, y, z The magnetic field in uT, in device coordinates
+	 * @return true if the heading was updated
+	 */
+	public boolean onMagneticField(long timestampNanos, float x, float y, float z) {
+		
+		long dt = timestampNanos - mLastMagnetic;
+		mLastMagnetic = timestampNanos;
+		
+		if(!mHasGravity || isDisturbed(timestampNanos)) {
+			return false;
+		}
+		
+		double measured = getMagneticHeading(x, y, z);
+		if(Double.isNaN(measured)) {
+			// field parallel to gravity, or no field at all
+			return false;
+		}
+		
+		if(!mHasHeading || dt <= 0 || dt > MAX_GAP_NANOS) {
+			mHeading = measured;
+			mHasHeading = true;
+			mRate = 0;
+			mUpdateCount++;
+			return true;
+		}
+		
+		double error = wrapPi(measured - mHeading);
+		double alpha;
+		
+		if(mHasGyroscope) {
+			// the gyroscope follows the turns, the magnetometer only pulls out the drift
+			alpha = getAlpha(dt, mGyroTimeConstant);
+		} else {
+			// the faster the phone turns, the less the heading is smoothed
+			double seconds = dt / 1e9;
+			mRate += (error / seconds - mRate) * getAlpha(dt, 1 / (TWO_PI * mMinCutoff));
+			
+			double cutoff = mMinCutoff + mCutoffSlope * Math.abs(mRate);
+			alpha = getAlpha(dt, 1 / (TWO_PI * cutoff));
+		}
+		
+		mHeading = wrapTwoPi(mHeading + error * alpha);
+		mUpdateCount++;
+		
+		return true;
+	}
+	
+	/**
+	 * @param timestampNanos
+	 * @param x, y, z The rotation rate in rad/s around the device axes
+	 * @return true if the heading was updated
+	 */
+	public boolean onGyroscope(long timestampNanos, float x, float y, float z) {
+		
+		long dt = timestampNanos - mLastGyroscope;
+		mLastGyroscope = timestampNanos;
+		
+		boolean first = !mHasGyroscope;
+		mHasGyroscope = true;
+		
+		if(first || !mHasHeading || !mHasGravity || dt <= 0 || dt > MAX_GAP_NANOS) {
+			return false;
+		}
+		
+		double norm = Math.sqrt(mGravityX*mGravityX + mGravityY*mGravityY + mGravityZ*mGravityZ);
+		
+		// turning counterclockwise around the up axis, seen from above, decreases the heading
+		double rate = -(x*mGravityX + y*mGravityY + z*mGravityZ) / norm;
+		
+		mHeading = wrapTwoPi(mHeading + rate * dt / 1e9);
+		mUpdateCount++;
+		
+		return true;
+	}
+	
+	/**
+	 * The heading of the device's y axis, from the magnetic field and the current gravity, without any smoothing.
+	 * The same projection as SensorManager.getRotationMatrix and getOrientation.
+	 *
+	 * @return The heading in radians clockwise from magnetic north, from 0 to 2 pi, or NaN if it can't be determined
+	 */
+	double getMagneticHeading(float x, float y, float z) {
+		
+		// east is the cross product of the field and up
+		double eastX = y*mGravityZ - z*mGravityY;
+		double eastY = z*mGravityX - x*mGravityZ;
+		double eastZ = x*mGravityY - y*mGravityX;
+		
+		double eastNorm = Math.sqrt(eastX*eastX + eastY*eastY + eastZ*eastZ);
+		double gravityNorm = Math.sqrt(mGravityX*mGravityX + mGravityY*mGravityY + mGravityZ*mGravityZ);
+		
+		if(eastNorm < 0.1 || gravityNorm < 0.1) {
+			return Double.NaN;
+		}
+		
+		// north is the cross product of up and east, only its y component is needed
+		double northY = (mGravityZ*eastX - mGravityX*eastZ) / gravityNorm;
+		
+		return wrapTwoPi( Math.atan2(eastY, northY) );
+	}
+	
+	/**
+	 * @return true while recent accelerometer samples have been too far from gravity to be trusted
+	 */
+	public boolean isDisturbed(long timestampNanos) {
+		return timestampNanos < mDisturbedUntil;
+	}
+	
+	/**
+	 * @return true once the first heading has been measured
+	 */
+	public boolean hasHeading() {
+		return mHasHeading;
+	}
+	
+	/**
+	 * @return The heading of the device's y axis in radians clockwise from magnetic north, from 0 to 2 pi
+	 */
+	public double getHeading() {
+		return mHeading;
+	}
+	
+	/**
+	 * @return true once a gyroscope sample has been received
+	 */
+	public boolean hasGyroscope() {
+		return mHasGyroscope;
+	}
+	
+	/**
+	 * @return The number of times the heading has been updated
+	 */
+	public int getUpdateCount() {
+		return mUpdateCount;
+	}
+	
+	/**
+	 * Forget all samples, e.g. after the sensors have been off
+	 */
+	public void reset() {
+		mHasGravity = false;
+		mHasHeading = false;
+		mHasGyroscope = false;
+		mDisturbedUntil = Long.MIN_VALUE;
+		mRate = 0;
+	}
+	
+	/**
+	 * The weight of a new sample in a first order low-pass with the given time constant
+	 */
+	static double getAlpha(long dtNanos, double timeConstant) {
+		double dt = dtNanos / 1e9;
+		return dt / (timeConstant + dt);
+	}
+	
+	/**
+	 * @return The angle wrapped to -pi to pi
+	 */
+	public static double wrapPi(double radians) {
+		radians = wrapTwoPi(radians);
+		return (radians > Math.PI) ? radians - TWO_PI : radians;
+	}
+	
+	/**
+	 * @return The angle wrapped to 0 to 2 pi
+	 */
+	public static double wrapTwoPi(double radians) {
+		
+		if(radians >= 0 && radians < TWO_PI) {
+			return radians;
+		}
+		
+		radians %= TWO_PI;
+		
+		return (radians < 0) ? radians + TWO_PI : radians;
+	}
+}
@@ -0,0 +1,370 @@
+package fi.wegar.android.gravnav.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every spin decision, stored as fixed size binary records.
+ * 
+ * Appending only encodes the record into a memory buffer. A background thread writes the buffered 
+ * records to the file and syncs them to disk in groups, at most GROUP_COMMIT_INTERVAL ms after the 
+ * first of them was appended. Every record carries a checksum, so a record torn by a crash during a 
+ * write is detected and cut off the next time the journal is opened.
+ * 
+ * The file is a 16 byte header followed by 32 byte little-endian records:
+ * 
+ * <pre>
+ *  0  timestamp, ms since the epoch (long)
+ *  8  number of choices (int)
+ * 12  chosen direction (int)
+ * 16  shake energy (float)
+ * 20  spin duration in ms (int)
+ * 24  reserved (int)
+ * 28  CRC32 of bytes 0-27 (int)
+ * </pre>
+ */
+public class WalkJournal {
+
+	/**
+	 * Receives the records of a journal in the order they were written
+	 */
+	public interface Visitor {
+		void onRecord(long timestampMillis, int numChoices, int chosen, float shakeEnergy, int spinDurationMillis);
+	}
+	
+	static final int MAGIC = 0x4a4e5747;
+	
+	public static final int VERSION = 1;
+	
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_SIZE = 32;
+	
+	/**
+	 * The max nr of ms between appending a record and syncing it to disk
+	 */
+	static final int GROUP_COMMIT_INTERVAL = 1000;
+	
+	/**
+	 * The number of records at the end of the file that are checked when the journal is opened. 
+	 * A crash can only tear records that had not been synced yet.
+	 */
+	static final int RECOVERY_WINDOW = 256;
+	
+	private final File mFile;
+	
+	private final ScheduledExecutorService mWriter;
+	
+	/**
+	 * Records appended but not yet handed to the writer, guarded by this
+	 */
+	private ByteBuffer mPending = newBuffer(64);
+	private boolean mFlushScheduled = false;
+	private boolean mClosed = false;
+	
+	/**
+	 * Only touched by the writer thread
+	 */
+	private ByteBuffer mWriting = newBuffer(64);
+	private FileChannel mChannel;
+	private RandomAccessFile mRandomAccessFile;
+	
+	private final CRC32 mCrc = new CRC32();
+	
+	private final Runnable mFlushTask = new Runnable() {
+		public void run() {
+			writePending();
+		}
+	};
+	
+	
+	/**
+	 * Open a journal for appending, creating it if needed. The file is opened and recovered on the 
+	 * writer thread, so this returns without touching the disk.
+	 * 
+	 * @param file
+	 */
+	public WalkJournal(File file) {
+		
+		mFile = file;
+		
+		mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "WalkJournal");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		mWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					openChannel();
+				} catch(IOException e) {
+					closeChannel();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Append a decision. Only copies the values into memory, the disk is written later. Ignored once 
+	 * the journal has been closed.
+	 * 
+	 * @param timestampMillis
+	 * @param numChoices
+	 * @param chosen
+	 * @param shakeEnergy
+	 * @param spinDurationMillis
+	 */
+	public synchronized void append(long timestampMillis, int numChoices, int chosen, float shakeEnergy, int spinDurationMillis) {
+		
+		if(mClosed) {
+			return;
+		}
+		
+		if(mPending.remaining() < RECORD_SIZE) {
+			// the writer has fallen behind, make room rather than wait for it
+			ByteBuffer pending = newBuffer(mPending.capacity() / RECORD_SIZE * 2);
+			mPending.flip();
+			pending.put(mPending);
+			mPending = pending;
+		}
+		
+		int start = mPending.position();
+		
+		mPending.putLong(timestampMillis);
+		mPending.putInt(numChoices);
+		mPending.putInt(chosen);
+		mPending.putFloat(shakeEnergy);
+		mPending.putInt(spinDurationMillis);
+		mPending.putInt(0);
+		
+		mCrc.reset();
+		mCrc.update(mPending.array(), mPending.arrayOffset() + start, RECORD_SIZE - 4);
+		mPending.putInt( (int) mCrc.getValue() );
+		
+		if(!mFlushScheduled) {
+			mFlushScheduled = true;
+			mWriter.schedule(mFlushTask, GROUP_COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Write and sync the appended records now instead of waiting for the group commit. Returns immediately.
+	 */
+	public synchronized void flush() {
+		if(!mClosed) {
+			mWriter.execute(mFlushTask);
+		}
+	}
+	
+	/**
+	 * Write and sync all appended records and close the file. Returns immediately, the writer thread 
+	 * finishes the work and then exits. Records appended after this are ignored.
+	 */
+	public synchronized void close() {
+		
+		if(mClosed) {
+			return;
+		}
+		mClosed = true;
+		
+		mWriter.execute(new Runnable() {
+			public void run() {
+				writePending();
+				closeChannel();
+			}
+		});
+		mWriter.shutdown();
+	}
+	
+	/**
+	 * Wait for the writer thread to finish after close, e.g. before reading the file
+	 * 
+	 * @param timeoutMillis
+	 * @return true if it finished in time
+	 * @throws InterruptedException
+	 */
+	public boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+		return mWriter.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Hand the pending records to the writer thread and write them. Runs on the writer thread.
+	 */
+	private void writePending() {
+		
+		synchronized(this) {
+			mFlushScheduled = false;
+			
+			// swap buffers so appending can continue while the disk is written
+			ByteBuffer pending = mPending;
+			mPending = mWriting;
+			mWriting = pending;
+			mPending.clear();
+		}
+		
+		mWriting.flip();
+		
+		if(mChannel != null && mWriting.hasRemaining()) {
+			try {
+				while(mWriting.hasRemaining()) {
+					mChannel.write(mWriting);
+				}
+				mChannel.force(false);
+			} catch(IOException e) {
+				// the tail written so far is cut off as torn on the next open
+				closeChannel();
+			}
+		}
+		
+		mWriting.clear();
+	}
+	
+	/**
+	 * Open the file, write the header to a new file or cut off a torn tail from an existing one
+	 */
+	private void openChannel() throws IOException {
+		
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		mChannel = mRandomAccessFile.getChannel();
+		
+		long length = mChannel.size();
+		
+		if(length < HEADER_SIZE) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+			header.flip();
+			
+			mChannel.truncate(0);
+			mChannel.write(header, 0);
+			mChannel.force(true);
+			mChannel.position(HEADER_SIZE);
+			return;
+		}
+		
+		checkHeader(mChannel, mFile);
+		
+		// find the end of the last intact record
+		long records = (length - HEADER_SIZE) / RECORD_SIZE;
+		long first = Math.max(0, records - RECOVERY_WINDOW);
+		
+		ByteBuffer tail = newBuffer( (int) (records - first) );
+		long offset = HEADER_SIZE + first * RECORD_SIZE;
+		
+		// a read may return less than asked for, the records past what was read would count as torn
+		while(tail.hasRemaining() && mChannel.read(tail, offset + tail.position()) > 0);
+		tail.flip();
+		
+		CRC32 crc = new CRC32();
+		long valid = first;
+		while(tail.remaining() >= RECORD_SIZE && isIntact(tail, tail.position(), crc)) {
+			tail.position(tail.position() + RECORD_SIZE);
+			valid++;
+		}
+		
+		long end = HEADER_SIZE + valid * RECORD_SIZE;
+		if(end < length) {
+			mChannel.truncate(end);
+			mChannel.force(true);
+		}
+		mChannel.position(end);
+	}
+	
+	private void closeChannel() {
+		try {
+			if(mRandomAccessFile != null) {
+				mRandomAccessFile.close();
+			}
+		} catch(IOException e) {
+			// nothing more can be done
+		}
+		mRandomAccessFile = null;
+		mChannel = null;
+	}
+	
+	/**
+	 * @return true if the record at the given position matches its checksum
+	 */
+	private static boolean isIntact(ByteBuffer buffer, int position, CRC32 crc) {
+		crc.reset();
+		crc.update(buffer.array(), buffer.arrayOffset() + position, RECORD_SIZE - 4);
+		
+		return buffer.getInt(position + RECORD_SIZE - 4) == (int) crc.getValue();
+	}
+	
+	/**
+	 * Read every intact record of a journal in order. Stops at the first torn record.
+	 * 
+	 * @param file
+	 * @param visitor
+	 * @return the number of records read
+	 * @throws IOException
+	 */
+	public static long replay(File file, Visitor visitor) throws IOException {
+		
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		
+		try {
+			FileChannel channel = in.getChannel();
+			
+			if(channel.size() < HEADER_SIZE) {
+				return 0;
+			}
+			checkHeader(channel, file);
+			channel.position(HEADER_SIZE);
+			
+			ByteBuffer buffer = newBuffer(2048);
+			CRC32 crc = new CRC32();
+			long count = 0;
+			
+			while(channel.read(buffer) > 0 || buffer.position() >= RECORD_SIZE) {
+				buffer.flip();
+				
+				while(buffer.remaining() >= RECORD_SIZE) {
+					int start = buffer.position();
+					
+					if(!isIntact(buffer, start, crc)) {
+						return count;
+					}
+					
+					visitor.onRecord(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getFloat(), buffer.getInt());
+					buffer.position(start + RECORD_SIZE);
+					count++;
+				}
+				
+				buffer.compact();
+			}
+			
+			return count;
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static void checkHeader(FileChannel channel, File file) throws IOException {
+		
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(header, 0);
+		
+		if(header.getInt(0) != MAGIC || header.getInt(8) != RECORD_SIZE) {
+			throw new IOException("Not a walk journal: "+file);
+		}
+		if(header.getInt(4) != VERSION) {
+			throw new IOException("Unsupported walk journal version "+header.getInt(4)+" in "+file);
+		}
+	}
+	
+	private static ByteBuffer newBuffer(int records) {
+		return ByteBuffer.allocate(records * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
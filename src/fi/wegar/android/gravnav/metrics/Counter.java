@@ -0,0 +1,37 @@
+package fi.wegar.android.gravnav.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that can be increased from any thread without locking
+ */
+public class Counter {
+
+	private final String mName;
+	private final AtomicLong mCount = new AtomicLong();
+	
+	
+	Counter(String name) {
+		mName = name;
+	}
+	
+	public String getName() {
+		return mName;
+	}
+	
+	public void increment() {
+		mCount.incrementAndGet();
+	}
+	
+	public void add(long n) {
+		mCount.addAndGet(n);
+	}
+	
+	public long get() {
+		return mCount.get();
+	}
+	
+	public void reset() {
+		mCount.set(0);
+	}
+}
@@ -0,0 +1,121 @@
+package fi.wegar.android.gravnav.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in ns, counted in fixed power of two buckets. Recording is lock free and 
+ * does not allocate, so it can be done on the sensor and drawing paths.
+ * 
+ * Bucket 0 holds durations below 1 us, bucket i durations from 2^(i+9) to 2^(i+10) ns and the last 
+ * bucket everything from about 17 s up. Percentiles are reported as the upper bound of their bucket.
+ */
+public class LatencyHistogram {
+
+	static final int BUCKET_COUNT = 26;
+	
+	private static final int FIRST_BUCKET_SHIFT = 10;
+	
+	private final String mName;
+	
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+	
+	
+	LatencyHistogram(String name) {
+		mName = name;
+	}
+	
+	public String getName() {
+		return mName;
+	}
+	
+	/**
+	 * @param nanos A duration, negative values are counted as 0
+	 */
+	public void record(long nanos) {
+		
+		if(nanos < 0) {
+			nanos = 0;
+		}
+		
+		mBuckets.incrementAndGet( getBucket(nanos) );
+		mCount.incrementAndGet();
+		mSum.addAndGet(nanos);
+		
+		long max = mMax.get();
+		while(nanos > max && !mMax.compareAndSet(max, nanos)) {
+			max = mMax.get();
+		}
+	}
+	
+	public long getCount() {
+		return mCount.get();
+	}
+	
+	public long getMaxNanos() {
+		return mMax.get();
+	}
+	
+	public long getMeanNanos() {
+		long count = mCount.get();
+		return (count == 0) ? 0 : mSum.get() / count;
+	}
+	
+	/**
+	 * @param fraction From 0 to 1, e.g. 0.99 for the 99th percentile
+	 * @return The upper bound of the bucket the percentile falls in, or 0 if nothing has been recorded
+	 */
+	public long getPercentileNanos(double fraction) {
+		
+		long total = 0;
+		for(int i=0; i < BUCKET_COUNT; i++) {
+			total += mBuckets.get(i);
+		}
+		if(total == 0) {
+			return 0;
+		}
+		
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		
+		for(int i=0; i < BUCKET_COUNT - 1; i++) {
+			seen += mBuckets.get(i);
+			if(seen >= Math.max(1, rank)) {
+				return Math.min(getUpperBound(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+	
+	/**
+	 * @param bucket
+	 * @return The number of durations recorded in the bucket
+	 */
+	public long getBucketCount(int bucket) {
+		return mBuckets.get(bucket);
+	}
+	
+	public void reset() {
+		for(int i=0; i < BUCKET_COUNT; i++) {
+			mBuckets.set(i, 0);
+		}
+		mCount.set(0);
+		mSum.set(0);
+		mMax.set(0);
+	}
+	
+	static int getBucket(long nanos) {
+		int bucket = 64 - Long.numberOfLeadingZeros(nanos) - FIRST_BUCKET_SHIFT;
+		return Math.max(0, Math.min(BUCKET_COUNT - 1, bucket));
+	}
+	
+	/**
+	 * @return The exclusive upper bound in ns of a bucket
+	 */
+	static long getUpperBound(int bucket) {
+		return 1L << (bucket + FIRST_BUCKET_SHIFT);
+	}
+}
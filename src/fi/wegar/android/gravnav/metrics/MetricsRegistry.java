@@ -0,0 +1,96 @@
+package fi.wegar.android.gravnav.metrics;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Named counters and latency histograms. Metrics are looked up once, typically into fields, and then 
+ * updated without locking; only registering and dumping synchronize.
+ */
+public class MetricsRegistry {
+
+	private static final MetricsRegistry sDefault = new MetricsRegistry();
+	
+	private final List<Counter> mCounters = new ArrayList<Counter>();
+	private final List<LatencyHistogram> mHistograms = new ArrayList<LatencyHistogram>();
+	
+	
+	/**
+	 * @return The registry shared by the whole process
+	 */
+	public static MetricsRegistry getDefault() {
+		return sDefault;
+	}
+	
+	/**
+	 * @param name
+	 * @return The counter with the name, created if it doesn't exist yet
+	 */
+	public synchronized Counter counter(String name) {
+		for(Counter counter : mCounters) {
+			if(counter.getName().equals(name)) {
+				return counter;
+			}
+		}
+		
+		Counter counter = new Counter(name);
+		mCounters.add(counter);
+		return counter;
+	}
+	
+	/**
+	 * @param name
+	 * @return The histogram with the name, created if it doesn't exist yet
+	 */
+	public synchronized LatencyHistogram histogram(String name) {
+		for(LatencyHistogram histogram : mHistograms) {
+			if(histogram.getName().equals(name)) {
+				return histogram;
+			}
+		}
+		
+		LatencyHistogram histogram = new LatencyHistogram(name);
+		mHistograms.add(histogram);
+		return histogram;
+	}
+	
+	public synchronized void reset() {
+		for(Counter counter : mCounters) {
+			counter.reset();
+		}
+		for(LatencyHistogram histogram : mHistograms) {
+			histogram.reset();
+		}
+	}
+	
+	/**
+	 * Write every metric on its own line, times in ms
+	 * 
+	 * @param out
+	 */
+	public synchronized void dump(PrintWriter out) {
+		
+		for(Counter counter : mCounters) {
+			out.println( String.format("%-24s %d", counter.getName(), counter.get()) );
+		}
+		
+		for(LatencyHistogram h : mHistograms) {
+			out.println( String.format("%-24s n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f ms", 
+					h.getName(), h.getCount(), h.getMeanNanos() / 1e6, h.getPercentileNanos(0.5) / 1e6, 
+					h.getPercentileNanos(0.9) / 1e6, h.getPercentileNanos(0.99) / 1e6, h.getMaxNanos() / 1e6) );
+		}
+		
+		out.flush();
+	}
+	
+	/**
+	 * @return The same text as dump(PrintWriter)
+	 */
+	public String dump() {
+		StringWriter text = new StringWriter();
+		dump( new PrintWriter(text) );
+		return text.toString();
+	}
+}
@@ -0,0 +1,232 @@
+package fi.wegar.android.gravnav.power;
+
+import fi.wegar.android.gravnav.util.Clock;
+
+/**
+ * Decides how fast the accelerometer is sampled and how bright the screen is kept, from how the phone 
+ * is being handled.
+ * 
+ * While the phone lies still or is carried in a pocket it is IDLE, sampled slowly with the screen dimmed. 
+ * A jolt stronger than walking makes it ACTIVE, sampled fast enough to catch a shake with the screen 
+ * bright, and it falls back to IDLE after the idle timeout. While the arrow spins it is SPINNING and 
+ * sampled at the full rate, so further shakes are picked up promptly.
+ * 
+ * The controller holds no Android references, the listener applies the modes. Not thread safe.
+ */
+public class SamplingController {
+
+	public enum Mode {
+		IDLE, ACTIVE, SPINNING
+	}
+	
+	/**
+	 * Receives the mode changes of a SamplingController
+	 */
+	public interface OnModeChangeListener {
+		void onModeChanged(Mode mode);
+	}
+	
+	/**
+	 * The default deviation from gravity in m/s^2 that counts as the phone being handled. Walking with 
+	 * the phone in a pocket stays mostly below this.
+	 */
+	public static final float DEFAULT_MOTION_THRESHOLD = 4;
+	
+	/**
+	 * The default nr of ns without motion before the controller goes idle
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT_NANOS = 10 * 1000000000L;
+	
+	/**
+	 * Nominal sample intervals of the modes, those of SENSOR_DELAY_NORMAL, SENSOR_DELAY_UI and SENSOR_DELAY_GAME
+	 */
+	static final long[] SAMPLE_INTERVAL_NANOS = { 200 * 1000000L, 60 * 1000000L, 20 * 1000000L };
+	
+	private static final float GRAVITY = 9.80665f;
+	
+	private final Clock mClock;
+	private final float mMotionThreshold;
+	private final long mIdleTimeoutNanos;
+	
+	private OnModeChangeListener mListener;
+	
+	private Mode mMode = Mode.ACTIVE;
+	private long mModeSince;
+	private long mLastMotion;
+	private boolean mStarted = false;
+	
+	/**
+	 * The ns spent in each mode while started
+	 */
+	private final long[] mModeNanos = new long[Mode.values().length];
+	
+	
+	public SamplingController(Clock clock, OnModeChangeListener listener) {
+		this(clock, DEFAULT_MOTION_THRESHOLD, DEFAULT_IDLE_TIMEOUT_NANOS, listener);
+	}
+	
+	/**
+	 * @param clock
+	 * @param motionThreshold The deviation from gravity in m/s^2 that counts as motion
+	 * @param idleTimeoutNanos The time without motion after which the controller goes idle
+	 * @param listener
+	 */
+	public SamplingController(Clock clock, float motionThreshold, long idleTimeoutNanos, OnModeChangeListener listener) {
+		mClock = clock;
+		mMotionThreshold = motionThreshold;
+		mIdleTimeoutNanos = idleTimeoutNanos;
+		mListener = listener;
+	}
+	
+	public void setOnModeChangeListener(OnModeChangeListener listener) {
+		mListener = listener;
+	}
+	
+	/**
+	 * Start in ACTIVE mode, the user has just brought the app to the front. The listener is told the mode.
+	 */
+	public void start() {
+		long now = mClock.nanoTime();
+		
+		mStarted = true;
+		mModeSince = now;
+		mLastMotion = now;
+		setMode(Mode.ACTIVE, now, true);
+	}
+	
+	/**
+	 * Stop accounting time, until start is called again
+	 */
+	public void stop() {
+		if(mStarted) {
+			mModeNanos[mMode.ordinal()] += mClock.nanoTime() - mModeSince;
+			mStarted = false;
+		}
+	}
+	
+	/**
+	 * Process one accelerometer sample
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void onSample(float x, float y, float z) {
+		
+		long now = mClock.nanoTime();
+		
+		float deviation = Math.abs( (float) Math.sqrt(x*x + y*y + z*z) - GRAVITY );
+		
+		if(deviation > mMotionThreshold) {
+			mLastMotion = now;
+			if(mMode == Mode.IDLE) {
+				setMode(Mode.ACTIVE, now, false);
+			}
+		} else {
+			update();
+		}
+	}
+	
+	/**
+	 * Go idle if the timeout has passed. Called on every sample, but can also be called from a timer.
+	 */
+	public void update() {
+		long now = mClock.nanoTime();
+		
+		if(mMode == Mode.ACTIVE && now - mLastMotion > mIdleTimeoutNanos) {
+			setMode(Mode.IDLE, now, false);
+		}
+	}
+	
+	public void onSpinStarted() {
+		setMode(Mode.SPINNING, mClock.nanoTime(), false);
+	}
+	
+	/**
+	 * The spin has finished, the user is looking at the result
+	 */
+	public void onSpinFinished() {
+		long now = mClock.nanoTime();
+		
+		if(mMode == Mode.SPINNING) {
+			mLastMotion = now;
+			setMode(Mode.ACTIVE, now, false);
+		}
+	}
+	
+	public Mode getMode() {
+		return mMode;
+	}
+	
+	/**
+	 * @return true if the screen should be kept bright rather than dimmed
+	 */
+	public boolean isBright() {
+		return mMode != Mode.IDLE;
+	}
+	
+	/**
+	 * @param mode
+	 * @return The ns spent in the mode while started
+	 */
+	public long getTimeInMode(Mode mode) {
+		long nanos = mModeNanos[mode.ordinal()];
+		if(mStarted && mode == mMode) {
+			nanos += mClock.nanoTime() - mModeSince;
+		}
+		return nanos;
+	}
+	
+	/**
+	 * @return The fraction of time sampled above the idle rate with the screen bright, from 0 to 1
+	 */
+	public double getDutyCycle() {
+		long idle = getTimeInMode(Mode.IDLE);
+		long total = idle + getTimeInMode(Mode.ACTIVE) + getTimeInMode(Mode.SPINNING);
+		
+		return (total == 0) ? 0 : 1 - (double) idle / total;
+	}
+	
+	/**
+	 * @return The number of samples the sensor delivers in the time spent so far, at the nominal rates of the modes
+	 */
+	public double getExpectedSamples() {
+		double samples = 0;
+		for(Mode mode : Mode.values()) {
+			samples += (double) getTimeInMode(mode) / getSampleIntervalNanos(mode);
+		}
+		return samples;
+	}
+	
+	public void resetStats() {
+		for(int i=0; i < mModeNanos.length; i++) {
+			mModeNanos[i] = 0;
+		}
+		mModeSince = mClock.nanoTime();
+	}
+	
+	/**
+	 * @param mode
+	 * @return The nominal ns between samples in the mode
+	 */
+	public static long getSampleIntervalNanos(Mode mode) {
+		return SAMPLE_INTERVAL_NANOS[mode.ordinal()];
+	}
+	
+	private void setMode(Mode mode, long now, boolean force) {
+		
+		if(mode == mMode && !force) {
+			return;
+		}
+		
+		if(mStarted) {
+			mModeNanos[mMode.ordinal()] += now - mModeSince;
+			mModeSince = now;
+		}
+		mMode = mode;
+		
+		if(mListener != null) {
+			mListener.onModeChanged(mode);
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package fi.wegar.android.gravnav.shake;
+
+/**
+ * Shake detector that removes gravity with a low-pass filter and measures the squared magnitude of 
+ * the remaining linear acceleration. 
+ * 
+ * Unlike the summed-axis delta of {@link ShakeDetector}, movement along opposite axes does not cancel 
+ * out, and the result does not depend on how the phone is held.
+ * 
+ * Batches are processed in two passes: the gravity filter, which carries state from one sample to the 
+ * next, and a branch free energy pass over the filtered values that the JIT can vectorize. 
+ * Only the final threshold scan branches.
+ */
+public class GravityShakeDetector extends ShakeDetector {
+
+	/**
+	 * The default magnitude of linear acceleration, in m/s^2, at which a shake is considered to have taken place. 
+	 * The threshold that fires on the same shakes as ShakeDetector most often without firing on steps, see ShakeBenchmark.
+	 */
+	public static final float DEFAULT_THRESHOLD = 6;
+	
+	/**
+	 * The default time constant of the gravity low-pass filter
+	 */
+	public static final long DEFAULT_TIME_CONSTANT_NANOS = 300 * 1000000L;
+	
+	/**
+	 * Converts the shake magnitude in m/s^2 to the intensity reported to the listener. 
+	 * Chosen so that the shakes of a run spin the arrow as far as those of ShakeDetector, see ShakeBenchmark.
+	 */
+	public static final float INTENSITY_SCALE = 175;
+	
+	private final float mThresholdSquared;
+	private final long mTimeConstantNanos;
+	
+	private boolean mPrimed = false;
+	private long mLastTimestamp;
+	private long mLastShake;
+	
+	/**
+	 * The current gravity estimate
+	 */
+	private final float[] mGravity = new float[3];
+	
+	/**
+	 * Scratch space for the linear acceleration and energy of a batch, grown when a larger batch arrives
+	 */
+	private float[] mLinear = new float[0];
+	private float[] mEnergy = new float[0];
+	
+	
+	public GravityShakeDetector(OnShakeListener listener) {
+		this(DEFAULT_THRESHOLD, DEFAULT_MIN_INTERVAL_NANOS, DEFAULT_TIME_CONSTANT_NANOS, listener);
+	}
+	
+	/**
+	 * 
+	 * @param threshold The magnitude of linear acceleration in m/s^2 above which a sample is considered a shake
+	 * @param minIntervalNanos The minimum time between two reported shakes
+	 * @param timeConstantNanos The time constant of the gravity low-pass filter
+	 * @param listener
+	 */
+	public GravityShakeDetector(float threshold, long minIntervalNanos, long timeConstantNanos, OnShakeListener listener) {
+		super(threshold, minIntervalNanos, listener);
+		
+		mThresholdSquared = threshold*threshold;
+		mTimeConstantNanos = timeConstantNanos;
+	}
+	
+	@Override
+	public void reset() {
+		mPrimed = false;
+	}
+	
+	@Override
+	public boolean onSample(long timestampNanos, float x, float y, float z) {
+		
+		if(!mPrimed) {
+			prime(timestampNanos, x, y, z);
+			return false;
+		}
+		
+		float alpha = getAlpha(timestampNanos - mLastTimestamp, mTimeConstantNanos);
+		mLastTimestamp = timestampNanos;
+		
+		mGravity[0] += alpha * (x - mGravity[0]);
+		mGravity[1] += alpha * (y - mGravity[1]);
+		mGravity[2] += alpha * (z - mGravity[2]);
+		
+		float lx = x - mGravity[0];
+		float ly = y - mGravity[1];
+		float lz = z - mGravity[2];
+		
+		return checkShake(timestampNanos, lx*lx + ly*ly + lz*lz);
+	}
+	
+	@Override
+	public int onBatch(long[] timestamps, float[] values, int offset, int count) {
+		
+		if(count == 0) {
+			return 0;
+		}
+		
+		if(!mPrimed) {
+			prime(timestamps[offset], values[offset*3], values[offset*3+1], values[offset*3+2]);
+			offset++;
+			count--;
+			
+			if(count == 0) {
+				return 0;
+			}
+		}
+		
+		if(mEnergy.length < count) {
+			mLinear = new float[count*3];
+			mEnergy = new float[count];
+		}
+		
+		// each sample gets the coefficient of its own interval, sensor batches are not evenly spaced
+		filterGravity(timestamps, values, offset, count, mLastTimestamp, mTimeConstantNanos, mGravity, mLinear);
+		mLastTimestamp = timestamps[offset+count-1];
+		computeEnergy(mLinear, count, mEnergy);
+		
+		int shakes = 0;
+		for(int i=0; i < count; i++) {
+			if(mEnergy[i] > mThresholdSquared && checkShake(timestamps[offset+i], mEnergy[i])) {
+				shakes++;
+			}
+		}
+		
+		return shakes;
+	}
+	
+	/**
+	 * Low-pass the samples into the gravity estimate and write the remaining linear acceleration to out. 
+	 * The coefficient follows the interval before each sample, the same as in onSample.
+	 * 
+	 * @param timestamps The timestamp of each sample
+	 * @param values x, y, z values interleaved
+	 * @param offset The index of the first sample
+	 * @param count The number of samples
+	 * @param lastTimestamp The timestamp of the sample before the first
+	 * @param timeConstantNanos The time constant of the filter
+	 * @param gravity The gravity estimate, updated in place
+	 * @param out Receives the linear acceleration, three floats per sample starting at 0
+	 */
+	static void filterGravity(long[] timestamps, float[] values, int offset, int count, long lastTimestamp, 
+			long timeConstantNanos, float[] gravity, float[] out) {
+		
+		float gx = gravity[0];
+		float gy = gravity[1];
+		float gz = gravity[2];
+		
+		for(int i=0; i < count*3; i+=3) {
+			float x = values[offset*3+i];
+			float y = values[offset*3+i+1];
+			float z = values[offset*3+i+2];
+			
+			long timestamp = timestamps[offset + i/3];
+			float alpha = getAlpha(timestamp - lastTimestamp, timeConstantNanos);
+			lastTimestamp = timestamp;
+			
+			gx += alpha * (x - gx);
+			gy += alpha * (y - gy);
+			gz += alpha * (z - gz);
+			
+			out[i] = x - gx;
+			out[i+1] = y - gy;
+			out[i+2] = z - gz;
+		}
+		
+		gravity[0] = gx;
+		gravity[1] = gy;
+		gravity[2] = gz;
+	}
+	
+	/**
+	 * Squared magnitude of each vector, without branches
+	 * 
+	 * @param linear x, y, z values interleaved
+	 * @param count The number of vectors
+	 * @param out Receives one value per vector
+	 */
+	static void computeEnergy(float[] linear, int count, float[] out) {
+		for(int i=0; i < count; i++) {
+			float x = linear[i*3];
+			float y = linear[i*3+1];
+			float z = linear[i*3+2];
+			
+			out[i] = x*x + y*y + z*z;
+		}
+	}
+	
+	private void prime(long timestampNanos, float x, float y, float z) {
+		// assume the phone is at rest for the first sample
+		mGravity[0] = x;
+		mGravity[1] = y;
+		mGravity[2] = z;
+		mLastTimestamp = timestampNanos;
+		mLastShake = timestampNanos - getMinIntervalNanos() - 1;
+		mPrimed = true;
+	}
+	
+	/**
+	 * @param intervalNanos The time between samples
+	 * @param timeConstantNanos
+	 * @return The low-pass coefficient for the given sample interval
+	 */
+	static float getAlpha(long intervalNanos, long timeConstantNanos) {
+		intervalNanos = (intervalNanos < 0) ? 0 : intervalNanos;
+		
+		return (float) intervalNanos / (timeConstantNanos + intervalNanos);
+	}
+	
+	private boolean checkShake(long timestampNanos, float energy) {
+		
+		if(energy <= mThresholdSquared || timestampNanos - mLastShake <= getMinIntervalNanos()) {
+			return false;
+		}
+		
+		mLastShake = timestampNanos;
+		notifyShake(timestampNanos, (float) Math.sqrt(energy) * INTENSITY_SCALE);
+		
+		return true;
+	}
+}
@@ -0,0 +1,138 @@
+package fi.wegar.android.gravnav.shake;
+
+/**
+ * Preallocated ring buffer of accelerometer samples, used to decouple the sensor callback from the 
+ * shake calculations. The producer only copies the values in, and the consumer drains all pending 
+ * samples to a ShakeDetector in one batch.
+ * 
+ * Safe for exactly one producer thread and one consumer thread without locking. 
+ */
+public class SampleRingBuffer {
+
+	private final long[] mTimestamps;
+	
+	/**
+	 * x, y, z values interleaved, three floats per sample
+	 */
+	private final float[] mValues;
+	
+	private final int mMask;
+	
+	/**
+	 * Total number of samples written, only modified by the producer
+	 */
+	private volatile long mHead = 0;
+	
+	/**
+	 * Total number of samples read, only modified by the consumer
+	 */
+	private volatile long mTail = 0;
+	
+	/**
+	 * Number of samples dropped because the buffer was full, only modified by the producer
+	 */
+	private volatile long mOverflow = 0;
+	
+	
+	/**
+	 * @param capacity The number of samples the buffer can hold, rounded up to the next power of two
+	 */
+	public SampleRingBuffer(int capacity) {
+		
+		int size = 1;
+		while(size < capacity) {
+			size <<= 1;
+		}
+		
+		mTimestamps = new long[size];
+		mValues = new float[size*3];
+		mMask = size-1;
+	}
+	
+	/**
+	 * @return the number of samples the buffer can hold
+	 */
+	public int capacity() {
+		return mTimestamps.length;
+	}
+	
+	/**
+	 * @return the number of samples waiting to be drained
+	 */
+	public int size() {
+		return (int) (mHead - mTail);
+	}
+	
+	/**
+	 * @return the number of samples dropped because the consumer did not keep up
+	 */
+	public long getOverflowCount() {
+		return mOverflow;
+	}
+	
+	/**
+	 * Copy a sample into the buffer. Called from the producer thread.
+	 * 
+	 * @param timestampNanos
+	 * @param values The sensor values, only the first three are used
+	 * @return false if the buffer was full and the sample was dropped
+	 */
+	public boolean write(long timestampNanos, float[] values) {
+		
+		long head = mHead;
+		
+		if(head - mTail == mTimestamps.length) {
+			mOverflow++;
+			return false;
+		}
+		
+		int i = (int) head & mMask;
+		mTimestamps[i] = timestampNanos;
+		mValues[i*3] = values[0];
+		mValues[i*3+1] = values[1];
+		mValues[i*3+2] = values[2];
+		
+		// publish the sample
+		mHead = head+1;
+		
+		return true;
+	}
+	
+	/**
+	 * Feed all pending samples to the detector in at most two contiguous batches. Called from the consumer thread.
+	 * 
+	 * @param detector
+	 * @return the number of shakes detected
+	 */
+	public int drainTo(ShakeDetector detector) {
+		
+		long tail = mTail;
+		int count = (int) (mHead - tail);
+		
+		if(count == 0) {
+			return 0;
+		}
+		
+		int start = (int) tail & mMask;
+		int first = Math.min(count, mTimestamps.length - start);
+		
+		int shakes = detector.onBatch(mTimestamps, mValues, start, first);
+		
+		if(first < count) {
+			// the pending samples wrap around the end of the arrays
+			shakes += detector.onBatch(mTimestamps, mValues, 0, count - first);
+		}
+		
+		// release the slots to the producer
+		mTail = tail + count;
+		
+		return shakes;
+	}
+	
+	/**
+	 * Discard all pending samples. Called from the consumer thread.
+	 */
+	public void clear() {
+		mTail = mHead;
+	}
+}
@@ -0,0 +1,202 @@
+package fi.wegar.android.gravnav.shake;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * A recorded accelerometer trace held in primitive arrays. Used to replay real shakes through a 
+ * {@link ShakeDetector} off-device, e.g. when measuring the per-sample cost on a JVM.
+ */
+public class SensorTrace {
+
+	static final int MAGIC = 0x474e5354;
+	
+	/**
+	 * The version of the binary format written by writeBinary
+	 */
+	public static final int VERSION = 1;
+
+	private long[] mTimestamps;
+	
+	/**
+	 * x, y, z values interleaved, three floats per sample
+	 */
+	private float[] mValues;
+	
+	private int mSize = 0;
+	
+	
+	public SensorTrace(int initialCapacity) {
+		initialCapacity = (initialCapacity < 16) ? 16 : initialCapacity;
+		
+		mTimestamps = new long[initialCapacity];
+		mValues = new float[initialCapacity*3];
+	}
+	
+	/**
+	 * Append a sample to the end of the trace
+	 */
+	public void add(long timestampNanos, float x, float y, float z) {
+		
+		if(mSize == mTimestamps.length) {
+			long[] timestamps = new long[mSize*2];
+			float[] values = new float[mSize*6];
+			System.arraycopy(mTimestamps, 0, timestamps, 0, mSize);
+			System.arraycopy(mValues, 0, values, 0, mSize*3);
+			mTimestamps = timestamps;
+			mValues = values;
+		}
+		
+		mTimestamps[mSize] = timestampNanos;
+		mValues[mSize*3] = x;
+		mValues[mSize*3+1] = y;
+		mValues[mSize*3+2] = z;
+		mSize++;
+	}
+	
+	/**
+	 * @return the number of samples in the trace
+	 */
+	public int size() {
+		return mSize;
+	}
+	
+	public long getTimestamp(int i) {
+		return mTimestamps[i];
+	}
+	
+	public float getX(int i) {
+		return mValues[i*3];
+	}
+	
+	public float getY(int i) {
+		return mValues[i*3+1];
+	}
+	
+	public float getZ(int i) {
+		return mValues[i*3+2];
+	}
+	
+	/**
+	 * @return The average sample rate of the trace in Hz
+	 */
+	public double getSampleRate() {
+		if(mSize < 2) {
+			return 0;
+		}
+		return (mSize-1) / ((mTimestamps[mSize-1] - mTimestamps[0]) / 1e9);
+	}
+	
+	/**
+	 * Feed every sample of the trace through the detector, in order
+	 * 
+	 * @param detector
+	 * @return the number of shakes detected
+	 */
+	public int replay(ShakeDetector detector) {
+		return detector.onBatch(mTimestamps, mValues, 0, mSize);
+	}
+	
+	/**
+	 * Read a trace from CSV with one sample per line: timestampNanos,x,y,z
+	 * 
+	 * Empty lines and lines starting with # are skipped.
+	 * 
+	 * @param in
+	 * @return the trace
+	 * @throws IOException if reading fails or a line cannot be parsed
+	 */
+	public static SensorTrace readCsv(Reader in) throws IOException {
+		
+		BufferedReader reader = new BufferedReader(in);
+		SensorTrace trace = new SensorTrace(1024);
+		
+		String line;
+		int lineNr = 0;
+		while( (line = reader.readLine()) != null ) {
+			lineNr++;
+			line = line.trim();
+			
+			if(line.length() == 0 || line.charAt(0) == '#') {
+				continue;
+			}
+			
+			String[] parts = line.split(",");
+			if(parts.length < 4) {
+				throw new IOException("Invalid sample on line "+lineNr+": "+line);
+			}
+			
+			try {
+				trace.add( Long.parseLong(parts[0].trim()), 
+						Float.parseFloat(parts[1].trim()), 
+						Float.parseFloat(parts[2].trim()), 
+						Float.parseFloat(parts[3].trim()) );
+			} catch(NumberFormatException e) {
+				throw new IOException("Invalid sample on line "+lineNr+": "+line);
+			}
+		}
+		
+		return trace;
+	}
+	
+	/**
+	 * Write the trace in the binary format: magic "GNST", version and sample count, then for every 
+	 * sample the timestamp as a long and x, y, z as floats, all big-endian
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeBinary(OutputStream out) throws IOException {
+		
+		DataOutputStream data = new DataOutputStream( new BufferedOutputStream(out) );
+		
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(mSize);
+		
+		for(int i=0; i < mSize; i++) {
+			data.writeLong(mTimestamps[i]);
+			data.writeFloat(mValues[i*3]);
+			data.writeFloat(mValues[i*3+1]);
+			data.writeFloat(mValues[i*3+2]);
+		}
+		
+		data.flush();
+	}
+	
+	/**
+	 * Read a trace written with writeBinary
+	 * 
+	 * @param in
+	 * @return the trace
+	 * @throws IOException if reading fails or the stream is not a trace
+	 */
+	public static SensorTrace readBinary(InputStream in) throws IOException {
+		
+		DataInputStream data = new DataInputStream( new BufferedInputStream(in) );
+		
+		if(data.readInt() != MAGIC) {
+			throw new IOException("Not a sensor trace");
+		}
+		int version = data.readInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported sensor trace version "+version);
+		}
+		
+		int size = data.readInt();
+		SensorTrace trace = new SensorTrace(size);
+		
+		for(int i=0; i < size; i++) {
+			trace.add(data.readLong(), data.readFloat(), data.readFloat(), data.readFloat());
+		}
+		
+		return trace;
+	}
+}
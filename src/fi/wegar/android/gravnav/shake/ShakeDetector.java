@@ -0,0 +1,179 @@
+package fi.wegar.android.gravnav.shake;
+
+/**
+ * Platform independent shake detection. Accelerometer samples are fed in one at a time through
+ * {@link #onSample(long, float, float, float)} and a shake is reported to the listener whenever the 
+ * change in acceleration between two updates exceeds the threshold.
+ * 
+ * The detector holds no references to Android classes and does not allocate per sample, so it can be 
+ * driven from a SensorEventListener as well as from recorded traces on a plain JVM.
+ * 
+ * Instances are not thread safe, all samples must be delivered from the same thread.
+ */
+public class ShakeDetector {
+
+	/**
+	 * Receives the shake events found by a ShakeDetector
+	 */
+	public interface OnShakeListener {
+		
+		/**
+		 * Called when a shake has been detected
+		 * 
+		 * @param timestampNanos The timestamp of the sample that crossed the threshold
+		 * @param intensity The delta that triggered the shake, always above the threshold
+		 */
+		void onShake(long timestampNanos, float intensity);
+	}
+	
+	/**
+	 * The default delta threshold at which a shake is considered to have taken place
+	 */
+	public static final float DEFAULT_THRESHOLD = 700;
+	
+	/**
+	 * The default nr of ns between each update of the shake calculations
+	 */
+	public static final long DEFAULT_MIN_INTERVAL_NANOS = 100 * 1000000L;
+	
+	private final float mThreshold;
+	private final long mMinIntervalNanos;
+	
+	private OnShakeListener mListener;
+	
+	private boolean mHasLast = false;
+	private long mLastUpdate;
+	// hold the last known values of the accelerometer for the next update
+	private float mLastX, mLastY, mLastZ;
+	
+	private long mThrottledCount = 0;
+	
+	
+	public ShakeDetector(OnShakeListener listener) {
+		this(DEFAULT_THRESHOLD, DEFAULT_MIN_INTERVAL_NANOS, listener);
+	}
+	
+	/**
+	 * 
+	 * @param threshold The delta above which a sample is considered a shake
+	 * @param minIntervalNanos Samples arriving sooner than this after the last update are ignored
+	 * @param listener
+	 */
+	public ShakeDetector(float threshold, long minIntervalNanos, OnShakeListener listener) {
+		mThreshold = threshold;
+		mMinIntervalNanos = minIntervalNanos;
+		mListener = listener;
+	}
+	
+	/**
+	 * @param listener the listener to set
+	 */
+	public void setOnShakeListener(OnShakeListener listener) {
+		mListener = listener;
+	}
+	
+	/**
+	 * @return the threshold
+	 */
+	public float getThreshold() {
+		return mThreshold;
+	}
+	
+	/**
+	 * @return the minimum interval between updates in ns
+	 */
+	public long getMinIntervalNanos() {
+		return mMinIntervalNanos;
+	}
+	
+	/**
+	 * @return the number of samples ignored so far because they arrived within the minimum interval
+	 */
+	public long getThrottledCount() {
+		return mThrottledCount;
+	}
+	
+	/**
+	 * Report a shake to the listener, if one is set
+	 */
+	protected void notifyShake(long timestampNanos, float intensity) {
+		if(mListener != null) {
+			mListener.onShake(timestampNanos, intensity);
+		}
+	}
+	
+	/**
+	 * Forget the previous sample, the next sample will only be used as the reference for the one after it
+	 */
+	public void reset() {
+		mHasLast = false;
+	}
+	
+	/**
+	 * Process one accelerometer sample
+	 * 
+	 * @param timestampNanos Monotonic timestamp of the sample, e.g. SensorEvent.timestamp
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return true if the sample was detected as a shake
+	 */
+	public boolean onSample(long timestampNanos, float x, float y, float z) {
+		
+		if(!mHasLast) {
+			// nothing to compare against yet
+			mHasLast = true;
+			mLastUpdate = timestampNanos;
+			mLastX = x;
+			mLastY = y;
+			mLastZ = z;
+			
+			return false;
+		}
+		
+		long diffTime = timestampNanos - mLastUpdate;
+		
+		// only allow one update every mMinIntervalNanos
+		if(diffTime <= mMinIntervalNanos) {
+			mThrottledCount++;
+			return false;
+		}
+		
+		mLastUpdate = timestampNanos;
+		
+		// calculate the total delta since last update, scaled per ms
+		float delta = Math.abs(x+y+z - mLastX - mLastY - mLastZ) / (diffTime / 1000000f) * 10000;
+		
+		mLastX = x;
+		mLastY = y;
+		mLastZ = z;
+		
+		if(delta > mThreshold) {
+			notifyShake(timestampNanos, delta);
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Process a batch of samples in order, with the same result as calling onSample for each of them
+	 * 
+	 * @param timestamps The sample timestamps in ns
+	 * @param values x, y, z values interleaved, three floats per sample
+	 * @param offset The index of the first sample
+	 * @param count The number of samples to process
+	 * @return the number of shakes detected
+	 */
+	public int onBatch(long[] timestamps, float[] values, int offset, int count) {
+		int shakes = 0;
+		
+		for(int i=offset; i < offset+count; i++) {
+			if( onSample(timestamps[i], values[i*3], values[i*3+1], values[i*3+2]) ) {
+				shakes++;
+			}
+		}
+		
+		return shakes;
+	}
+}
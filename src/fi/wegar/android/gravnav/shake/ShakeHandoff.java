@@ -0,0 +1,49 @@
+package fi.wegar.android.gravnav.shake;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free handoff of shakes from one producer thread to one consumer thread. The producer publishes 
+ * every shake it detects and wakes the consumer only when the slot was empty; the consumer takes 
+ * everything published since its last take in one ShakeSnapshot.
+ */
+public class ShakeHandoff {
+
+	private final AtomicReference<ShakeSnapshot> mPending = new AtomicReference<ShakeSnapshot>();
+	
+	
+	/**
+	 * Publish a shake. Called by the producer.
+	 * 
+	 * @param timestampNanos
+	 * @param receivedNanos
+	 * @param intensity
+	 * @return true if the consumer has to be told to take it, false if it already has been
+	 */
+	public boolean publish(long timestampNanos, long receivedNanos, float intensity) {
+		while(true) {
+			ShakeSnapshot previous = mPending.get();
+			ShakeSnapshot next = ShakeSnapshot.merge(previous, timestampNanos, receivedNanos, intensity);
+			
+			if(mPending.compareAndSet(previous, next)) {
+				return previous == null;
+			}
+		}
+	}
+	
+	/**
+	 * Take the shakes published since the last take. Called by the consumer.
+	 * 
+	 * @return The merged shakes, or null if there are none
+	 */
+	public ShakeSnapshot take() {
+		return mPending.getAndSet(null);
+	}
+	
+	/**
+	 * Drop any published shakes
+	 */
+	public void clear() {
+		mPending.set(null);
+	}
+}
@@ -0,0 +1,51 @@
+package fi.wegar.android.gravnav.shake;
+
+/**
+ * Immutable record of the shakes detected since the consumer last looked, handed from the thread that 
+ * runs the detector to the one that runs the spin. Shakes that arrive before the consumer gets to them 
+ * are merged: their intensities add up, the same as if they had been applied to the spin at once.
+ */
+public final class ShakeSnapshot {
+
+	/**
+	 * The summed intensity of the merged shakes
+	 */
+	public final float intensity;
+	
+	/**
+	 * The number of merged shakes
+	 */
+	public final int count;
+	
+	/**
+	 * The sensor timestamp of the last merged shake
+	 */
+	public final long timestampNanos;
+	
+	/**
+	 * When the sample that triggered the first merged shake was received, on the System.nanoTime() clock
+	 */
+	public final long receivedNanos;
+	
+	
+	public ShakeSnapshot(float intensity, int count, long timestampNanos, long receivedNanos) {
+		this.intensity = intensity;
+		this.count = count;
+		this.timestampNanos = timestampNanos;
+		this.receivedNanos = receivedNanos;
+	}
+	
+	/**
+	 * @param previous The snapshot not yet taken by the consumer, or null
+	 * @param timestampNanos
+	 * @param receivedNanos
+	 * @param intensity
+	 * @return A snapshot with the new shake merged into the previous one
+	 */
+	public static ShakeSnapshot merge(ShakeSnapshot previous, long timestampNanos, long receivedNanos, float intensity) {
+		if(previous == null) {
+			return new ShakeSnapshot(intensity, 1, timestampNanos, receivedNanos);
+		}
+		return new ShakeSnapshot(previous.intensity + intensity, previous.count + 1, timestampNanos, previous.receivedNanos);
+	}
+}
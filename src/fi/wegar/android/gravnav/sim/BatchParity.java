@@ -0,0 +1,175 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.wegar.android.gravnav.shake.GravityShakeDetector;
+import fi.wegar.android.gravnav.shake.SampleRingBuffer;
+import fi.wegar.android.gravnav.shake.SensorTrace;
+import fi.wegar.android.gravnav.shake.ShakeDetector;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+
+/**
+ * Checks that batched sensor ingestion detects the same shakes as handing every event to the detector.
+ *
+ * Each trace is fed to two detectors of the same kind: one sample at a time, and through a SampleRingBuffer
+ * drained the way GravNav does, a batch interval after the first sample of a batch plus a random delay of
+ * the thread. Both must report the same shakes at the same timestamps with the same intensities, for the
+ * summed delta and the gravity filtered detector.
+ *
+ * Without arguments, synthetic traces at several sample rates are checked.
+ *
+ * Run from the command line: BatchParity [trace.csv|trace.bin ...]
+ */
+public class BatchParity {
+
+	/**
+	 * The same as GravNav
+	 */
+	static final long BATCH_INTERVAL_NANOS = 16000000L;
+	static final int SAMPLE_BUFFER_SIZE = 256;
+	
+	/**
+	 * The longest a drain is late, a busy thread
+	 */
+	static final long MAX_DRAIN_DELAY_NANOS = 50000000L;
+	
+	
+	/**
+	 * The outcome of comparing one trace with one kind of detector
+	 */
+	public static class Result {
+		
+		public int perEventShakes;
+		public int batchedShakes;
+		public int mismatches;
+		public long dropped;
+		public int batches;
+	}
+	
+	/**
+	 * Collects the shakes of a detector
+	 */
+	static class ShakeLog implements ShakeDetector.OnShakeListener {
+		
+		final List<long[]> shakes = new ArrayList<long[]>();
+		
+		public void onShake(long timestampNanos, float intensity) {
+			shakes.add( new long[] { timestampNanos, Float.floatToIntBits(intensity) } );
+		}
+	}
+	
+	
+	static ShakeDetector createDetector(boolean gravityFiltered, ShakeDetector.OnShakeListener listener) {
+		return gravityFiltered ? new GravityShakeDetector(listener) : new ShakeDetector(listener);
+	}
+	
+	/**
+	 * Feed a trace to a detector one sample at a time and to another through a ring buffer, and compare the shakes
+	 *
+	 * @param trace
+	 * @param gravityFiltered
+	 * @param random Delays the drains
+	 * @return
+	 */
+	public static Result compare(SensorTrace trace, boolean gravityFiltered, Xoshiro256Random random) {
+		
+		Result result = new Result();
+		
+		ShakeLog perEvent = new ShakeLog();
+		ShakeDetector perEventDetector = createDetector(gravityFiltered, perEvent);
+		
+		ShakeLog batched = new ShakeLog();
+		ShakeDetector batchedDetector = createDetector(gravityFiltered, batched);
+		SampleRingBuffer buffer = new SampleRingBuffer(SAMPLE_BUFFER_SIZE);
+		
+		float[] values = new float[3];
+		long drainAt = Long.MAX_VALUE;
+		
+		for(int i=0; i < trace.size(); i++) {
+			long timestamp = trace.getTimestamp(i);
+			values[0] = trace.getX(i);
+			values[1] = trace.getY(i);
+			values[2] = trace.getZ(i);
+			
+			perEventDetector.onSample(timestamp, values[0], values[1], values[2]);
+			
+			// the drain runs on the same thread as the sensor events, between two of them
+			if(timestamp >= drainAt) {
+				buffer.drainTo(batchedDetector);
+				result.batches++;
+				drainAt = Long.MAX_VALUE;
+			}
+			
+			buffer.write(timestamp, values);
+			
+			if(drainAt == Long.MAX_VALUE) {
+				drainAt = timestamp + BATCH_INTERVAL_NANOS + (long) (random.nextDouble() * random.nextDouble() * MAX_DRAIN_DELAY_NANOS);
+			}
+		}
+		
+		buffer.drainTo(batchedDetector);
+		result.batches++;
+		result.dropped = buffer.getOverflowCount();
+		
+		result.perEventShakes = perEvent.shakes.size();
+		result.batchedShakes = batched.shakes.size();
+		
+		for(int i=0; i < Math.max(result.perEventShakes, result.batchedShakes); i++) {
+			if(i >= result.perEventShakes || i >= result.batchedShakes) {
+				result.mismatches++;
+				continue;
+			}
+			
+			long[] a = perEvent.shakes.get(i);
+			long[] b = batched.shakes.get(i);
+			if(a[0] != b[0] || a[1] != b[1]) {
+				result.mismatches++;
+			}
+		}
+		
+		return result;
+	}
+	
+	private static boolean report(String name, SensorTrace trace, Xoshiro256Random random) {
+		
+		boolean ok = true;
+		
+		for(int gravity=0; gravity < 2; gravity++) {
+			Result result = compare(trace, gravity == 1, random);
+			
+			System.out.println( String.format("%-20s %-15s %6d batches %5d per event %5d batched %5d mismatches %5d dropped",
+					name, (gravity == 1) ? "gravity" : "summed delta", result.batches, result.perEventShakes,
+					result.batchedShakes, result.mismatches, result.dropped) );
+			
+			// a dropped sample means the buffer is too small for the rate, that fails as well
+			ok &= result.mismatches == 0 && result.dropped == 0;
+		}
+		
+		return ok;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		
+		Xoshiro256Random random = new Xoshiro256Random(2);
+		boolean ok = true;
+		
+		if(args.length > 0) {
+			for(String arg : args) {
+				File file = new File(arg);
+				ok &= report( file.getName(), TraceReplay.readTrace(file), random );
+			}
+		} else {
+			for(int rate : ShakeParity.RATES) {
+				SensorTrace trace = ShakeParity.synthesize(1000000000L / rate, ShakeParity.SECONDS, random, null);
+				ok &= report( rate + " Hz", trace, random );
+			}
+		}
+		
+		if(!ok) {
+			System.exit(1);
+		}
+	}
+}
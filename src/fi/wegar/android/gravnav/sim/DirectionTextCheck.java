@@ -0,0 +1,144 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.util.Locale;
+
+import fi.wegar.android.gravnav.DirectionToTextConverter;
+
+/**
+ * Checks every entry of the DirectionToTextConverter lookup tables against the text built without them,
+ * and measures what a lookup costs compared to building the text.
+ *
+ * The strings are stand-ins made of the locale and the resource id, so a text left over from another
+ * locale is caught as well. Every number of choices up to a few past the cached maximum is checked with
+ * every direction, including the invalid ones around them, and every turn with every compass point.
+ *
+ * Run from the command line: DirectionTextCheck [lookups]
+ */
+public class DirectionTextCheck {
+
+	static final Locale[] LOCALES = { Locale.ENGLISH, new Locale("fi"), Locale.ENGLISH };
+	
+	/**
+	 * Angles and bearings are checked in steps of this many degrees
+	 */
+	static final float ANGLE_STEP = 0.5f;
+	
+	/**
+	 * The nr of timed lookups by default
+	 */
+	static final int LOOKUPS = 1000000;
+	
+	
+	/**
+	 * Strings of the form locale#id, a new instance for every string like the resources would return
+	 */
+	static class FakeStrings implements DirectionToTextConverter.Strings {
+		
+		final Locale locale;
+		
+		FakeStrings(Locale locale) {
+			this.locale = locale;
+		}
+		
+		public Locale getLocale() {
+			return locale;
+		}
+		
+		public String getString(int resId) {
+			return new StringBuilder( locale.getLanguage() ).append('#').append(resId).toString();
+		}
+	}
+	
+	
+	/**
+	 * @return The number of entries that differ from the uncached text
+	 */
+	static int check(DirectionToTextConverter.Strings strings, int maxChoices) {
+		
+		int mismatches = 0;
+		
+		for(int numChoices=1; numChoices <= maxChoices; numChoices++) {
+			for(int dir=-1; dir <= numChoices+1; dir++) {
+				String cached = DirectionToTextConverter.getText(dir, numChoices, strings);
+				String uncached = DirectionToTextConverter.getUncachedText(dir, numChoices, strings);
+				
+				if(!cached.equals(uncached)) {
+					System.out.println( String.format("%d of %d: \"%s\" instead of \"%s\"", dir, numChoices, cached, uncached) );
+					mismatches++;
+				}
+			}
+		}
+		
+		for(float angle=0; angle <= 360; angle += ANGLE_STEP) {
+			for(float bearing=-ANGLE_STEP; bearing <= 360; bearing += ANGLE_STEP) {
+				// one step below zero stands for an unknown bearing
+				float b = (bearing < 0) ? Float.NaN : bearing;
+				
+				String cached = DirectionToTextConverter.getText(angle, b, strings);
+				String uncached = DirectionToTextConverter.getUncachedText(angle, b, strings);
+				
+				if(!cached.equals(uncached)) {
+					System.out.println( String.format("angle %.1f, bearing %.1f: \"%s\" instead of \"%s\"", angle, b, cached, uncached) );
+					mismatches++;
+				}
+			}
+		}
+		
+		return mismatches;
+	}
+	
+	/**
+	 * @return The mean time of a lookup in ns, cycling through the directions of 2 to 8 choices
+	 */
+	static double time(DirectionToTextConverter.Strings strings, boolean cached, int lookups) {
+		
+		int length = 0;
+		long start = System.nanoTime();
+		
+		for(int i=0; i < lookups; i++) {
+			int numChoices = 2 + i % 7;
+			int dir = 1 + (i / 7) % numChoices;
+			
+			String text = cached ? DirectionToTextConverter.getText(dir, numChoices, strings)
+					: DirectionToTextConverter.getUncachedText(dir, numChoices, strings);
+			length += text.length();
+		}
+		
+		double nanos = (double) (System.nanoTime() - start) / lookups;
+		
+		// keeps the loop from being optimized away
+		if(length == 0) {
+			System.out.println();
+		}
+		
+		return nanos;
+	}
+	
+	public static void main(String[] args) {
+		
+		int lookups = (args.length > 0) ? Integer.parseInt(args[0]) : LOOKUPS;
+		int maxChoices = DirectionToTextConverter.DEFAULT_MAX_CACHED_CHOICES + 4;
+		
+		int mismatches = 0;
+		for(Locale locale : LOCALES) {
+			int m = check(new FakeStrings(locale), maxChoices);
+			System.out.println( String.format("%-3s %d mismatches", locale.getLanguage(), m) );
+			mismatches += m;
+		}
+		
+		FakeStrings strings = new FakeStrings(Locale.ENGLISH);
+		for(int round=0; round < 2; round++) {
+			// the first round warms up the JIT
+			double cached = time(strings, true, lookups);
+			double uncached = time(strings, false, lookups);
+			
+			if(round == 1) {
+				System.out.println( String.format("lookup %.1f ns, building the text %.1f ns", cached, uncached) );
+			}
+		}
+		
+		if(mismatches > 0) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.io.File;
+import java.io.IOException;
+
+import fi.wegar.android.gravnav.heading.HeadingFilter;
+import fi.wegar.android.gravnav.shake.SensorTrace;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+
+/**
+ * Validates the HeadingFilter off-device.
+ *
+ * Without arguments, a phone held tilted towards the user is turned through a synthetic sequence of
+ * still periods, turns and a shake, with sensor noise, a magnetic field at Finnish inclination and a
+ * biased gyroscope. The filtered heading is compared to the true one, with and without the gyroscope,
+ * and the error, the lag and the time per sample are printed.
+ *
+ * With recorded traces, the samples are merged by timestamp, fed to the filter and the heading is
+ * printed as CSV: timestamp in ns, heading in degrees.
+ *
+ * Run from the command line: HeadingSimulator [accelerometer magnetometer [gyroscope]]
+ */
+public class HeadingSimulator {
+	
+	static final float GRAVITY = HeadingFilter.GRAVITY;
+	
+	/**
+	 * Total field and inclination of the magnetic field, about right for southern Finland
+	 */
+	static final double FIELD_UT = 52;
+	static final double INCLINATION = Math.toRadians(73);
+	
+	/**
+	 * Sample intervals of the synthetic sensors
+	 */
+	static final long ACCELEROMETER_INTERVAL = 20000000L;
+	static final long MAGNETOMETER_INTERVAL = 20000000L;
+	static final long GYROSCOPE_INTERVAL = 10000000L;
+	static final long STEP = 10000000L;
+	
+	/**
+	 * The phone is tilted this much from lying flat, top edge up
+	 */
+	static final double PITCH = Math.toRadians(35);
+	
+	static final double GYRO_BIAS = 0.01;
+	
+	/**
+	 * The longest lag searched for, in steps
+	 */
+	static final int MAX_LAG_STEPS = 50;
+	
+	
+	/**
+	 * The outcome of a synthetic run
+	 */
+	public static class Result {
+		
+		public double stillRmsDegrees;
+		public double turningRmsDegrees;
+		
+		/**
+		 * The largest error after the shake, while the phone is held still
+		 */
+		public double shakeErrorDegrees;
+		
+		public double lagMillis;
+		public double nanosPerSample;
+		public int samples;
+	}
+	
+	
+	/**
+	 * The true heading of the synthetic run, in radians, at the given time
+	 */
+	static double getTrueHeading(double seconds) {
+		
+		if(seconds < 5) {
+			return Math.toRadians(10);
+		} else if(seconds < 6) {
+			// a quick quarter turn right
+			return Math.toRadians(10 + 90 * (seconds - 5));
+		} else if(seconds < 10) {
+			return Math.toRadians(100);
+		} else if(seconds < 14) {
+			// a slow half turn left, passing north
+			return Math.toRadians(100 - 45 * (seconds - 10));
+		} else if(seconds < 18) {
+			return Math.toRadians(280);
+		} else if(seconds < 20) {
+			// looking around
+			return Math.toRadians(280 + 40 * Math.sin(Math.PI * (seconds - 18)));
+		}
+		return Math.toRadians(280);
+	}
+	
+	/**
+	 * @return true while the synthetic phone is being shaken
+	 */
+	static boolean isShaking(double seconds) {
+		return seconds >= 22 && seconds < 23;
+	}
+	
+	static final double DURATION = 28;
+	
+	/**
+	 * Run the synthetic sequence through a filter
+	 *
+	 * @param useGyroscope
+	 * @param random
+	 */
+	public static Result simulate(boolean useGyroscope, Xoshiro256Random random) {
+		
+		HeadingFilter filter = new HeadingFilter();
+		
+		int steps = (int) (DURATION * 1e9 / STEP);
+		double[] truth = new double[steps];
+		double[] estimate = new double[steps];
+		boolean[] valid = new boolean[steps];
+		
+		float[] device = new float[3];
+		int samples = 0;
+		long filterNanos = 0;
+		
+		for(int i=0; i < steps; i++) {
+			
+			long now = i * STEP;
+			double seconds = now / 1e9;
+			double heading = getTrueHeading(seconds);
+			boolean shaking = isShaking(seconds);
+			
+			if(shaking) {
+				// the hand twists the phone back and forth while shaking it
+				heading += Math.toRadians(25) * Math.sin(2*Math.PI * 4 * seconds);
+			}
+			truth[i] = HeadingFilter.wrapTwoPi(heading);
+			
+			if(now % ACCELEROMETER_INTERVAL == 0) {
+				toDevice(heading, 0, 0, GRAVITY, device);
+				float shake = shaking ? (float) (15 * Math.sin(2*Math.PI * 4 * seconds)) : 0;
+				addNoise(device, random, 0.1f);
+				
+				long start = System.nanoTime();
+				filter.onAccelerometer(now, device[0] + shake, device[1], device[2]);
+				filterNanos += System.nanoTime() - start;
+				samples++;
+			}
+			
+			if(now % MAGNETOMETER_INTERVAL == STEP) {
+				toDevice(heading, 0, FIELD_UT * Math.cos(INCLINATION), -FIELD_UT * Math.sin(INCLINATION), device);
+				addNoise(device, random, 0.6f);
+				
+				long start = System.nanoTime();
+				filter.onMagneticField(now, device[0], device[1], device[2]);
+				filterNanos += System.nanoTime() - start;
+				samples++;
+			}
+			
+			if(useGyroscope && now % GYROSCOPE_INTERVAL == 0) {
+				// rotation around the up axis, in device coordinates
+				double rate = (getTrueHeading(seconds + 0.001) - getTrueHeading(seconds - 0.001)) / 0.002;
+				if(shaking) {
+					rate += Math.toRadians(25) * 2*Math.PI * 4 * Math.cos(2*Math.PI * 4 * seconds);
+				}
+				toDevice(heading, 0, 0, -rate, device);
+				addNoise(device, random, 0.02f);
+				
+				long start = System.nanoTime();
+				filter.onGyroscope(now, device[0] + (float) GYRO_BIAS, device[1] + (float) GYRO_BIAS, device[2] + (float) GYRO_BIAS);
+				filterNanos += System.nanoTime() - start;
+				samples++;
+			}
+			
+			valid[i] = filter.hasHeading();
+			estimate[i] = filter.getHeading();
+		}
+		
+		Result result = new Result();
+		result.samples = samples;
+		result.nanosPerSample = (double) filterNanos / samples;
+		
+		// errors, skipping the first second while the filter settles
+		double still = 0, turning = 0;
+		int stillCount = 0, turningCount = 0;
+		
+		for(int i=(int) (1e9 / STEP); i < steps; i++) {
+			
+			double seconds = i * STEP / 1e9;
+			if(!valid[i] || (seconds >= 22 && seconds < 24)) {
+				continue;
+			}
+			
+			double error = Math.toDegrees( HeadingFilter.wrapPi(estimate[i] - truth[i]) );
+			
+			if(getTrueHeading(seconds) == getTrueHeading(seconds - 0.1)) {
+				still += error * error;
+				stillCount++;
+			} else {
+				turning += error * error;
+				turningCount++;
+			}
+			
+			if(seconds >= 23 + HeadingFilter.DISTURBANCE_HOLD_NANOS / 1e9) {
+				result.shakeErrorDegrees = Math.max(result.shakeErrorDegrees, Math.abs(error));
+			}
+		}
+		
+		result.stillRmsDegrees = Math.sqrt(still / Math.max(1, stillCount));
+		result.turningRmsDegrees = Math.sqrt(turning / Math.max(1, turningCount));
+		result.lagMillis = getLag(truth, estimate, valid) * STEP / 1e6;
+		
+		return result;
+	}
+	
+	/**
+	 * @return The delay, in steps, that best lines up the estimate with the truth during the turns
+	 */
+	static int getLag(double[] truth, double[] estimate, boolean[] valid) {
+		
+		int best = 0;
+		double bestError = Double.MAX_VALUE;
+		
+		for(int lag=0; lag <= MAX_LAG_STEPS; lag++) {
+			
+			double sum = 0;
+			
+			// the first two turns, away from the shake
+			for(int i=(int) (4e9 / STEP); i < (int) (20e9 / STEP); i++) {
+				if(valid[i]) {
+					double error = HeadingFilter.wrapPi(estimate[i] - truth[i - lag]);
+					sum += error * error;
+				}
+			}
+			
+			if(sum < bestError) {
+				bestError = sum;
+				best = lag;
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Express a vector given in east, north, up coordinates in the coordinates of a phone with the given
+	 * heading, pitched up by PITCH
+	 */
+	static void toDevice(double heading, double east, double north, double up, float[] out) {
+		
+		double sin = Math.sin(heading), cos = Math.cos(heading);
+		double pitchSin = Math.sin(PITCH), pitchCos = Math.cos(PITCH);
+		
+		// the device axes in world coordinates
+		double xE = cos, xN = -sin;
+		double yE = sin * pitchCos, yN = cos * pitchCos, yU = pitchSin;
+		double zE = -sin * pitchSin, zN = -cos * pitchSin, zU = pitchCos;
+		
+		out[0] = (float) (east*xE + north*xN);
+		out[1] = (float) (east*yE + north*yN + up*yU);
+		out[2] = (float) (east*zE + north*zN + up*zU);
+	}
+	
+	private static void addNoise(float[] values, Xoshiro256Random random, float amplitude) {
+		for(int i=0; i < values.length; i++) {
+			values[i] += (random.nextFloat()*2 - 1) * amplitude;
+		}
+	}
+	
+	/**
+	 * Feed recorded traces to a filter in timestamp order and print the heading after each magnetometer
+	 * or gyroscope sample
+	 */
+	static void replay(SensorTrace accelerometer, SensorTrace magnetometer, SensorTrace gyroscope) {
+		
+		HeadingFilter filter = new HeadingFilter();
+		int a = 0, m = 0, g = 0;
+		int gyroscopeSize = (gyroscope == null) ? 0 : gyroscope.size();
+		
+		System.out.println("timestamp,heading");
+		
+		while(a < accelerometer.size() || m < magnetometer.size() || g < gyroscopeSize) {
+			
+			long aTime = (a < accelerometer.size()) ? accelerometer.getTimestamp(a) : Long.MAX_VALUE;
+			long mTime = (m < magnetometer.size()) ? magnetometer.getTimestamp(m) : Long.MAX_VALUE;
+			long gTime = (g < gyroscopeSize) ? gyroscope.getTimestamp(g) : Long.MAX_VALUE;
+			
+			boolean updated;
+			long time;
+			
+			if(aTime <= mTime && aTime <= gTime) {
+				filter.onAccelerometer(aTime, accelerometer.getX(a), accelerometer.getY(a), accelerometer.getZ(a));
+				a++;
+				continue;
+			} else if(mTime <= gTime) {
+				updated = filter.onMagneticField(mTime, magnetometer.getX(m), magnetometer.getY(m), magnetometer.getZ(m));
+				time = mTime;
+				m++;
+			} else {
+				updated = filter.onGyroscope(gTime, gyroscope.getX(g), gyroscope.getY(g), gyroscope.getZ(g));
+				time = gTime;
+				g++;
+			}
+			
+			if(updated) {
+				System.out.println( String.format("%d,%.2f", time, Math.toDegrees(filter.getHeading())) );
+			}
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		
+		if(args.length >= 2) {
+			replay(TraceReplay.readTrace(new File(args[0])), TraceReplay.readTrace(new File(args[1])),
+					(args.length > 2) ? TraceReplay.readTrace(new File(args[2])) : null);
+			return;
+		}
+		
+		for(int round=0; round < 2; round++) {
+			// the first round warms up the JIT
+			for(int gyroscope=0; gyroscope < 2; gyroscope++) {
+				
+				Result result = simulate(gyroscope == 1, new Xoshiro256Random(round));
+				
+				if(round == 1) {
+					System.out.println( String.format("%-15s still %.2f deg rms, turning %.2f deg rms, lag %.0f ms, after shake %.2f deg, %.0f ns per sample",
+							(gyroscope == 1) ? "with gyroscope" : "magnetometer", result.stillRmsDegrees, result.turningRmsDegrees,
+							result.lagMillis, result.shakeErrorDegrees, result.nanosPerSample) );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,346 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fi.wegar.android.gravnav.shake.SensorTrace;
+import fi.wegar.android.gravnav.util.GravNavConfig;
+
+/**
+ * Grid search over the shake and spin parameters. Every configuration replays a library of labeled 
+ * traces through the app's pipeline with TraceReplay, and is scored on missed and false shakes, time 
+ * to detection and spin duration. Configurations are evaluated in parallel, one task each.
+ * 
+ * The library is a labels file with one trace per line: path,label[,onset ms]. The path is relative to 
+ * the labels file, the label is shake or none and the onset is when the shake starts in the trace, from 
+ * which the time to detection is measured (the start of the trace if left out).
+ * 
+ * Run from the command line: 
+ * ParameterTuner labels.csv [-threshold 500,700,900] [-interval 50,100] [-stop 100,150] [-decay 0.08,0.1] 
+ * [-duration target s] [-out best.properties]
+ */
+public class ParameterTuner {
+
+	/**
+	 * Score weights: a wrong trace costs 1, a second of detection time LATENCY_WEIGHT and being a 
+	 * whole target duration off DURATION_WEIGHT
+	 */
+	static final double LATENCY_WEIGHT = 0.1;
+	static final double DURATION_WEIGHT = 0.05;
+	
+	static final double DEFAULT_TARGET_DURATION = 4;
+	
+	
+	/**
+	 * A recorded trace and whether it contains a shake
+	 */
+	public static class LabeledTrace {
+		
+		public final String name;
+		public final SensorTrace trace;
+		public final boolean shake;
+		
+		/**
+		 * When the shake starts, relative to the first sample
+		 */
+		public final long onsetNanos;
+		
+		public LabeledTrace(String name, SensorTrace trace, boolean shake, long onsetNanos) {
+			this.name = name;
+			this.trace = trace;
+			this.shake = shake;
+			this.onsetNanos = onsetNanos;
+		}
+	}
+	
+	/**
+	 * How one configuration did on the library
+	 */
+	public static class Evaluation {
+		
+		public final GravNavConfig config;
+		
+		public final double falsePositiveRate;
+		public final double falseNegativeRate;
+		
+		/**
+		 * Mean over the detected shake traces, in s
+		 */
+		public final double detectionTime;
+		public final double spinDuration;
+		
+		public final double score;
+		
+		public Evaluation(GravNavConfig config, double falsePositiveRate, double falseNegativeRate, 
+				double detectionTime, double spinDuration, double score) {
+			this.config = config;
+			this.falsePositiveRate = falsePositiveRate;
+			this.falseNegativeRate = falseNegativeRate;
+			this.detectionTime = detectionTime;
+			this.spinDuration = spinDuration;
+			this.score = score;
+		}
+	}
+	
+	
+	/**
+	 * Replay every trace with one configuration
+	 * 
+	 * @param config
+	 * @param traces
+	 * @param targetDuration The spin duration in s that scores best
+	 * @return
+	 */
+	public static Evaluation evaluate(GravNavConfig config, List<LabeledTrace> traces, double targetDuration) {
+		
+		TraceReplay replay = new TraceReplay();
+		replay.setConfig(config);
+		
+		int shakeTraces = 0, noneTraces = 0;
+		int falsePositives = 0, falseNegatives = 0;
+		int detected = 0;
+		double detectionTime = 0;
+		double duration = 0;
+		
+		for(LabeledTrace labeled : traces) {
+			
+			TraceReplay.Result result = replay.replay(labeled.trace);
+			
+			if(!labeled.shake) {
+				noneTraces++;
+				if(!result.spins.isEmpty()) {
+					falsePositives++;
+				}
+				continue;
+			}
+			
+			shakeTraces++;
+			if(result.spins.isEmpty()) {
+				falseNegatives++;
+				continue;
+			}
+			
+			TraceReplay.Spin spin = result.spins.get(0);
+			detected++;
+			detectionTime += Math.max(0, spin.shakeNanos - labeled.onsetNanos) / 1e9;
+			duration += spin.getDurationNanos() / 1e9;
+		}
+		
+		double fpRate = (noneTraces == 0) ? 0 : (double) falsePositives / noneTraces;
+		double fnRate = (shakeTraces == 0) ? 0 : (double) falseNegatives / shakeTraces;
+		
+		if(detected > 0) {
+			detectionTime /= detected;
+			duration /= detected;
+		}
+		
+		double score = fpRate + fnRate + LATENCY_WEIGHT * detectionTime 
+				+ DURATION_WEIGHT * Math.abs(duration - targetDuration) / targetDuration;
+		
+		return new Evaluation(config, fpRate, fnRate, detectionTime, duration, score);
+	}
+	
+	/**
+	 * Evaluate every configuration in parallel
+	 * 
+	 * @param configs
+	 * @param traces Only read, shared by the tasks
+	 * @param targetDuration
+	 * @param executor
+	 * @return The evaluations, best score first
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static List<Evaluation> search(List<GravNavConfig> configs, final List<LabeledTrace> traces, 
+			final double targetDuration, ExecutorService executor) throws InterruptedException, ExecutionException {
+		
+		List<Future<Evaluation>> futures = new ArrayList<Future<Evaluation>>();
+		
+		for(final GravNavConfig config : configs) {
+			futures.add( executor.submit(new Callable<Evaluation>() {
+				@Override
+				public Evaluation call() {
+					return evaluate(config, traces, targetDuration);
+				}
+			}) );
+		}
+		
+		List<Evaluation> evaluations = new ArrayList<Evaluation>();
+		for(Future<Evaluation> future : futures) {
+			evaluations.add( future.get() );
+		}
+		
+		Collections.sort(evaluations, new Comparator<Evaluation>() {
+			@Override
+			public int compare(Evaluation a, Evaluation b) {
+				return Double.compare(a.score, b.score);
+			}
+		});
+		
+		return evaluations;
+	}
+	
+	/**
+	 * @return Every combination of the given values
+	 */
+	public static List<GravNavConfig> grid(float[] thresholds, int[] intervals, float[] stopThresholds, double[] decays) {
+		
+		List<GravNavConfig> configs = new ArrayList<GravNavConfig>();
+		
+		for(float threshold : thresholds) {
+			for(int interval : intervals) {
+				for(float stop : stopThresholds) {
+					for(double decay : decays) {
+						configs.add( new GravNavConfig(threshold, interval, stop, decay) );
+					}
+				}
+			}
+		}
+		
+		return configs;
+	}
+	
+	/**
+	 * Read a labels file and the traces it lists
+	 * 
+	 * @param labels
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<LabeledTrace> readLibrary(File labels) throws IOException {
+		
+		List<LabeledTrace> traces = new ArrayList<LabeledTrace>();
+		BufferedReader reader = new BufferedReader( new FileReader(labels) );
+		
+		try {
+			String line;
+			int lineNr = 0;
+			while( (line = reader.readLine()) != null ) {
+				lineNr++;
+				line = line.trim();
+				
+				if(line.length() == 0 || line.charAt(0) == '#') {
+					continue;
+				}
+				
+				String[] parts = line.split(",");
+				if(parts.length < 2 || !(parts[1].trim().equals("shake") || parts[1].trim().equals("none"))) {
+					throw new IOException("Invalid label on line "+lineNr+": "+line);
+				}
+				
+				File file = new File(labels.getParentFile(), parts[0].trim());
+				long onset = (parts.length > 2) ? Math.round( Double.parseDouble(parts[2].trim()) * 1e6 ) : 0;
+				
+				traces.add( new LabeledTrace(parts[0].trim(), TraceReplay.readTrace(file), parts[1].trim().equals("shake"), onset) );
+			}
+		} finally {
+			reader.close();
+		}
+		
+		return traces;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		
+		if(args.length < 1) {
+			System.err.println("Usage: ParameterTuner labels.csv [-threshold 500,700,900] [-interval 50,100] "
+					+"[-stop 100,150] [-decay 0.08,0.1] [-duration target s] [-out best.properties]");
+			System.exit(1);
+		}
+		
+		float[] thresholds = { 400, 500, 600, 700, 800, 1000, 1200 };
+		int[] intervals = { 50, 100, 150 };
+		float[] stops = { 100, 150, 200 };
+		double[] decays = { 0.06, 0.08, 0.1, 0.12, 0.15 };
+		double target = DEFAULT_TARGET_DURATION;
+		File out = null;
+		
+		for(int i=1; i < args.length; i++) {
+			if(args[i].equals("-threshold")) {
+				thresholds = parseFloats(args[++i]);
+			} else if(args[i].equals("-interval")) {
+				float[] values = parseFloats(args[++i]);
+				intervals = new int[values.length];
+				for(int v=0; v < values.length; v++) {
+					intervals[v] = Math.round(values[v]);
+				}
+			} else if(args[i].equals("-stop")) {
+				stops = parseFloats(args[++i]);
+			} else if(args[i].equals("-decay")) {
+				// comma separated fractions of speed lost per tick, e.g. 0.08,0.1
+				decays = parseDoubles(args[++i]);
+			} else if(args[i].equals("-duration")) {
+				target = Double.parseDouble(args[++i]);
+			} else if(args[i].equals("-out")) {
+				out = new File(args[++i]);
+			}
+		}
+		
+		List<LabeledTrace> traces = readLibrary( new File(args[0]) );
+		List<GravNavConfig> configs = grid(thresholds, intervals, stops, decays);
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		
+		System.out.println(traces.size()+" traces, "+configs.size()+" configurations, "+threads+" threads");
+		
+		long start = System.nanoTime();
+		List<Evaluation> evaluations;
+		try {
+			evaluations = search(configs, traces, target, executor);
+		} finally {
+			executor.shutdown();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		System.out.println("threshold,interval_ms,stop,decay,fp_rate,fn_rate,detect_s,duration_s,score");
+		for(Evaluation e : evaluations) {
+			GravNavConfig c = e.config;
+			System.out.println( String.format("%.0f,%d,%.0f,%.3f,%.4f,%.4f,%.3f,%.3f,%.4f", c.getShakeThreshold(), 
+					c.getMinIntervalMs(), c.getStopThreshold(), c.getDecay(), e.falsePositiveRate, 
+					e.falseNegativeRate, e.detectionTime, e.spinDuration, e.score) );
+		}
+		System.err.println( String.format("%d configurations in %.2f s", configs.size(), seconds) );
+		
+		if(out != null && !evaluations.isEmpty()) {
+			OutputStream stream = new FileOutputStream(out);
+			try {
+				evaluations.get(0).config.store(stream, "Tuned by ParameterTuner on "+traces.size()+" traces");
+			} finally {
+				stream.close();
+			}
+			System.out.println("best: "+evaluations.get(0).config+" written to "+out);
+		}
+	}
+	
+	private static float[] parseFloats(String list) {
+		String[] parts = list.split(",");
+		float[] values = new float[parts.length];
+		for(int i=0; i < parts.length; i++) {
+			values[i] = Float.parseFloat(parts[i].trim());
+		}
+		return values;
+	}
+	
+	private static double[] parseDoubles(String list) {
+		String[] parts = list.split(",");
+		double[] values = new double[parts.length];
+		for(int i=0; i < parts.length; i++) {
+			values[i] = Double.parseDouble(parts[i].trim());
+		}
+		return values;
+	}
+}
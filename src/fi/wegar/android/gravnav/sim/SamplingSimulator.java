@@ -0,0 +1,153 @@
+package fi.wegar.android.gravnav.sim;
+
+import fi.wegar.android.gravnav.power.SamplingController;
+import fi.wegar.android.gravnav.shake.ShakeDetector;
+import fi.wegar.android.gravnav.spin.SpinModel;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+import fi.wegar.android.gravnav.util.ManualClock;
+
+/**
+ * Measures the power savings of the SamplingController on a simulated walk. The phone is carried in 
+ * a pocket between intersections; at each intersection it is taken out, shaken, watched while the arrow 
+ * spins and put back. The simulated sensor delivers samples at the rate of the controller's current 
+ * mode, and the shakes go through the same ShakeDetector and SpinModel as in the app.
+ * 
+ * Run from the command line: SamplingSimulator [minutes] [seconds between intersections] [seed]
+ */
+public class SamplingSimulator {
+
+	static final float GRAVITY = 9.80665f;
+	
+	/**
+	 * The phases of an intersection, in seconds after reaching it
+	 */
+	static final double TAKE_OUT_END = 1.5;
+	static final double SHAKE_END = 2.5;
+	static final double PUT_BACK_START = 12;
+	static final double PUT_BACK_END = 13;
+	
+	
+	/**
+	 * The outcome of a simulation
+	 */
+	public static class Result {
+		
+		public long samples = 0;
+		
+		/**
+		 * The samples the sensor would have delivered at the full rate the whole time
+		 */
+		public long fullRateSamples = 0;
+		
+		public int intersections = 0;
+		public int spins = 0;
+		
+		public double dutyCycle = 0;
+		
+		/**
+		 * @return The fraction of samples saved compared to sampling at the full rate
+		 */
+		public double getSavings() {
+			return (fullRateSamples == 0) ? 0 : 1 - (double) samples / fullRateSamples;
+		}
+	}
+	
+	
+	public static Result simulate(double minutes, double intersectionInterval, Xoshiro256Random random) {
+		
+		final Result result = new Result();
+		
+		ManualClock clock = new ManualClock();
+		SamplingController controller = new SamplingController(clock, null);
+		SpinModel spin = new SpinModel();
+		
+		final boolean[] shaken = new boolean[1];
+		final float[] intensity = new float[1];
+		
+		ShakeDetector detector = new ShakeDetector(new ShakeDetector.OnShakeListener() {
+			public void onShake(long timestampNanos, float delta) {
+				shaken[0] = true;
+				intensity[0] = delta;
+			}
+		});
+		
+		long end = (long) (minutes * 60e9);
+		long fullInterval = SamplingController.getSampleIntervalNanos(SamplingController.Mode.SPINNING);
+		result.fullRateSamples = end / fullInterval;
+		
+		controller.start();
+		
+		while(clock.nanoTime() < end) {
+			
+			long now = clock.nanoTime();
+			double seconds = now / 1e9;
+			double atIntersection = seconds % intersectionInterval;
+			
+			float x = noise(random, 0.2f);
+			float y = noise(random, 0.2f);
+			float z = GRAVITY + noise(random, 0.2f);
+			
+			if(atIntersection < TAKE_OUT_END) {
+				// taking the phone out
+				x += noise(random, 6);
+				y += noise(random, 6);
+			} else if(atIntersection >= PUT_BACK_START && atIntersection < PUT_BACK_END) {
+				// putting it back
+				y += noise(random, 3);
+			} else if(atIntersection < SHAKE_END) {
+				// shaking at about 4 Hz
+				x += (float) (15 * Math.sin(2*Math.PI * 4 * seconds));
+			} else if(atIntersection >= PUT_BACK_END) {
+				// walking with the phone in a pocket
+				z += (float) (2.5 * Math.sin(2*Math.PI * 2 * seconds));
+				x += noise(random, 1);
+			}
+			
+			if( (long) (seconds / intersectionInterval) >= result.intersections ) {
+				result.intersections++;
+			}
+			
+			result.samples++;
+			controller.onSample(x, y, z);
+			
+			shaken[0] = false;
+			detector.onSample(now, x, y, z);
+			
+			boolean wasRunning = spin.isRunning();
+			if(shaken[0] && spin.shake(now, intensity[0])) {
+				result.spins++;
+				controller.onSpinStarted();
+			}
+			
+			spin.advance(now);
+			if(wasRunning && !spin.isRunning()) {
+				controller.onSpinFinished();
+			}
+			
+			clock.advance( SamplingController.getSampleIntervalNanos(controller.getMode()) );
+		}
+		
+		controller.stop();
+		result.dutyCycle = controller.getDutyCycle();
+		
+		return result;
+	}
+	
+	private static float noise(Xoshiro256Random random, float amplitude) {
+		return (random.nextFloat()*2 - 1) * amplitude;
+	}
+	
+	public static void main(String[] args) {
+		
+		double minutes = (args.length > 0) ? Double.parseDouble(args[0]) : 60;
+		double interval = (args.length > 1) ? Double.parseDouble(args[1]) : 120;
+		long seed = (args.length > 2) ? Long.parseLong(args[2]) : System.nanoTime();
+		
+		Result result = simulate(minutes, interval, new Xoshiro256Random(seed));
+		
+		System.out.println( String.format("seed %d, %.0f min, intersection every %.0f s", seed, minutes, interval) );
+		System.out.println( String.format("intersections %d  spins %d  duty cycle %.3f  samples %d of %d at full rate, %.1f%% saved", 
+				result.intersections, result.spins, result.dutyCycle, result.samples, result.fullRateSamples, 
+				result.getSavings() * 100) );
+	}
+}
@@ -0,0 +1,302 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.wegar.android.gravnav.shake.GravityShakeDetector;
+import fi.wegar.android.gravnav.shake.SensorTrace;
+import fi.wegar.android.gravnav.shake.ShakeDetector;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+
+/**
+ * Compares the summed delta ShakeDetector with the GravityShakeDetector: the time per sample, and whether
+ * they fire on the same shakes, with traces replayed at sample rates from 50 to 1000 Hz.
+ *
+ * Without arguments, synthetic traces with known shakes are used. Recorded traces are resampled to each
+ * rate, and their shakes are the runs of shakes found by the summed delta detector.
+ *
+ * After the default thresholds, a range of gravity thresholds is tried. The one that fires on the same
+ * shakes as the summed delta detector most often, with the fewest shakes outside of them, is printed
+ * together with the intensity scale that makes its shakes spin the arrow as far as those of the summed
+ * delta detector.
+ *
+ * Run from the command line: ShakeBenchmark [trace.csv|trace.bin ...]
+ */
+public class ShakeBenchmark {
+
+	static final int[] RATES = {50, 100, 200, 500, 1000};
+	
+	static final double SECONDS = 300;
+	
+	/**
+	 * The nr of timed replays of each trace, after as many to warm up the JIT
+	 */
+	static final int REPEAT = 10;
+	
+	/**
+	 * A shake counts for a run of shaking if it falls in it or this soon after
+	 */
+	static final long SHAKE_SLACK_NANOS = 200000000L;
+	
+	/**
+	 * Shakes of a recorded trace further apart than this are separate runs
+	 */
+	static final long RUN_GAP_NANOS = 1000000000L;
+	
+	static final float MIN_GRAVITY_THRESHOLD = 4;
+	static final float MAX_GRAVITY_THRESHOLD = 24;
+	static final float GRAVITY_THRESHOLD_STEP = 1;
+	
+	
+	/**
+	 * The shakes a detector found in a trace
+	 */
+	static class Detection {
+		
+		/**
+		 * Which of the runs of shaking were detected
+		 */
+		boolean[] detected;
+		
+		/**
+		 * Shakes outside of any run
+		 */
+		int falseShakes;
+		
+		/**
+		 * The summed intensity of the shakes inside the runs, and their number
+		 */
+		double intensity;
+		int shakes;
+		
+		int getDetectedCount() {
+			int count = 0;
+			for(boolean d : detected) {
+				count += d ? 1 : 0;
+			}
+			return count;
+		}
+	}
+	
+	/**
+	 * One trace at one rate, with the runs of shaking in it
+	 */
+	static class Case {
+		
+		final String name;
+		final SensorTrace trace;
+		final List<long[]> runs;
+		
+		Case(String name, SensorTrace trace, List<long[]> runs) {
+			this.name = name;
+			this.trace = trace;
+			this.runs = runs;
+		}
+	}
+	
+	
+	/**
+	 * Linearly interpolate a trace to evenly spaced samples
+	 *
+	 * @param trace
+	 * @param intervalNanos
+	 * @return
+	 */
+	static SensorTrace resample(SensorTrace trace, long intervalNanos) {
+		
+		long start = trace.getTimestamp(0);
+		long end = trace.getTimestamp(trace.size()-1);
+		SensorTrace resampled = new SensorTrace( (int) ((end - start) / intervalNanos) + 1 );
+		
+		int i = 0;
+		for(long now=start; now <= end; now += intervalNanos) {
+			
+			while(i < trace.size()-2 && trace.getTimestamp(i+1) <= now) {
+				i++;
+			}
+			
+			long t0 = trace.getTimestamp(i);
+			long t1 = trace.getTimestamp( Math.min(i+1, trace.size()-1) );
+			float f = (t1 > t0) ? Math.min(1, (float) (now - t0) / (t1 - t0)) : 0;
+			int j = Math.min(i+1, trace.size()-1);
+			
+			resampled.add(now, trace.getX(i) + f * (trace.getX(j) - trace.getX(i)),
+					trace.getY(i) + f * (trace.getY(j) - trace.getY(i)),
+					trace.getZ(i) + f * (trace.getZ(j) - trace.getZ(i)));
+		}
+		
+		return resampled;
+	}
+	
+	/**
+	 * The runs of shaking in a recorded trace, taken from the shakes of the summed delta detector
+	 */
+	static List<long[]> findRuns(SensorTrace trace) {
+		
+		final List<long[]> runs = new ArrayList<long[]>();
+		
+		trace.replay(new ShakeDetector(new ShakeDetector.OnShakeListener() {
+			public void onShake(long timestampNanos, float intensity) {
+				long[] last = runs.isEmpty() ? null : runs.get(runs.size()-1);
+				
+				if(last != null && timestampNanos - last[1] <= RUN_GAP_NANOS) {
+					last[1] = timestampNanos;
+				} else {
+					runs.add( new long[] { timestampNanos, timestampNanos } );
+				}
+			}
+		}));
+		
+		return runs;
+	}
+	
+	/**
+	 * Replay a trace through a detector and match its shakes to the runs of shaking
+	 *
+	 * @param trace
+	 * @param detector A new detector, its listener is replaced
+	 * @param runs
+	 * @param intensityScale Divides the intensities reported by the detector
+	 * @return
+	 */
+	static Detection detect(SensorTrace trace, ShakeDetector detector, final List<long[]> runs, final float intensityScale) {
+		
+		final Detection detection = new Detection();
+		detection.detected = new boolean[runs.size()];
+		
+		detector.setOnShakeListener(new ShakeDetector.OnShakeListener() {
+			public void onShake(long timestampNanos, float intensity) {
+				for(int i=0; i < runs.size(); i++) {
+					long[] run = runs.get(i);
+					
+					if(timestampNanos >= run[0] && timestampNanos <= run[1] + SHAKE_SLACK_NANOS) {
+						detection.detected[i] = true;
+						detection.intensity += intensity / intensityScale;
+						detection.shakes++;
+						return;
+					}
+				}
+				detection.falseShakes++;
+			}
+		});
+		trace.replay(detector);
+		
+		return detection;
+	}
+	
+	/**
+	 * @return The nr of runs both detectors either found or missed
+	 */
+	static int countAgreement(Detection a, Detection b) {
+		int count = 0;
+		for(int i=0; i < a.detected.length; i++) {
+			count += (a.detected[i] == b.detected[i]) ? 1 : 0;
+		}
+		return count;
+	}
+	
+	/**
+	 * @return The mean time per sample of replaying the trace through the detector, in ns
+	 */
+	static double time(SensorTrace trace, ShakeDetector detector) {
+		
+		detector.setOnShakeListener(null);
+		
+		for(int r=0; r < REPEAT; r++) {
+			detector.reset();
+			trace.replay(detector);
+		}
+		
+		long start = System.nanoTime();
+		for(int r=0; r < REPEAT; r++) {
+			detector.reset();
+			trace.replay(detector);
+		}
+		
+		return (double) (System.nanoTime() - start) / REPEAT / trace.size();
+	}
+	
+	public static void main(String[] args) throws IOException {
+		
+		List<Case> cases = new ArrayList<Case>();
+		
+		if(args.length > 0) {
+			for(String arg : args) {
+				File file = new File(arg);
+				SensorTrace trace = TraceReplay.readTrace(file);
+				
+				for(int rate : RATES) {
+					SensorTrace resampled = resample(trace, 1000000000L / rate);
+					cases.add( new Case(file.getName() + " " + rate + " Hz", resampled, findRuns(resampled)) );
+				}
+			}
+		} else {
+			Xoshiro256Random random = new Xoshiro256Random(3);
+			
+			for(int rate : RATES) {
+				List<long[]> runs = new ArrayList<long[]>();
+				SensorTrace trace = ShakeParity.synthesize(1000000000L / rate, SECONDS, random, runs);
+				cases.add( new Case(rate + " Hz", trace, runs) );
+			}
+		}
+		
+		System.out.println( String.format("%-24s %12s %12s %6s %8s %8s %6s %8s %8s", "trace", "summed ns", "gravity ns",
+				"runs", "summed", "gravity", "same", "summed+", "gravity+") );
+		
+		for(Case c : cases) {
+			double summedNanos = time(c.trace, new ShakeDetector(null));
+			double gravityNanos = time(c.trace, new GravityShakeDetector(null));
+			
+			Detection summed = detect(c.trace, new ShakeDetector(null), c.runs, 1);
+			Detection gravity = detect(c.trace, new GravityShakeDetector(null), c.runs, 1);
+			
+			System.out.println( String.format("%-24s %12.1f %12.1f %6d %8d %8d %6d %8d %8d", c.name, summedNanos, gravityNanos,
+					c.runs.size(), summed.getDetectedCount(), gravity.getDetectedCount(), countAgreement(summed, gravity),
+					summed.falseShakes, gravity.falseShakes) );
+		}
+		
+		// the threshold that agrees with the summed delta detector best, and the scale matching its intensities
+		float bestThreshold = Float.NaN;
+		int bestScore = Integer.MIN_VALUE;
+		double bestScale = 0;
+		
+		System.out.println();
+		System.out.println( String.format("%-10s %8s %8s %8s %10s", "threshold", "runs", "same", "gravity+", "scale") );
+		
+		for(float threshold=MIN_GRAVITY_THRESHOLD; threshold <= MAX_GRAVITY_THRESHOLD; threshold += GRAVITY_THRESHOLD_STEP) {
+			
+			int runs = 0, same = 0, falseShakes = 0;
+			double summedIntensity = 0, gravityMagnitude = 0;
+			
+			for(Case c : cases) {
+				Detection summed = detect(c.trace, new ShakeDetector(null), c.runs, 1);
+				Detection gravity = detect(c.trace, new GravityShakeDetector(threshold, ShakeDetector.DEFAULT_MIN_INTERVAL_NANOS,
+						GravityShakeDetector.DEFAULT_TIME_CONSTANT_NANOS, null), c.runs, GravityShakeDetector.INTENSITY_SCALE);
+				
+				runs += c.runs.size();
+				same += countAgreement(summed, gravity);
+				falseShakes += gravity.falseShakes;
+				
+				// a spin is as long as the sum of the intensities of its shakes
+				summedIntensity += summed.intensity;
+				gravityMagnitude += gravity.intensity;
+			}
+			
+			double scale = (gravityMagnitude > 0) ? summedIntensity / gravityMagnitude : 0;
+			System.out.println( String.format("%-10.1f %8d %8d %8d %10.1f", threshold, runs, same, falseShakes, scale) );
+			
+			int score = same - falseShakes;
+			if(score > bestScore) {
+				bestScore = score;
+				bestThreshold = threshold;
+				bestScale = scale;
+			}
+		}
+		
+		System.out.println();
+		System.out.println( String.format("best gravity threshold %.1f, intensity scale %.1f (now %.1f and %.1f)", bestThreshold, bestScale,
+				GravityShakeDetector.DEFAULT_THRESHOLD, GravityShakeDetector.INTENSITY_SCALE) );
+	}
+}
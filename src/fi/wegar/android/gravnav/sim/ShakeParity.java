@@ -0,0 +1,250 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import fi.wegar.android.gravnav.shake.SensorTrace;
+import fi.wegar.android.gravnav.shake.ShakeDetector;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+
+/**
+ * Checks that the extracted ShakeDetector fires on exactly the samples the shake handling of the original
+ * GravNav.onSensorChanged did, throttle included.
+ *
+ * The original read System.currentTimeMillis(), so both sides are given the trace rounded to whole ms, the
+ * baseline as wall clock time and the detector as ns. Every sample must be throttled, processed and
+ * detected as a shake alike, with the same intensity.
+ *
+ * Without arguments, synthetic traces of a phone held still and shaken now and then are checked at
+ * several sample rates, with jittered intervals.
+ *
+ * Run from the command line: ShakeParity [trace.csv|trace.bin ...]
+ */
+public class ShakeParity {
+
+	/**
+	 * The rates of the synthetic traces, from SENSOR_DELAY_NORMAL to the fastest accelerometers
+	 */
+	static final int[] RATES = {5, 16, 50, 100, 200, 500, 1000};
+	
+	static final double SECONDS = 120;
+	
+	/**
+	 * The wall clock time of the first sample for the baseline, any time well after 1970 will do
+	 */
+	static final long WALL_CLOCK_START = 1300000000000L;
+	
+	
+	/**
+	 * The shake detection of GravNav.onSensorChanged before ShakeDetector was extracted, as it was
+	 */
+	static class BaselineShake {
+		
+		static final int SHAKE_THRESHOLD = 700;
+		static final int UPDATE_FREQUENCY = 100;
+		
+		private long lastUpdate = -1;
+		private float lastX, lastY, lastZ;
+		
+		/**
+		 * The delta of the last processed sample
+		 */
+		float lastDelta;
+		
+		/**
+		 * @return -1 if the sample was throttled, 1 for a shake and 0 otherwise
+		 */
+		int onSensorChanged(long curTime, float x, float y, float z) {
+			
+			// only allow one update every X ms as determined by UPDATE_FREQUENCY
+			if( (curTime - lastUpdate) > UPDATE_FREQUENCY) {
+				
+				long diffTime = (curTime - lastUpdate);
+				lastUpdate = curTime;
+				
+				// calculate the total delta since last update
+				float delta = Math.abs(x+y+z - lastX - lastY - lastZ) / diffTime * 10000;
+				lastDelta = delta;
+				
+				lastX = x;
+				lastY = y;
+				lastZ = z;
+				
+				return (delta > SHAKE_THRESHOLD) ? 1 : 0;
+			}
+			return -1;
+		}
+	}
+	
+	/**
+	 * The outcome of comparing one trace
+	 */
+	public static class Result {
+		
+		public int samples;
+		public int throttled;
+		public int shakes;
+		public int mismatches;
+		
+		/**
+		 * The index of the first sample handled differently, -1 if none was
+		 */
+		public int firstMismatch = -1;
+	}
+	
+	
+	/**
+	 * A phone held in the hand, still but for sensor noise and a slight wobble or carried by a walking user,
+	 * and shaken, lightly or hard, for a second or two every few seconds
+	 *
+	 * @param intervalNanos The mean sample interval, each one jittered by up to a fifth
+	 * @param seconds The length of the trace
+	 * @param random
+	 * @param shakes If not null, receives the start and end in ns of every shake
+	 * @return
+	 */
+	static SensorTrace synthesize(long intervalNanos, double seconds, Xoshiro256Random random, List<long[]> shakes) {
+		
+		SensorTrace trace = new SensorTrace( (int) (seconds * 1e9 / intervalNanos) + 1 );
+		long end = (long) (seconds * 1e9);
+		
+		long nextShake = 2000000000L + (long) (random.nextDouble() * 4e9);
+		long shakeEnd = 0;
+		double shakeHz = 0, amplitude = 0;
+		int axis = 0;
+		boolean walking = false;
+		double stepHz = 0;
+		
+		for(long now=0; now < end; now += intervalNanos + (long) ((random.nextDouble()*2 - 1) * intervalNanos / 5)) {
+			
+			double t = now / 1e9;
+			float x = (float) (0.3 * Math.sin(t * 0.7));
+			float y = (float) (5.5 + 0.2 * Math.sin(t * 0.5));
+			float z = (float) Math.sqrt(9.81*9.81 - x*x - y*y);
+			
+			if(now >= nextShake) {
+				shakeEnd = now + 1000000000L + (long) (random.nextDouble() * 1e9);
+				shakeHz = 2.5 + random.nextDouble() * 3;
+				amplitude = 2 + random.nextDouble() * 20;
+				axis = random.nextInt(3);
+				nextShake = shakeEnd + 3000000000L + (long) (random.nextDouble() * 6e9);
+				walking = random.nextInt(2) == 0;
+				stepHz = 1.6 + random.nextDouble() * 0.6;
+				
+				if(shakes != null) {
+					shakes.add( new long[] { now, Math.min(shakeEnd, end) } );
+				}
+			}
+			
+			if(now < shakeEnd) {
+				float shake = (float) (amplitude * Math.sin(2*Math.PI * shakeHz * t));
+				if(axis == 0) {
+					x += shake;
+				} else if(axis == 1) {
+					y += shake;
+				} else {
+					z += shake;
+				}
+			} else if(walking && now > shakeEnd + 500000000L) {
+				// the bob of the steps, with a jolt at each heel strike
+				double phase = t * stepHz - Math.floor(t * stepHz);
+				float bob = (float) (2.5 * Math.sin(2*Math.PI * stepHz * t) + ((phase < 0.05) ? 4 : 0));
+				y += bob * 0.55f;
+				z += bob * 0.83f;
+			}
+			
+			x += (random.nextFloat()*2 - 1) * 0.05f;
+			y += (random.nextFloat()*2 - 1) * 0.05f;
+			z += (random.nextFloat()*2 - 1) * 0.05f;
+			
+			trace.add(now, x, y, z);
+		}
+		
+		return trace;
+	}
+	
+	/**
+	 * Feed a trace to the baseline and to a ShakeDetector with the defaults of the app and compare them
+	 * sample by sample
+	 *
+	 * @param trace
+	 * @return
+	 */
+	public static Result compare(SensorTrace trace) {
+		
+		final Result result = new Result();
+		final float[] intensity = new float[1];
+		
+		ShakeDetector detector = new ShakeDetector(new ShakeDetector.OnShakeListener() {
+			public void onShake(long timestampNanos, float delta) {
+				intensity[0] = delta;
+			}
+		});
+		BaselineShake baseline = new BaselineShake();
+		
+		if(trace.size() == 0) {
+			return result;
+		}
+		
+		long startMillis = trace.getTimestamp(0) / 1000000;
+		
+		for(int i=0; i < trace.size(); i++) {
+			
+			long millis = trace.getTimestamp(i) / 1000000 - startMillis;
+			float x = trace.getX(i), y = trace.getY(i), z = trace.getZ(i);
+			
+			int expected = baseline.onSensorChanged(WALL_CLOCK_START + millis, x, y, z);
+			
+			long throttled = detector.getThrottledCount();
+			boolean shake = detector.onSample(millis * 1000000, x, y, z);
+			int actual = (detector.getThrottledCount() > throttled) ? -1 : (shake ? 1 : 0);
+			
+			// the baseline compares its first sample to zeros, the detector only keeps it as the reference
+			boolean same = (i == 0) ? (actual == 0 && expected != 1)
+					: (actual == expected && (!shake || intensity[0] == baseline.lastDelta));
+			
+			result.samples++;
+			result.throttled += (actual == -1) ? 1 : 0;
+			result.shakes += shake ? 1 : 0;
+			
+			if(!same) {
+				if(result.firstMismatch < 0) {
+					result.firstMismatch = i;
+				}
+				result.mismatches++;
+			}
+		}
+		
+		return result;
+	}
+	
+	private static boolean report(String name, Result result) {
+		System.out.println( String.format("%-20s %8d samples %8d throttled %5d shakes %5d mismatches%s", name,
+				result.samples, result.throttled, result.shakes, result.mismatches,
+				(result.mismatches > 0) ? ", first at sample " + result.firstMismatch : "") );
+		return result.mismatches == 0;
+	}
+	
+	public static void main(String[] args) throws IOException {
+		
+		boolean ok = true;
+		
+		if(args.length > 0) {
+			for(String arg : args) {
+				File file = new File(arg);
+				ok &= report( file.getName(), compare(TraceReplay.readTrace(file)) );
+			}
+		} else {
+			Xoshiro256Random random = new Xoshiro256Random(1);
+			for(int rate : RATES) {
+				SensorTrace trace = synthesize(1000000000L / rate, SECONDS, random, null);
+				ok &= report( rate + " Hz", compare(trace) );
+			}
+		}
+		
+		if(!ok) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fi.wegar.android.gravnav.spin.DirectionChooser;
+import fi.wegar.android.gravnav.spin.SpinModel;
+import fi.wegar.android.gravnav.spin.UniformDirectionChooser;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+
+/**
+ * Simulates a large number of spins in parallel and checks that every direction comes up equally 
+ * often, using a chi-square test. Each spin runs through SpinModel with a random shake intensity and 
+ * start spoke, steered by the same DirectionChooser as the app.
+ * 
+ * Also checks that steering does not make the spins longer: the stop time of every steered spin is 
+ * compared to the one it would have had unsteered, and the run fails with exit code 1 if any is later 
+ * by more than one tick at the stop threshold.
+ * 
+ * Run from the command line: SpinFairness [spins per choice count] [max choices] [seed]
+ */
+public class SpinFairness {
+
+	/**
+	 * The range of shake intensities to simulate
+	 */
+	static final float MIN_INTENSITY = 700;
+	static final float MAX_INTENSITY = 20000;
+	
+	/**
+	 * The most steering may add to a spin, one tick at the stop threshold
+	 */
+	static final long MAX_EXTRA_NANOS = SpinModel.getTickDelay(SpinModel.DEFAULT_STOP_THRESHOLD);
+	
+	/**
+	 * Choice counts of large junctions, checked after the range given on the command line since with 
+	 * BEARING_SPOKES the number of choices is the number of streets at the junction
+	 */
+	static final int[] JUNCTION_CHOICES = { 50, 100, 150 };
+	
+	
+	/**
+	 * The result of simulating one number of choices
+	 */
+	public static class Result {
+		
+		public final int numChoices;
+		
+		/**
+		 * The number of spins stopping on each direction, index 0 is direction 1
+		 */
+		public final long[] counts;
+		
+		/**
+		 * The number of spins that did not stop on the direction chosen for them
+		 */
+		public final long mismatches;
+		
+		/**
+		 * The total and the largest time steering added to the spins, in ns
+		 */
+		public final long extraNanos;
+		public final long maxExtraNanos;
+		
+		public Result(int numChoices, long[] counts, long mismatches, long extraNanos, long maxExtraNanos) {
+			this.numChoices = numChoices;
+			this.counts = counts;
+			this.mismatches = mismatches;
+			this.extraNanos = extraNanos;
+			this.maxExtraNanos = maxExtraNanos;
+		}
+		
+		public long getSpins() {
+			long spins = 0;
+			for(int i=0; i < counts.length; i++) {
+				spins += counts[i];
+			}
+			return spins;
+		}
+		
+		/**
+		 * @return The chi-square statistic against a uniform distribution
+		 */
+		public double getChiSquare() {
+			double expected = (double) getSpins() / numChoices;
+			double chi = 0;
+			
+			for(int i=0; i < counts.length; i++) {
+				double d = counts[i] - expected;
+				chi += d*d / expected;
+			}
+			
+			return chi;
+		}
+		
+		/**
+		 * @return The average time steering added to a spin, in ns
+		 */
+		public double getMeanExtraNanos() {
+			return (double) extraNanos / Math.max(1, getSpins());
+		}
+		
+		/**
+		 * @return The approximate probability of a chi-square at least this large if the directions are uniform
+		 */
+		public double getPValue() {
+			return chiSquarePValue(getChiSquare(), numChoices - 1);
+		}
+	}
+	
+	
+	/**
+	 * Simulate spins for one number of choices, spread over the given number of threads
+	 * 
+	 * @param numChoices
+	 * @param spins The total number of spins
+	 * @param executor Runs the workers
+	 * @param threads The number of workers
+	 * @param random Split once per worker
+	 * @return
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static Result simulate(final int numChoices, long spins, ExecutorService executor, int threads, Xoshiro256Random random) 
+			throws InterruptedException, ExecutionException {
+		
+		List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+		
+		for(int t=0; t < threads; t++) {
+			final long workerSpins = spins / threads + ( (t < spins % threads) ? 1 : 0 );
+			final Xoshiro256Random workerRandom = random.split();
+			
+			futures.add( executor.submit(new Callable<long[]>() {
+				@Override
+				public long[] call() {
+					return simulateWorker(numChoices, workerSpins, workerRandom);
+				}
+			}) );
+		}
+		
+		long[] counts = new long[numChoices];
+		long mismatches = 0;
+		long extraNanos = 0;
+		long maxExtraNanos = 0;
+		
+		for(Future<long[]> future : futures) {
+			long[] workerCounts = future.get();
+			
+			for(int i=0; i < numChoices; i++) {
+				counts[i] += workerCounts[i];
+			}
+			mismatches += workerCounts[numChoices];
+			extraNanos += workerCounts[numChoices+1];
+			maxExtraNanos = Math.max(maxExtraNanos, workerCounts[numChoices+2]);
+		}
+		
+		return new Result(numChoices, counts, mismatches, extraNanos, maxExtraNanos);
+	}
+	
+	/**
+	 * @return The count per direction, followed by the number of mismatches, the total and the largest 
+	 * time added by steering
+	 */
+	static long[] simulateWorker(int numChoices, long spins, Xoshiro256Random random) {
+		
+		long[] counts = new long[numChoices+3];
+		
+		SpinModel spin = new SpinModel();
+		DirectionChooser chooser = new UniformDirectionChooser(random.split());
+		
+		for(long i=0; i < spins; i++) {
+			
+			float intensity = MIN_INTENSITY + random.nextFloat() * (MAX_INTENSITY - MIN_INTENSITY);
+			int startSpoke = random.nextInt(numChoices+1);
+			
+			// run the spin to completion on a virtual clock
+			spin.shake(0, intensity);
+			long unsteered = spin.getStopTime();
+			
+			int target = chooser.choose(numChoices);
+			spin.setTargetSpoke(startSpoke, target, numChoices);
+			
+			long extra = spin.getStopTime() - unsteered;
+			counts[numChoices+1] += extra;
+			counts[numChoices+2] = Math.max(counts[numChoices+2], extra);
+			
+			spin.advance(Long.MAX_VALUE);
+			
+			int spoke = SpinModel.getSpokeAfter(startSpoke, spin.getSteps(), numChoices);
+			
+			counts[spoke-1]++;
+			if(spoke != target) {
+				counts[numChoices]++;
+			}
+		}
+		
+		return counts;
+	}
+	
+	/**
+	 * Upper tail probability of the chi-square distribution, using the Wilson-Hilferty approximation
+	 * 
+	 * @param chi
+	 * @param degreesOfFreedom
+	 * @return
+	 */
+	static double chiSquarePValue(double chi, int degreesOfFreedom) {
+		
+		double k = degreesOfFreedom;
+		double z = (Math.pow(chi / k, 1.0/3) - (1 - 2 / (9*k))) / Math.sqrt(2 / (9*k));
+		
+		return 0.5 * erfc(z / Math.sqrt(2));
+	}
+	
+	/**
+	 * Complementary error function, accurate to about 1e-7
+	 */
+	static double erfc(double x) {
+		double z = Math.abs(x);
+		double t = 1 / (1 + 0.5*z);
+		double r = t * Math.exp( -z*z - 1.26551223 + t*(1.00002368 + t*(0.37409196 + t*(0.09678418 + 
+				t*(-0.18628806 + t*(0.27886807 + t*(-1.13520398 + t*(1.48851587 + 
+				t*(-0.82215223 + t*0.17087277)))))))) );
+		
+		return (x >= 0) ? r : 2 - r;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		
+		long spins = (args.length > 0) ? Long.parseLong(args[0]) : 10000000L;
+		int maxChoices = (args.length > 1) ? Integer.parseInt(args[1]) : 12;
+		long seed = (args.length > 2) ? Long.parseLong(args[2]) : System.nanoTime();
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Xoshiro256Random random = new Xoshiro256Random(seed);
+		
+		System.out.println("seed "+seed+", "+spins+" spins per choice count, "+threads+" threads");
+		
+		boolean failed = false;
+		
+		int[] choiceCounts = new int[maxChoices - 1 + JUNCTION_CHOICES.length];
+		int count = 0;
+		for(int numChoices=2; numChoices <= maxChoices; numChoices++) {
+			choiceCounts[count++] = numChoices;
+		}
+		for(int i=0; i < JUNCTION_CHOICES.length; i++) {
+			if(JUNCTION_CHOICES[i] > maxChoices) {
+				choiceCounts[count++] = JUNCTION_CHOICES[i];
+			}
+		}
+		
+		try {
+			for(int c=0; c < count; c++) {
+				
+				int numChoices = choiceCounts[c];
+				long start = System.nanoTime();
+				Result result = simulate(numChoices, spins, executor, threads, random);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				
+				System.out.println( String.format("choices %3d  chi2 %8.3f  df %3d  p %.4f  mismatches %d  extra time mean %.1f ms max %.1f ms  %.1f M spins/s", 
+						numChoices, result.getChiSquare(), numChoices-1, result.getPValue(), result.mismatches, 
+						result.getMeanExtraNanos() / 1e6, result.maxExtraNanos / 1e6, result.getSpins() / seconds / 1e6) );
+				
+				if(result.mismatches > 0 || result.maxExtraNanos > MAX_EXTRA_NANOS) {
+					failed = true;
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		if(failed) {
+			System.err.println("FAILED: spins missed their direction or steering added more than "+MAX_EXTRA_NANOS / 1000000+" ms");
+			System.exit(1);
+		}
+	}
+}
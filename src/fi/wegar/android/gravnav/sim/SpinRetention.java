@@ -0,0 +1,238 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.util.Arrays;
+
+import fi.wegar.android.gravnav.spin.SpinEngine;
+import fi.wegar.android.gravnav.spin.SpinModel;
+import fi.wegar.android.gravnav.spin.UniformDirectionChooser;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+import fi.wegar.android.gravnav.util.VirtualScheduler;
+
+/**
+ * Checks that a spin handed over to a recreated activity ends as if the activity had never been
+ * recreated, and measures what the engine's part of re-attaching costs.
+ *
+ * Every spin is run twice on virtual time with the same shakes and the same seed: once undisturbed,
+ * and once with the activity recreated at random points of the spin. A recreation does what GravNav
+ * does with the retained engine: the listener of the new instance replaces the old one and the new
+ * views are placed at the angle of the spin at that moment. The retained spin must be at the same
+ * angle as the undisturbed one there, stop on the same spoke at the same time, and report the stop
+ * only to the instance attached last.
+ *
+ * Run from the command line: SpinRetention [spins]
+ */
+public class SpinRetention {
+
+	static final int SPINS = 100000;
+	
+	static final float MIN_INTENSITY = 700;
+	static final float MAX_INTENSITY = 20000;
+	
+	/**
+	 * The most shakes of a spin, and of recreations during it
+	 */
+	static final int MAX_SHAKES = 3;
+	static final int MAX_RECREATIONS = 3;
+	
+	
+	/**
+	 * The outcome of all spins
+	 */
+	public static class Result {
+		
+		public int spins;
+		public int recreations;
+		
+		/**
+		 * Spins that stopped on another spoke, at another time, or were reported to an instance no longer attached
+		 */
+		public int mismatches;
+		
+		/**
+		 * Recreations at which the retained spin was at another angle than the undisturbed one
+		 */
+		public int angleMismatches;
+		
+		/**
+		 * The mean time to hand the spin to the new instance, in ns
+		 */
+		public double reattachNanos;
+	}
+	
+	/**
+	 * An activity instance, the listener it sets on the engine
+	 */
+	static class Instance implements SpinEngine.Listener {
+		
+		int stops;
+		int spoke;
+		long stopTime;
+		
+		final VirtualScheduler clock;
+		
+		Instance(VirtualScheduler clock) {
+			this.clock = clock;
+		}
+		
+		public void onSpinStarted(SpinEngine engine) {
+		}
+		
+		public void onSpinStopped(SpinEngine engine, int spoke) {
+			this.stops++;
+			this.spoke = spoke;
+			this.stopTime = clock.nanoTime();
+		}
+	}
+	
+	
+	/**
+	 * Run every spin undisturbed and with recreations, and compare them
+	 *
+	 * @param spins
+	 * @param random
+	 * @return
+	 */
+	public static Result compare(int spins, Xoshiro256Random random) {
+		
+		Result result = new Result();
+		long reattachNanos = 0;
+		
+		long[] shakeTimes = new long[MAX_SHAKES];
+		float[] intensities = new float[MAX_SHAKES];
+		long[] recreations = new long[MAX_RECREATIONS];
+		
+		// the instances replaced during a spin, and the stops each had seen when it was replaced
+		Instance[] detached = new Instance[MAX_RECREATIONS];
+		int[] detachedStops = new int[MAX_RECREATIONS];
+		
+		for(int s=0; s < spins; s++) {
+			
+			int numChoices = 2 + random.nextInt(7);
+			long seed = random.nextLong();
+			
+			// the first shake starts a spin, the others speed it up or start another one if it has stopped
+			int shakes = 1 + random.nextInt(MAX_SHAKES);
+			for(int i=0; i < shakes; i++) {
+				shakeTimes[i] = (i == 0) ? 0 : shakeTimes[i-1] + (long) (random.nextDouble() * 1e9);
+				intensities[i] = MIN_INTENSITY + random.nextFloat() * (MAX_INTENSITY - MIN_INTENSITY);
+			}
+			
+			// recreations fall anywhere from the first shake to the end of the spin
+			long end = getStopTime(numChoices, seed, shakeTimes, intensities, shakes);
+			int count = 1 + random.nextInt(MAX_RECREATIONS);
+			for(int i=0; i < count; i++) {
+				recreations[i] = (long) (random.nextDouble() * end);
+			}
+			Arrays.sort(recreations, 0, count);
+			
+			VirtualScheduler undisturbedClock = new VirtualScheduler();
+			SpinEngine undisturbed = createEngine(undisturbedClock, numChoices, seed);
+			Instance reference = new Instance(undisturbedClock);
+			undisturbed.setListener(reference);
+			
+			VirtualScheduler retainedClock = new VirtualScheduler();
+			SpinEngine retained = createEngine(retainedClock, numChoices, seed);
+			Instance attached = new Instance(retainedClock);
+			retained.setListener(attached);
+			int stops = 0;
+			
+			int r = 0, shake = 0;
+			
+			while(r < count || shake < shakes) {
+				boolean recreate = r < count && (shake >= shakes || recreations[r] < shakeTimes[shake]);
+				long time = recreate ? recreations[r] : shakeTimes[shake];
+				
+				undisturbedClock.advanceTo(time);
+				retainedClock.advanceTo(time);
+				
+				if(!recreate) {
+					undisturbed.shake(intensities[shake]);
+					retained.shake(intensities[shake]);
+					shake++;
+					continue;
+				}
+				
+				double expected = undisturbed.getAngle(time);
+				
+				long start = System.nanoTime();
+				Instance next = new Instance(retainedClock);
+				retained.setListener(next);
+				double angle = retained.getAngle( retainedClock.nanoTime() );
+				reattachNanos += System.nanoTime() - start;
+				
+				if(angle != expected || retained.isSpinning() != undisturbed.isSpinning()) {
+					result.angleMismatches++;
+				}
+				
+				// from now on stops are reported to the new instance only
+				detached[r] = attached;
+				detachedStops[r] = attached.stops;
+				stops += attached.stops;
+				attached = next;
+				
+				result.recreations++;
+				r++;
+			}
+			
+			undisturbedClock.runAll();
+			retainedClock.runAll();
+			
+			boolean same = stops + attached.stops == reference.stops && attached.spoke == reference.spoke 
+					&& attached.stopTime == reference.stopTime;
+			for(int i=0; i < count; i++) {
+				same &= detached[i].stops == detachedStops[i];
+			}
+			
+			if(!same) {
+				result.mismatches++;
+			}
+			
+			result.spins++;
+		}
+		
+		result.reattachNanos = (result.recreations > 0) ? (double) reattachNanos / result.recreations : 0;
+		return result;
+	}
+	
+	static SpinEngine createEngine(VirtualScheduler scheduler, int numChoices, long seed) {
+		SpinEngine engine = new SpinEngine(new SpinModel(), new UniformDirectionChooser( new Xoshiro256Random(seed) ),
+				scheduler, scheduler);
+		engine.setNumChoices(numChoices);
+		return engine;
+	}
+	
+	/**
+	 * @return The time the spin of the given shakes stops when it is left alone
+	 */
+	static long getStopTime(int numChoices, long seed, long[] shakeTimes, float[] intensities, int shakes) {
+		
+		VirtualScheduler clock = new VirtualScheduler();
+		SpinEngine engine = createEngine(clock, numChoices, seed);
+		
+		for(int i=0; i < shakes; i++) {
+			clock.advanceTo(shakeTimes[i]);
+			engine.shake(intensities[i]);
+		}
+		clock.runAll();
+		
+		return clock.nanoTime();
+	}
+	
+	public static void main(String[] args) {
+		
+		int spins = (args.length > 0) ? Integer.parseInt(args[0]) : SPINS;
+		
+		Result result = null;
+		for(int round=0; round < 2; round++) {
+			// the first round warms up the JIT, the second is the one timed
+			result = compare(spins, new Xoshiro256Random(4));
+		}
+		
+		System.out.println( String.format("%d spins, %d recreations: %d outcome mismatches, %d angle mismatches, reattach %.1f ns",
+				result.spins, result.recreations, result.mismatches, result.angleMismatches, result.reattachNanos) );
+		
+		if(result.mismatches > 0 || result.angleMismatches > 0) {
+			System.exit(1);
+		}
+	}
+}
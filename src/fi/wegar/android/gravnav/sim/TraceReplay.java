@@ -0,0 +1,279 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.wegar.android.gravnav.shake.GravityShakeDetector;
+import fi.wegar.android.gravnav.shake.SensorTrace;
+import fi.wegar.android.gravnav.shake.ShakeDetector;
+import fi.wegar.android.gravnav.spin.SpinEngine;
+import fi.wegar.android.gravnav.spin.SpinModel;
+import fi.wegar.android.gravnav.spin.UniformDirectionChooser;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+import fi.wegar.android.gravnav.util.GravNavConfig;
+import fi.wegar.android.gravnav.util.VirtualScheduler;
+
+/**
+ * Replays recorded accelerometer traces through the whole shake to result pipeline of the app: a 
+ * ShakeDetector feeding a SpinEngine, on virtual time. Spins finish as soon as their end is scheduled 
+ * instead of seconds later, and a replay with the same parameters and seed always gives the same spins.
+ * 
+ * Run from the command line: TraceReplay [-choices n] [-seed s] [-threshold t] [-gravity] [-repeat n] trace.csv|trace.bin ...
+ * 
+ * Every spin is printed as a CSV line: trace, spin, first shake ms, stop ms, duration ms, shakes, spoke, choices
+ */
+public class TraceReplay {
+
+	/**
+	 * One spin found in a trace, times relative to the first sample
+	 */
+	public static class Spin {
+		
+		public final long shakeNanos;
+		public final long stopNanos;
+		public final int shakes;
+		public final int spoke;
+		public final int numChoices;
+		
+		public Spin(long shakeNanos, long stopNanos, int shakes, int spoke, int numChoices) {
+			this.shakeNanos = shakeNanos;
+			this.stopNanos = stopNanos;
+			this.shakes = shakes;
+			this.spoke = spoke;
+			this.numChoices = numChoices;
+		}
+		
+		/**
+		 * @return The time from the first shake to the result
+		 */
+		public long getDurationNanos() {
+			return stopNanos - shakeNanos;
+		}
+	}
+	
+	/**
+	 * The spins of one replay
+	 */
+	public static class Result {
+		
+		public final List<Spin> spins = new ArrayList<Spin>();
+		
+		/**
+		 * The number of shakes detected, including those that sped up a running spin
+		 */
+		public int shakes = 0;
+		
+		/**
+		 * Spins still running at the end of the trace are finished on virtual time, this is the time of the last sample
+		 */
+		public long traceNanos = 0;
+	}
+	
+	private boolean mGravityFiltered = false;
+	private float mThreshold = ShakeDetector.DEFAULT_THRESHOLD;
+	private long mMinIntervalNanos = ShakeDetector.DEFAULT_MIN_INTERVAL_NANOS;
+	
+	private float mStopThreshold = SpinModel.DEFAULT_STOP_THRESHOLD;
+	private double mDecay = SpinModel.DEFAULT_DECAY;
+	
+	private int mNumChoices = 3;
+	private long mSeed = 0;
+	
+	
+	/**
+	 * @param gravityFiltered true for a GravityShakeDetector, false for the summed delta ShakeDetector
+	 * @param threshold The threshold of the detector
+	 * @param minIntervalNanos
+	 */
+	public void setShakeDetection(boolean gravityFiltered, float threshold, long minIntervalNanos) {
+		mGravityFiltered = gravityFiltered;
+		mThreshold = threshold;
+		mMinIntervalNanos = minIntervalNanos;
+	}
+	
+	public void setSpin(float stopThreshold, double decay) {
+		mStopThreshold = stopThreshold;
+		mDecay = decay;
+	}
+	
+	/**
+	 * Use the parameters of a configuration, with the summed delta detector of the app
+	 * 
+	 * @param config
+	 */
+	public void setConfig(GravNavConfig config) {
+		setShakeDetection(false, config.getShakeThreshold(), config.getMinIntervalNanos());
+		setSpin(config.getStopThreshold(), config.getDecay());
+	}
+	
+	public void setNumChoices(int numChoices) {
+		mNumChoices = numChoices;
+	}
+	
+	/**
+	 * @param seed Seeds the direction chooser at the start of every replay
+	 */
+	public void setSeed(long seed) {
+		mSeed = seed;
+	}
+	
+	/**
+	 * Replay a trace from its first sample, finishing any spin still running at its end
+	 * 
+	 * @param trace
+	 * @return
+	 */
+	public Result replay(SensorTrace trace) {
+		
+		final Result result = new Result();
+		
+		if(trace.size() == 0) {
+			return result;
+		}
+		
+		final long start = trace.getTimestamp(0);
+		final VirtualScheduler scheduler = new VirtualScheduler(start);
+		
+		final SpinEngine engine = new SpinEngine(new SpinModel(mStopThreshold, mDecay), 
+				new UniformDirectionChooser( new Xoshiro256Random(mSeed) ), scheduler, scheduler);
+		engine.setNumChoices(mNumChoices);
+		
+		final long[] spinShake = new long[1];
+		final int[] spinShakes = new int[1];
+		
+		engine.setListener(new SpinEngine.Listener() {
+			public void onSpinStarted(SpinEngine engine) {
+				spinShake[0] = scheduler.nanoTime();
+				spinShakes[0] = 0;
+			}
+			
+			public void onSpinStopped(SpinEngine engine, int spoke) {
+				result.spins.add( new Spin(spinShake[0] - start, scheduler.nanoTime() - start, 
+						spinShakes[0], spoke, engine.getNumChoices()) );
+			}
+		});
+		
+		ShakeDetector.OnShakeListener shakes = new ShakeDetector.OnShakeListener() {
+			public void onShake(long timestampNanos, float intensity) {
+				result.shakes++;
+				engine.shake(intensity);
+				spinShakes[0]++;
+			}
+		};
+		
+		ShakeDetector detector = mGravityFiltered 
+				? new GravityShakeDetector(mThreshold, mMinIntervalNanos, GravityShakeDetector.DEFAULT_TIME_CONSTANT_NANOS, shakes) 
+				: new ShakeDetector(mThreshold, mMinIntervalNanos, shakes);
+		
+		for(int i=0; i < trace.size(); i++) {
+			long timestamp = trace.getTimestamp(i);
+			
+			// finish what was due before this sample, then process it at its own time
+			scheduler.advanceTo(timestamp);
+			detector.onSample(timestamp, trace.getX(i), trace.getY(i), trace.getZ(i));
+		}
+		
+		result.traceNanos = trace.getTimestamp(trace.size()-1) - start;
+		scheduler.runAll();
+		
+		return result;
+	}
+	
+	/**
+	 * Read a trace, binary if the file name ends with .bin and CSV otherwise
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static SensorTrace readTrace(File file) throws IOException {
+		
+		if(file.getName().endsWith(".bin")) {
+			InputStream in = new FileInputStream(file);
+			try {
+				return SensorTrace.readBinary(in);
+			} finally {
+				in.close();
+			}
+		}
+		
+		Reader in = new FileReader(file);
+		try {
+			return SensorTrace.readCsv(in);
+		} finally {
+			in.close();
+		}
+	}
+	
+	public static void main(String[] args) throws IOException {
+		
+		TraceReplay replay = new TraceReplay();
+		List<File> files = new ArrayList<File>();
+		int repeat = 1;
+		boolean gravity = false;
+		float threshold = Float.NaN;
+		
+		for(int i=0; i < args.length; i++) {
+			if(args[i].equals("-choices")) {
+				replay.setNumChoices( Integer.parseInt(args[++i]) );
+			} else if(args[i].equals("-seed")) {
+				replay.setSeed( Long.parseLong(args[++i]) );
+			} else if(args[i].equals("-threshold")) {
+				threshold = Float.parseFloat(args[++i]);
+			} else if(args[i].equals("-gravity")) {
+				gravity = true;
+			} else if(args[i].equals("-repeat")) {
+				repeat = Integer.parseInt(args[++i]);
+			} else {
+				files.add( new File(args[i]) );
+			}
+		}
+		
+		if(files.isEmpty()) {
+			System.err.println("Usage: TraceReplay [-choices n] [-seed s] [-threshold t] [-gravity] [-repeat n] trace.csv|trace.bin ...");
+			System.exit(1);
+		}
+		
+		if(Float.isNaN(threshold)) {
+			threshold = gravity ? GravityShakeDetector.DEFAULT_THRESHOLD : ShakeDetector.DEFAULT_THRESHOLD;
+		}
+		replay.setShakeDetection(gravity, threshold, ShakeDetector.DEFAULT_MIN_INTERVAL_NANOS);
+		
+		List<SensorTrace> traces = new ArrayList<SensorTrace>();
+		for(File file : files) {
+			traces.add( readTrace(file) );
+		}
+		
+		System.out.println("trace,spin,shake_ms,stop_ms,duration_ms,shakes,spoke,choices");
+		
+		long spins = 0;
+		long start = System.nanoTime();
+		
+		for(int r=0; r < repeat; r++) {
+			for(int t=0; t < traces.size(); t++) {
+				Result result = replay.replay( traces.get(t) );
+				spins += result.spins.size();
+				
+				if(r > 0) {
+					continue;
+				}
+				
+				for(int s=0; s < result.spins.size(); s++) {
+					Spin spin = result.spins.get(s);
+					System.out.println( String.format("%s,%d,%.1f,%.1f,%.1f,%d,%d,%d", files.get(t).getName(), s+1, 
+							spin.shakeNanos / 1e6, spin.stopNanos / 1e6, spin.getDurationNanos() / 1e6, 
+							spin.shakes, spin.spoke, spin.numChoices) );
+				}
+			}
+		}
+		
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.println( String.format("%d spins in %.3f s, %.0f spins/s", spins, seconds, spins / seconds) );
+	}
+}
@@ -0,0 +1,313 @@
+package fi.wegar.android.gravnav.sim;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fi.wegar.android.gravnav.graph.OsmXmlImporter;
+import fi.wegar.android.gravnav.graph.StreetGraph;
+import fi.wegar.android.gravnav.graph.StreetGraphFile;
+import fi.wegar.android.gravnav.graph.VisitedEdgeSketch;
+import fi.wegar.android.gravnav.spin.NoveltyDirectionChooser;
+import fi.wegar.android.gravnav.spin.UniformDirectionChooser;
+import fi.wegar.android.gravnav.spin.Xoshiro256Random;
+
+/**
+ * Simulates walks over a street graph where every junction is decided by a DirectionChooser, the 
+ * same way as in the app, to compare decision policies before they are shipped.
+ * 
+ * A walker makes WALKS_PER_WALKER walks from the same home node, so policies that remember where the 
+ * walker has been get something to remember. Streets are only chosen at junctions; at a node with two 
+ * streets the walk continues on the other one and at a dead end it turns back.
+ * 
+ * Run from the command line: WalkSimulator graph.gsg|graph.osm [walks] [steps per walk] [seed]
+ */
+public class WalkSimulator {
+
+	/**
+	 * How the next street is chosen at a junction
+	 */
+	public enum Policy {
+		/**
+		 * Every street leaving the junction, including the one the walker arrived on
+		 */
+		UNIFORM,
+		/**
+		 * Every street except the one the walker arrived on, as in the app at a known junction
+		 */
+		AVOID_BACKTRACKING,
+		/**
+		 * Like AVOID_BACKTRACKING, but streets the walker has not walked yet are preferred
+		 */
+		NOVELTY
+	}
+	
+	/**
+	 * The number of walks each walker makes from its home node
+	 */
+	static final int WALKS_PER_WALKER = 20;
+	
+	
+	/**
+	 * Primitive totals of the walks of one worker, merged into the result
+	 */
+	public static class Result {
+		
+		public final Policy policy;
+		
+		public long walks = 0;
+		public long steps = 0;
+		
+		/**
+		 * Walks that passed through their start node again
+		 */
+		public long returns = 0;
+		
+		/**
+		 * The sum over all walks of the distinct nodes in the walk divided by its length
+		 */
+		public double diversity = 0;
+		
+		/**
+		 * A bit for every node reached by any walk
+		 */
+		public final long[] reached;
+		
+		public Result(Policy policy, int nodeCount) {
+			this.policy = policy;
+			this.reached = new long[(nodeCount + 63) >>> 6];
+		}
+		
+		void merge(Result other) {
+			walks += other.walks;
+			steps += other.steps;
+			returns += other.returns;
+			diversity += other.diversity;
+			
+			for(int i=0; i < reached.length; i++) {
+				reached[i] |= other.reached[i];
+			}
+		}
+		
+		/**
+		 * @return The fraction of the graph's nodes reached by any walk
+		 */
+		public double getCoverage(int nodeCount) {
+			long count = 0;
+			for(int i=0; i < reached.length; i++) {
+				count += Long.bitCount(reached[i]);
+			}
+			return (double) count / nodeCount;
+		}
+		
+		/**
+		 * @return The fraction of walks that passed through their start node again
+		 */
+		public double getReturnRate() {
+			return walks == 0 ? 0 : (double) returns / walks;
+		}
+		
+		/**
+		 * @return The mean fraction of distinct nodes in a walk, 1 for a walk that never repeats a node
+		 */
+		public double getPathDiversity() {
+			return walks == 0 ? 0 : diversity / walks;
+		}
+	}
+	
+	
+	/**
+	 * Simulate walks with one policy, spread over the given number of threads. The graph is only read, 
+	 * so it is shared by the workers.
+	 * 
+	 * @param graph
+	 * @param policy
+	 * @param walks The total number of walks
+	 * @param steps The number of streets walked in each walk
+	 * @param executor Runs the workers
+	 * @param threads The number of workers
+	 * @param random Split once per worker
+	 * @return
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public static Result simulate(final StreetGraph graph, final Policy policy, long walks, final int steps, 
+			ExecutorService executor, int threads, Xoshiro256Random random) throws InterruptedException, ExecutionException {
+		
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		
+		for(int t=0; t < threads; t++) {
+			final long workerWalks = walks / threads + ( (t < walks % threads) ? 1 : 0 );
+			final Xoshiro256Random workerRandom = random.split();
+			
+			futures.add( executor.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					return simulateWorker(graph, policy, workerWalks, steps, workerRandom);
+				}
+			}) );
+		}
+		
+		Result result = new Result(policy, graph.getNodeCount());
+		
+		for(Future<Result> future : futures) {
+			result.merge( future.get() );
+		}
+		
+		return result;
+	}
+	
+	static Result simulateWorker(StreetGraph graph, Policy policy, long walks, int steps, Xoshiro256Random random) {
+		
+		Result result = new Result(policy, graph.getNodeCount());
+		
+		UniformDirectionChooser uniform = new UniformDirectionChooser(random.split());
+		VisitedEdgeSketch visited = new VisitedEdgeSketch(WALKS_PER_WALKER*steps, VisitedEdgeSketch.DEFAULT_FALSE_POSITIVE_RATE);
+		NoveltyDirectionChooser novelty = new NoveltyDirectionChooser(visited, random.split(), NoveltyDirectionChooser.DEFAULT_UNVISITED_WEIGHT);
+		
+		// the walk each node was last seen in, so distinct nodes are counted without clearing a set
+		int[] seenInWalk = new int[graph.getNodeCount()];
+		int walkId = 0;
+		
+		int[] targets = new int[8];
+		int home = -1;
+		
+		for(long w=0; w < walks; w++) {
+			
+			if(w % WALKS_PER_WALKER == 0) {
+				home = randomStart(graph, random);
+				visited.clear();
+			}
+			if(home < 0) {
+				break;
+			}
+			
+			walkId++;
+			int node = home;
+			int previous = -1;
+			int distinct = 1;
+			boolean returned = false;
+			
+			seenInWalk[node] = walkId;
+			result.reached[node >>> 6] |= 1L << node;
+			
+			for(int s=0; s < steps; s++) {
+				
+				int first = graph.getFirstEdge(node);
+				int degree = graph.getDegree(node);
+				
+				if(degree > targets.length) {
+					targets = new int[degree*2];
+				}
+				
+				int arrival = -1;
+				for(int i=0; i < degree; i++) {
+					targets[i] = graph.getEdgeTarget(first + i);
+					if(targets[i] == previous && arrival < 0) {
+						arrival = i;
+					}
+				}
+				if(arrival < 0) {
+					// no street behind the walker yet, so any of them is the reference
+					arrival = random.nextInt(degree);
+				}
+				
+				int next;
+				if(degree == 1) {
+					next = targets[0];
+				} else if(degree == 2 && previous >= 0) {
+					next = targets[1 - arrival];
+				} else if(policy == Policy.UNIFORM) {
+					next = targets[uniform.choose(degree) - 1];
+				} else if(policy == Policy.AVOID_BACKTRACKING) {
+					next = targets[(arrival + uniform.choose(degree - 1)) % degree];
+				} else {
+					novelty.setJunction(node, targets, 0, degree, arrival);
+					next = novelty.getTarget( novelty.choose(degree - 1) );
+				}
+				
+				if(policy == Policy.NOVELTY) {
+					visited.add(node, next);
+				}
+				
+				previous = node;
+				node = next;
+				
+				if(seenInWalk[node] != walkId) {
+					seenInWalk[node] = walkId;
+					distinct++;
+				}
+				if(node == home) {
+					returned = true;
+				}
+				result.reached[node >>> 6] |= 1L << node;
+			}
+			
+			result.walks++;
+			result.steps += steps;
+			if(returned) {
+				result.returns++;
+			}
+			result.diversity += (double) distinct / (steps + 1);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * @return A random node with at least one street, or -1 if none is found
+	 */
+	static int randomStart(StreetGraph graph, Xoshiro256Random random) {
+		
+		int nodeCount = graph.getNodeCount();
+		
+		for(int i=0; i < 1000 && nodeCount > 0; i++) {
+			int node = random.nextInt(nodeCount);
+			if(graph.getDegree(node) > 0) {
+				return node;
+			}
+		}
+		return -1;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		
+		if(args.length < 1) {
+			System.err.println("Usage: WalkSimulator graph.gsg|graph.osm [walks] [steps per walk] [seed]");
+			System.exit(1);
+		}
+		
+		File file = new File(args[0]);
+		long walks = (args.length > 1) ? Long.parseLong(args[1]) : 1000000L;
+		int steps = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+		long seed = (args.length > 3) ? Long.parseLong(args[3]) : System.nanoTime();
+		
+		StreetGraph graph = file.getName().endsWith(".osm") ? OsmXmlImporter.read(file) : StreetGraphFile.open(file);
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Xoshiro256Random random = new Xoshiro256Random(seed);
+		
+		System.out.println("seed "+seed+", "+graph.getNodeCount()+" nodes, "+walks+" walks of "+steps+" streets, "+threads+" threads");
+		
+		try {
+			for(Policy policy : Policy.values()) {
+				
+				long start = System.nanoTime();
+				Result result = simulate(graph, policy, walks, steps, executor, threads, random);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				
+				System.out.println( String.format("%-18s  coverage %.4f  returns %.4f  diversity %.4f  %.0f walks/s", 
+						policy, result.getCoverage(graph.getNodeCount()), result.getReturnRate(), 
+						result.getPathDiversity(), result.walks / seconds) );
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package fi.wegar.android.gravnav.spin;
+
+/**
+ * Decides which direction a spin stops on. The spin animation is then steered to that direction 
+ * with {@link SpinModel#setTargetSpoke(int, int, int)}, so the outcome does not depend on how hard 
+ * the phone was shaken.
+ */
+public interface DirectionChooser {
+
+	/**
+	 * @param numChoices
+	 * @return The chosen direction, from 1 to numChoices
+	 */
+	int choose(int numChoices);
+}
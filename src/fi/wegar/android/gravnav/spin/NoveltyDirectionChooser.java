@@ -0,0 +1,162 @@
+package fi.wegar.android.gravnav.spin;
+
+import fi.wegar.android.gravnav.graph.Junction;
+import fi.wegar.android.gravnav.graph.VisitedEdgeSketch;
+
+/**
+ * Chooses the streets of the current junction the user has not walked yet more often than the ones 
+ * they have. 
+ * 
+ * Direction 1 is the first street clockwise from the one the user arrived on, and so on around the 
+ * junction. When no junction is set, or the number of choices doesn't match it, every direction is 
+ * equally likely.
+ */
+public class NoveltyDirectionChooser implements DirectionChooser {
+
+	/**
+	 * How many times more likely an unvisited street is chosen than a visited one
+	 */
+	public static final double DEFAULT_UNVISITED_WEIGHT = 4;
+	
+	private final VisitedEdgeSketch mVisited;
+	private final Xoshiro256Random mRandom;
+	private final double mUnvisitedWeight;
+	
+	private int mNode = -1;
+	private int mCount = 0;
+	
+	/**
+	 * The nodes the directions lead to, in direction order
+	 */
+	private int[] mTargets = new int[8];
+	
+	/**
+	 * Scratch for choose, whether each direction has been walked
+	 */
+	private boolean[] mWalked = new boolean[8];
+	
+	
+	public NoveltyDirectionChooser(VisitedEdgeSketch visited) {
+		this(visited, new Xoshiro256Random(), DEFAULT_UNVISITED_WEIGHT);
+	}
+	
+	/**
+	 * @param visited
+	 * @param random The generator to draw from, not shared with other threads
+	 * @param unvisitedWeight
+	 */
+	public NoveltyDirectionChooser(VisitedEdgeSketch visited, Xoshiro256Random random, double unvisitedWeight) {
+		mVisited = visited;
+		mRandom = random;
+		mUnvisitedWeight = unvisitedWeight;
+	}
+	
+	/**
+	 * Set the junction the next spin is made at
+	 * 
+	 * @param junction
+	 * @param fromNode The node the user arrived from, or -1 if not known
+	 */
+	public void setJunction(Junction junction, int fromNode) {
+		
+		int count = junction.getStreetCount();
+		
+		int arrival = 0;
+		for(int i=0; i < count; i++) {
+			if(junction.getTarget(i) == fromNode) {
+				arrival = i;
+				break;
+			}
+		}
+		
+		ensureCapacity(count);
+		
+		mNode = junction.getNode();
+		mCount = Math.max(0, count - 1);
+		for(int i=0; i < mCount; i++) {
+			mTargets[i] = junction.getTarget( (arrival + 1 + i) % count );
+		}
+	}
+	
+	/**
+	 * Set the junction from the node's streets in the graph, for walks that don't go through Junction lookups
+	 * 
+	 * @param node
+	 * @param targets The nodes at the other end of the streets, in bearing order
+	 * @param offset
+	 * @param count
+	 * @param arrival The index of the street the user arrived on
+	 */
+	public void setJunction(int node, int[] targets, int offset, int count, int arrival) {
+		
+		ensureCapacity(count);
+		
+		mNode = node;
+		mCount = Math.max(0, count - 1);
+		for(int i=0; i < mCount; i++) {
+			mTargets[i] = targets[offset + (arrival + 1 + i) % count];
+		}
+	}
+	
+	public void clearJunction() {
+		mNode = -1;
+		mCount = 0;
+	}
+	
+	/**
+	 * @param direction From 1 to the number of choices of the junction
+	 * @return The node the direction leads to, or -1 if no junction is set
+	 */
+	public int getTarget(int direction) {
+		return mNode < 0 ? -1 : mTargets[direction - 1];
+	}
+	
+	/**
+	 * Mark the street from the junction in the given direction as visited
+	 * 
+	 * @param direction
+	 */
+	public void markVisited(int direction) {
+		if(mNode >= 0 && direction >= 1 && direction <= mCount) {
+			mVisited.add(mNode, mTargets[direction - 1]);
+		}
+	}
+	
+	@Override
+	public int choose(int numChoices) {
+		
+		if(mNode < 0 || numChoices != mCount) {
+			return mRandom.nextInt(numChoices) + 1;
+		}
+		
+		int unvisited = 0;
+		for(int i=0; i < mCount; i++) {
+			mWalked[i] = mVisited.mightContain(mNode, mTargets[i]);
+			if(!mWalked[i]) {
+				unvisited++;
+			}
+		}
+		
+		if(unvisited == 0 || unvisited == mCount) {
+			return mRandom.nextInt(numChoices) + 1;
+		}
+		
+		// pick a point on the summed weights and walk to the direction it falls on
+		double pick = mRandom.nextDouble() * ( unvisited*mUnvisitedWeight + (mCount - unvisited) );
+		
+		for(int i=0; i < mCount; i++) {
+			pick -= mWalked[i] ? 1 : mUnvisitedWeight;
+			if(pick < 0) {
+				return i + 1;
+			}
+		}
+		return mCount;
+	}
+	
+	private void ensureCapacity(int count) {
+		if(mTargets.length < count) {
+			mTargets = new int[count*2];
+			mWalked = new boolean[count*2];
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package fi.wegar.android.gravnav.spin;
+
+import fi.wegar.android.gravnav.util.Clock;
+import fi.wegar.android.gravnav.util.Scheduler;
+
+/**
+ * Runs spins from shakes to result: every shake speeds up the SpinModel and picks the direction the 
+ * spin will stop on with a DirectionChooser, and the end of the spin is scheduled for when the arrow 
+ * comes to rest.
+ * 
+ * Time comes from the Clock and the end of the spin from the Scheduler, so the same engine runs on the 
+ * UI thread of the app and on virtual time when traces are replayed. Not thread safe.
+ */
+public class SpinEngine {
+
+	/**
+	 * Receives the start and end of the spins of a SpinEngine
+	 */
+	public interface Listener {
+		
+		void onSpinStarted(SpinEngine engine);
+		
+		/**
+		 * @param engine
+		 * @param spoke The spoke the arrow stopped on, from 1 to the number of choices
+		 */
+		void onSpinStopped(SpinEngine engine, int spoke);
+	}
+	
+	private final SpinModel mSpin;
+	private final Clock mClock;
+	private final Scheduler mScheduler;
+	
+	private DirectionChooser mChooser;
+	private Listener mListener;
+	
+	private int mNumChoices = 3;
+	
+	/**
+	 * The angles of the spokes, a copy of the ones last set, or null when they are evenly spaced
+	 */
+	private SpokeAngles mSpokeAngles;
+	private final SpokeAngles mSpokeAnglesCopy = new SpokeAngles();
+	
+	/**
+	 * The spoke the arrow was on when the current spin started, and the one it is on now
+	 */
+	private int mStartSpoke = 0;
+	private int mSpoke = 0;
+	
+	/**
+	 * The summed intensity of the shakes that drove the current spin
+	 */
+	private float mEnergy = 0;
+	
+	private long mStopTime;
+	
+	private final Runnable mStopTask = new Runnable() {
+		public void run() {
+			stop();
+		}
+	};
+	
+	
+	/**
+	 * @param spin
+	 * @param chooser
+	 * @param clock
+	 * @param scheduler Must run tasks on the thread the engine is used from
+	 */
+	public SpinEngine(SpinModel spin, DirectionChooser chooser, Clock clock, Scheduler scheduler) {
+		mSpin = spin;
+		mChooser = chooser;
+		mClock = clock;
+		mScheduler = scheduler;
+	}
+	
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+	
+	public void setChooser(DirectionChooser chooser) {
+		mChooser = chooser;
+	}
+	
+	public DirectionChooser getChooser() {
+		return mChooser;
+	}
+	
+	/**
+	 * @param numChoices If this doesn't match the spoke angles, the spokes are spaced evenly again
+	 */
+	public void setNumChoices(int numChoices) {
+		if(mSpokeAngles != null && numChoices != mSpokeAngles.getNumChoices()) {
+			mSpokeAngles = null;
+		}
+		mNumChoices = numChoices;
+	}
+	
+	public int getNumChoices() {
+		return mNumChoices;
+	}
+	
+	/**
+	 * Place the spokes at the given angles instead of evenly, or evenly again if null. The number of 
+	 * choices is taken from the angles, and the arrow is moved to the spoke closest to where it points.
+	 * Only call between spins. The angles are copied, so call again when they change.
+	 * 
+	 * @param spokes
+	 */
+	public void setSpokeAngles(SpokeAngles spokes) {
+		
+		double angle = getAngle( mClock.nanoTime() );
+		
+		if(spokes == null) {
+			mSpokeAngles = null;
+			return;
+		}
+		
+		mSpokeAnglesCopy.set(spokes);
+		mSpokeAngles = mSpokeAnglesCopy;
+		mNumChoices = spokes.getNumChoices();
+		mSpoke = Math.max(0, spokes.getNearestSpoke(angle));
+	}
+	
+	/**
+	 * @return The angles of the spokes, or null when they are evenly spaced
+	 */
+	public SpokeAngles getSpokeAngles() {
+		return mSpokeAngles;
+	}
+	
+	/**
+	 * Apply a shake. A new spin is started from the spoke the arrow is on, or the running one is sped up. 
+	 * Either way a new direction is chosen and the spin takes just enough extra spokes to stop on it, without lasting longer.
+	 * 
+	 * @param intensity
+	 * @return true if a new spin was started
+	 */
+	public boolean shake(float intensity) {
+		
+		long now = mClock.nanoTime();
+		
+		if(mSpin.isRunning()) {
+			mSpin.advance(now);
+			mSpoke = SpinModel.getSpokeAfter(mStartSpoke, mSpin.getSteps(), mNumChoices);
+		}
+		
+		boolean started = mSpin.shake(now, intensity);
+		
+		if(started) {
+			mStartSpoke = mSpoke;
+			mEnergy = 0;
+		}
+		
+		if(!mSpin.isRunning()) {
+			// too weak to move the arrow
+			return false;
+		}
+		mEnergy += intensity;
+		
+		mSpin.setTargetSpoke(mStartSpoke, mChooser.choose(mNumChoices), mNumChoices);
+		
+		mStopTime = mSpin.getStopTime();
+		mScheduler.cancel(mStopTask);
+		mScheduler.schedule(mStopTask, mStopTime - now);
+		
+		if(started && mListener != null) {
+			mListener.onSpinStarted(this);
+		}
+		
+		return started;
+	}
+	
+	/**
+	 * @param nowNanos
+	 * @return The angle of the arrow in degrees
+	 */
+	public double getAngle(long nowNanos) {
+		
+		if(!mSpin.isRunning()) {
+			return (mSpokeAngles == null) ? SpinModel.getSpokeAngle(mSpoke, mNumChoices) : mSpokeAngles.getAngle(mSpoke);
+		}
+		
+		double angle = (mSpokeAngles == null) ? mSpin.getAngle(nowNanos, mStartSpoke, mNumChoices) 
+				: mSpin.getAngle(nowNanos, mStartSpoke, mSpokeAngles);
+		mSpoke = SpinModel.getSpokeAfter(mStartSpoke, mSpin.getSteps(), mNumChoices);
+		
+		return angle;
+	}
+	
+	/**
+	 * @return true from the start of a spin until it has been reported stopped
+	 */
+	public boolean isSpinning() {
+		return mSpin.isRunning();
+	}
+	
+	/**
+	 * @return true while the arrow still moves. It then rests on its final spoke until the spin stops.
+	 */
+	public boolean isMoving() {
+		return mSpin.isMoving();
+	}
+	
+	/**
+	 * @return The spoke the arrow was on when last looked at
+	 */
+	public int getSpoke() {
+		return mSpoke;
+	}
+	
+	/**
+	 * @return The spoke the current spin will stop on, or the current spoke when not spinning
+	 */
+	public int getFinalSpoke() {
+		if(!mSpin.isRunning()) {
+			return mSpoke;
+		}
+		return SpinModel.getSpokeAfter(mStartSpoke, mSpin.getFinalSteps(), mNumChoices);
+	}
+	
+	public int getStartSpoke() {
+		return mStartSpoke;
+	}
+	
+	public float getEnergy() {
+		return mEnergy;
+	}
+	
+	/**
+	 * @return When the current spin started
+	 */
+	public long getStartTime() {
+		return mSpin.getStartTime();
+	}
+	
+	/**
+	 * @return When the current spin is scheduled to stop
+	 */
+	public long getStopTime() {
+		return mStopTime;
+	}
+	
+	public SpinModel getSpinModel() {
+		return mSpin;
+	}
+	
+	/**
+	 * Drop the scheduled end of the current spin, so the listener is not told about it. Call before 
+	 * releasing what the listener uses.
+	 */
+	public void cancel() {
+		mScheduler.cancel(mStopTask);
+	}
+	
+	private void stop() {
+		
+		mSpin.advance(mStopTime);
+		mSpoke = SpinModel.getSpokeAfter(mStartSpoke, mSpin.getSteps(), mNumChoices);
+		
+		if(mListener != null) {
+			mListener.onSpinStopped(this, mSpoke);
+		}
+	}
+}
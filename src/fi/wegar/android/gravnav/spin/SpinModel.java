@@ -0,0 +1,390 @@
+package fi.wegar.android.gravnav.spin;
+
+/**
+ * The physics and timing of the spinning arrow, as a function of time.
+ * 
+ * A shake sets the speed of the spin. The arrow then moves one spoke per tick, where each tick takes 
+ * 60000 / speed ms and the speed decays by a fixed factor every tick. When the speed falls below the 
+ * stop threshold the arrow is left on its spoke and the spin is finished one tick later. 
+ * Extra steps can be added to the spin, which lets a DirectionChooser pick the spoke it stops on. They 
+ * are taken in the first, fastest ticks after the last shake, a few spokes per tick, so steering never 
+ * adds ticks to the spin and it stops at the same time whatever the number of choices.
+ * 
+ * Since the position is computed from the time rather than counted per callback, a renderer can ask 
+ * for it at any frame, skip frames under load, and still end on exactly the same spoke at the same time.
+ * 
+ * Instances are not thread safe and hold no references to Android classes.
+ */
+public class SpinModel {
+
+	/**
+	 * The default speed below which the spin is considered stopped
+	 */
+	public static final float DEFAULT_STOP_THRESHOLD = 150;
+	
+	/**
+	 * The default fraction of speed lost each tick
+	 */
+	public static final double DEFAULT_DECAY = 0.1;
+	
+	private final float mStopThreshold;
+	private final double mDecay;
+	
+	private float mSpeed = 0;
+	
+	/**
+	 * The number of ticks since the spin started
+	 */
+	private int mTicks = 0;
+	
+	/**
+	 * The number of ticks before the speed falls below the stop threshold
+	 */
+	private int mFinalTicks = 0;
+	
+	/**
+	 * The ticks and the spokes moved at the end of the tick the spin was last shaken in, the extra 
+	 * steps are taken after it
+	 */
+	private int mBaseTicks = 0;
+	private int mBaseSteps = 0;
+	
+	/**
+	 * The spokes moved at the start of the tick the spin was last shaken in
+	 */
+	private int mShakeSteps = 0;
+	
+	/**
+	 * The number of spokes the arrow moves on top of one per tick
+	 */
+	private int mExtraSteps = 0;
+	
+	private boolean mRunning = false;
+	
+	private long mStartTime;
+	
+	/**
+	 * Time of the previous tick, or the start of the spin
+	 */
+	private long mLastTick;
+	
+	/**
+	 * Time of the next scheduled tick
+	 */
+	private long mNextTick;
+	
+	
+	public SpinModel() {
+		this(DEFAULT_STOP_THRESHOLD, DEFAULT_DECAY);
+	}
+	
+	/**
+	 * 
+	 * @param stopThreshold The speed below which the spin is considered stopped
+	 * @param decay The fraction of speed lost each tick
+	 */
+	public SpinModel(float stopThreshold, double decay) {
+		mStopThreshold = stopThreshold;
+		mDecay = decay;
+	}
+	
+	/**
+	 * Apply a shake to the spin. A running spin is sped up, otherwise a new spin is started.
+	 * 
+	 * @param nowNanos
+	 * @param intensity The intensity of the shake
+	 * @return true if a new spin was started
+	 */
+	public boolean shake(long nowNanos, float intensity) {
+		
+		advance(nowNanos);
+		
+		if(isMoving()) {
+			// the spin has not been allowed to stop (assuming the user is still shaking the device), so just add to the speed.
+			// The tick in progress ends on the spoke it was heading for, the new steps start after it.
+			mShakeSteps = getSteps();
+			mBaseSteps = getStepsAfter(mTicks + 1);
+			mBaseTicks = mTicks + 1;
+			mExtraSteps = 0;
+			
+			mSpeed += intensity;
+			mFinalTicks = Math.max(mBaseTicks, mTicks + SpinOutcome.getRemainingSteps(mSpeed, mStopThreshold, mDecay));
+			return false;
+		}
+		
+		mSpeed = intensity;
+		mTicks = 0;
+		mBaseTicks = 0;
+		mBaseSteps = 0;
+		mShakeSteps = 0;
+		mExtraSteps = 0;
+		mFinalTicks = SpinOutcome.getRemainingSteps(mSpeed, mStopThreshold, mDecay);
+		mStartTime = nowNanos;
+		mLastTick = nowNanos;
+		mNextTick = nowNanos + getTickDelay(mSpeed);
+		mRunning = mSpeed > mStopThreshold;
+		
+		return mRunning;
+	}
+	
+	/**
+	 * Process all ticks scheduled up to the given time
+	 * 
+	 * @param nowNanos
+	 */
+	public void advance(long nowNanos) {
+		
+		while(mRunning && nowNanos >= mNextTick) {
+			
+			if(mTicks < getFinalTicks()) {
+				// logarithmically decrease the speed
+				mSpeed -= mSpeed * mDecay;
+				mTicks++;
+				
+				mLastTick = mNextTick;
+				mNextTick += getTickDelay(mSpeed);
+			} else {
+				mRunning = false;
+			}
+		}
+	}
+	
+	/**
+	 * @return true until the spin has finished
+	 */
+	public boolean isRunning() {
+		return mRunning;
+	}
+	
+	/**
+	 * @return true while the arrow is still moving towards another spoke. 
+	 * A running spin that is no longer moving is waiting for its final tick.
+	 */
+	public boolean isMoving() {
+		return mRunning && mTicks < getFinalTicks();
+	}
+	
+	/**
+	 * @return The number of spokes moved since the start of the spin, as of the last advance
+	 */
+	public int getSteps() {
+		return getStepsAfter(mTicks);
+	}
+	
+	/**
+	 * @return The number of spokes the arrow will have moved when the spin finishes, known from the last shake
+	 */
+	public int getFinalSteps() {
+		return getStepsAfter( getFinalTicks() );
+	}
+	
+	/**
+	 * @return The number of ticks the spin moves for. Only if there are extra steps but no ticks left 
+	 * to take them in is a tick added.
+	 */
+	int getFinalTicks() {
+		return (mExtraSteps > 0 && mFinalTicks == mBaseTicks) ? mFinalTicks + 1 : mFinalTicks;
+	}
+	
+	/**
+	 * @return The number of spokes moved after the given number of ticks. The extra steps are spread 
+	 * evenly over the first ticks after the last shake.
+	 */
+	private int getStepsAfter(int ticks) {
+		
+		if(ticks < mBaseTicks) {
+			// still in the tick the spin was shaken in
+			return mShakeSteps;
+		}
+		
+		int ticksSinceShake = ticks - mBaseTicks;
+		int extra = 0;
+		
+		if(mExtraSteps > 0) {
+			int perTick = (mExtraSteps + getFinalTicks() - mBaseTicks - 1) / (getFinalTicks() - mBaseTicks);
+			extra = Math.min(mExtraSteps, ticksSinceShake * perTick);
+		}
+		
+		return mBaseSteps + ticksSinceShake + extra;
+	}
+	
+	/**
+	 * Add steps to the spin after the last shake, without adding ticks. Reset by every shake.
+	 * 
+	 * @param extraSteps
+	 */
+	public void setExtraSteps(int extraSteps) {
+		mExtraSteps = Math.max(0, extraSteps);
+	}
+	
+	/**
+	 * @return The number of steps added to the end of the spin
+	 */
+	public int getExtraSteps() {
+		return mExtraSteps;
+	}
+	
+	/**
+	 * Add as few steps as needed to the spin for it to stop on the given spoke, at most numChoices - 1
+	 * 
+	 * @param startSpoke The spoke the arrow was on when the spin started
+	 * @param targetSpoke The spoke to stop on, from 1 to numChoices
+	 * @param numChoices
+	 */
+	public void setTargetSpoke(int startSpoke, int targetSpoke, int numChoices) {
+		
+		int spoke = getSpokeAfter(startSpoke, mBaseSteps + mFinalTicks - mBaseTicks, numChoices);
+		
+		// the arrow visits every spoke once per numChoices steps
+		setExtraSteps( ((targetSpoke - spoke) % numChoices + numChoices) % numChoices );
+	}
+	
+	/**
+	 * @return the current speed
+	 */
+	public float getSpeed() {
+		return mSpeed;
+	}
+	
+	/**
+	 * @return The start time of the current or last spin
+	 */
+	public long getStartTime() {
+		return mStartTime;
+	}
+	
+	/**
+	 * @return The time of the next tick. When the spin is not moving, this is when it finishes.
+	 */
+	public long getNextTick() {
+		return mNextTick;
+	}
+	
+	/**
+	 * @return The time the spin finishes, one tick after its last step, if it is not sped up before that
+	 */
+	public long getStopTime() {
+		
+		float speed = mSpeed;
+		long tick = mNextTick;
+		
+		for(int ticks = mTicks; mRunning && ticks < getFinalTicks(); ticks++) {
+			speed -= speed * mDecay;
+			tick += getTickDelay(speed);
+		}
+		
+		return tick;
+	}
+	
+	/**
+	 * The position of the arrow, in spokes moved since the start of the spin. 
+	 * Between two ticks the position is interpolated linearly.
+	 * 
+	 * @param nowNanos
+	 * @return
+	 */
+	public double getPosition(long nowNanos) {
+		
+		advance(nowNanos);
+		
+		int steps = getSteps();
+		
+		if(!isMoving()) {
+			return steps;
+		}
+		
+		double fraction = (double) (nowNanos - mLastTick) / (mNextTick - mLastTick);
+		
+		return steps + (getStepsAfter(mTicks+1) - steps) * Math.min(1, Math.max(0, fraction));
+	}
+	
+	/**
+	 * The angle of the arrow at the given time
+	 * 
+	 * @param nowNanos
+	 * @param startSpoke The spoke the arrow was on when the spin started
+	 * @param numChoices
+	 * @return The angle in degrees
+	 */
+	public double getAngle(long nowNanos, int startSpoke, int numChoices) {
+		return getAngle(nowNanos, startSpoke, numChoices, null);
+	}
+	
+	/**
+	 * The angle of the arrow at the given time, with the spokes at the given angles
+	 * 
+	 * @param nowNanos
+	 * @param startSpoke The spoke the arrow was on when the spin started
+	 * @param spokes
+	 * @return The angle in degrees
+	 */
+	public double getAngle(long nowNanos, int startSpoke, SpokeAngles spokes) {
+		return getAngle(nowNanos, startSpoke, spokes.getNumChoices(), spokes);
+	}
+	
+	private double getAngle(long nowNanos, int startSpoke, int numChoices, SpokeAngles spokes) {
+		
+		double position = getPosition(nowNanos);
+		int steps = (int) position;
+		
+		int from = getSpokeAfter(startSpoke, steps, numChoices);
+		double fromAngle = (spokes == null) ? getSpokeAngle(from, numChoices) : spokes.getAngle(from);
+		
+		if(steps == position) {
+			return fromAngle;
+		}
+		
+		int to = getSpokeAfter(startSpoke, steps+1, numChoices);
+		double toAngle = (spokes == null) ? getSpokeAngle(to, numChoices) : spokes.getAngle(to);
+		
+		if(toAngle < fromAngle) {
+			// wrapping around past the backwards spoke
+			toAngle += 360;
+		}
+		
+		return fromAngle + (toAngle - fromAngle) * (position - steps);
+	}
+	
+	/**
+	 * Calculate the number of ns until the next tick at the given speed
+	 * 
+	 * @param speed
+	 * @return
+	 */
+	public static long getTickDelay(float speed) {
+		return Math.round( 1 / speed * 60000 ) * 1000000L;
+	}
+	
+	/**
+	 * The spoke the arrow is on after moving a number of steps. Spokes are numbered from 1 to numChoices, 
+	 * spoke 0 is the backwards direction, which the arrow skips.
+	 * 
+	 * @param startSpoke
+	 * @param steps
+	 * @param numChoices
+	 * @return
+	 */
+	public static int getSpokeAfter(int startSpoke, int steps, int numChoices) {
+		
+		if(steps == 0) {
+			return startSpoke;
+		}
+		
+		int first = (startSpoke+1 > numChoices) ? 1 : startSpoke+1;
+		
+		return (first - 1 + steps - 1) % numChoices + 1;
+	}
+	
+	/**
+	 * @param spoke
+	 * @param numChoices
+	 * @return The angle of the spoke in degrees
+	 */
+	public static double getSpokeAngle(int spoke, int numChoices) {
+		
+		// add 1 to numChoices to we account for the backwards direction in the arrow angles. The backwards arrow is not drawn on screen.
+		double stepSize = 360.0 / (numChoices+1);
+		
+		return stepSize * spoke;
+	}
+}
@@ -0,0 +1,71 @@
+package fi.wegar.android.gravnav.spin;
+
+/**
+ * Solves the outcome of a spin analytically, so the chosen direction is known as soon as the phone is shaken.
+ * 
+ * Each tick the spin moves one spoke and loses a fixed fraction of its speed, until the speed is at or 
+ * below the stop threshold. The speed after j ticks is speed*(1-decay)^j, so the number of steps is the 
+ * number of j for which that is still above the threshold.
+ */
+public class SpinOutcome {
+
+	/**
+	 * How close, in ticks, the exact solution may be to a whole number before float rounding in the 
+	 * iterated speed could change the result. Inside this margin the ticks are counted one by one instead.
+	 */
+	static final double ROUNDING_MARGIN = 1e-3;
+	
+	
+	/**
+	 * The number of steps a spin will still take from the given speed
+	 * 
+	 * @param speed The current speed of the spin
+	 * @param stopThreshold The speed at or below which the spin stops
+	 * @param decay The fraction of speed lost each tick
+	 * @return
+	 */
+	public static int getRemainingSteps(float speed, float stopThreshold, double decay) {
+		
+		if(!(speed > stopThreshold)) {
+			return 0;
+		}
+		
+		// the number of ticks until speed*(1-decay)^j reaches the threshold
+		double ticks = Math.log(speed / stopThreshold) / -Math.log(1 - decay);
+		
+		if( Math.abs(ticks - Math.rint(ticks)) < ROUNDING_MARGIN ) {
+			// too close to call, the float rounding of each tick decides
+			return countSteps(speed, stopThreshold, decay);
+		}
+		
+		return (int) Math.floor(ticks) + 1;
+	}
+	
+	/**
+	 * The spoke a spin will stop on
+	 * 
+	 * @param speed The initial speed of the spin
+	 * @param startSpoke The spoke the arrow is on when the spin starts
+	 * @param numChoices
+	 * @param stopThreshold
+	 * @param decay
+	 * @return
+	 */
+	public static int getFinalSpoke(float speed, int startSpoke, int numChoices, float stopThreshold, double decay) {
+		return SpinModel.getSpokeAfter(startSpoke, getRemainingSteps(speed, stopThreshold, decay), numChoices);
+	}
+	
+	/**
+	 * Count the steps tick by tick, with the same float arithmetic as SpinModel
+	 */
+	static int countSteps(float speed, float stopThreshold, double decay) {
+		int steps = 0;
+		
+		while(speed > stopThreshold) {
+			speed -= speed * decay;
+			steps++;
+		}
+		
+		return steps;
+	}
+}
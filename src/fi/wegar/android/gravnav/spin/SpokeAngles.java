@@ -0,0 +1,202 @@
+package fi.wegar.android.gravnav.spin;
+
+import fi.wegar.android.gravnav.graph.Junction;
+
+/**
+ * The angles of the spokes of a junction with streets at arbitrary bearings. Spoke 0 is the street the
+ * user arrived on, at angle 0, and the other spokes follow clockwise in ascending order of angle, so a
+ * position around the circle is mapped to its nearest spoke by binary search.
+ *
+ * The arrays are reused, so moving from one junction to the next does not allocate unless it has more
+ * streets than any before it.
+ */
+public class SpokeAngles {
+	
+	/**
+	 * The angle of each spoke in degrees clockwise from spoke 0, ascending
+	 */
+	private float[] mAngles = new float[8];
+	
+	/**
+	 * The bearing of each spoke in degrees clockwise from north
+	 */
+	private float[] mBearings = new float[8];
+	
+	private int mCount = 0;
+	
+	
+	/**
+	 * Take the spokes from a junction
+	 *
+	 * @param junction
+	 * @param back The street the user arrived on, which becomes spoke 0
+	 */
+	public void set(Junction junction, int back) {
+		
+		int count = junction.getStreetCount();
+		ensureCapacity(count);
+		
+		float backBearing = junction.getBearing(back);
+		
+		// the streets are sorted by bearing, so starting from the back street they are sorted by angle
+		for(int i=0; i < count; i++) {
+			float bearing = junction.getBearing( (back + i) % count );
+			float angle = bearing - backBearing;
+			
+			mBearings[i] = bearing;
+			mAngles[i] = (angle < 0) ? angle + 360 : angle;
+		}
+		
+		mCount = count;
+	}
+	
+	/**
+	 * Copy the spokes of another instance
+	 *
+	 * @param other
+	 */
+	public void set(SpokeAngles other) {
+		
+		ensureCapacity(other.mCount);
+		
+		System.arraycopy(other.mAngles, 0, mAngles, 0, other.mCount);
+		System.arraycopy(other.mBearings, 0, mBearings, 0, other.mCount);
+		mCount = other.mCount;
+	}
+	
+	/**
+	 * Spread the spokes evenly, without bearings
+	 *
+	 * @param numChoices
+	 */
+	public void setEven(int numChoices) {
+		
+		int count = numChoices + 1;
+		ensureCapacity(count);
+		
+		for(int i=0; i < count; i++) {
+			mAngles[i] = (float) SpinModel.getSpokeAngle(i, numChoices);
+			mBearings[i] = Float.NaN;
+		}
+		
+		mCount = count;
+	}
+	
+	/**
+	 * @return The number of spokes to choose from, not counting spoke 0
+	 */
+	public int getNumChoices() {
+		return Math.max(0, mCount - 1);
+	}
+	
+	/**
+	 * @param spoke
+	 * @return The angle of the spoke in degrees clockwise from spoke 0
+	 */
+	public float getAngle(int spoke) {
+		return mAngles[spoke];
+	}
+	
+	/**
+	 * @param spoke
+	 * @return The bearing of the spoke in degrees clockwise from north, or NaN if the spokes have no bearings
+	 */
+	public float getBearing(int spoke) {
+		return mBearings[spoke];
+	}
+	
+	/**
+	 * Find the spoke closest to an angle
+	 *
+	 * @param degrees Clockwise from spoke 0, any value
+	 * @return The nearest spoke, or -1 if there are none
+	 */
+	public int getNearestSpoke(double degrees) {
+		
+		if(mCount == 0) {
+			return -1;
+		}
+		
+		degrees %= 360;
+		if(degrees < 0) {
+			degrees += 360;
+		}
+		
+		int above = findAbove(mAngles, mCount, (float) degrees);
+		
+		// spoke 0 doubles as the spoke at 360 degrees
+		int below = above - 1;
+		float aboveAngle = (above == mCount) ? 360 : mAngles[above];
+		
+		return (degrees - mAngles[below] <= aboveAngle - degrees) ? below : above % mCount;
+	}
+	
+	/**
+	 * Find the street of a junction closest to a bearing
+	 *
+	 * @param junction Bearings sorted ascending
+	 * @param degrees Clockwise from north, from 0 to 360
+	 * @return The nearest street, or -1 if the junction has none
+	 */
+	public static int getNearestStreet(Junction junction, double degrees) {
+		
+		int count = junction.getStreetCount();
+		
+		if(count == 0) {
+			return -1;
+		}
+		
+		// binary search for the first street at or past the bearing
+		int low = 0, high = count;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(junction.getBearing(mid) < degrees) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		
+		// the neighbours on both sides, wrapping around north
+		int above = low % count;
+		int below = (low + count - 1) % count;
+		
+		double toAbove = getDifference(junction.getBearing(above), degrees);
+		double toBelow = getDifference(junction.getBearing(below), degrees);
+		
+		return (toBelow <= toAbove) ? below : above;
+	}
+	
+	/**
+	 * @return The index of the first angle above degrees, from 1 to count since angles[0] is 0
+	 */
+	private static int findAbove(float[] angles, int count, float degrees) {
+		
+		int low = 1, high = count;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(angles[mid] <= degrees) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * @return The absolute difference of two angles in degrees, from 0 to 180
+	 */
+	static double getDifference(double a, double b) {
+		double difference = Math.abs(a - b) % 360;
+		return (difference > 180) ? 360 - difference : difference;
+	}
+	
+	private void ensureCapacity(int count) {
+		if(mAngles.length < count) {
+			mAngles = new float[count];
+			mBearings = new float[count];
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package fi.wegar.android.gravnav.spin;
+
+/**
+ * Chooses every direction with equal probability
+ */
+public class UniformDirectionChooser implements DirectionChooser {
+
+	private final Xoshiro256Random mRandom;
+	
+	
+	public UniformDirectionChooser() {
+		this(new Xoshiro256Random());
+	}
+	
+	/**
+	 * @param random The generator to draw from, not shared with other threads
+	 */
+	public UniformDirectionChooser(Xoshiro256Random random) {
+		mRandom = random;
+	}
+	
+	@Override
+	public int choose(int numChoices) {
+		return mRandom.nextInt(numChoices) + 1;
+	}
+}
@@ -0,0 +1,163 @@
+package fi.wegar.android.gravnav.spin;
+
+/**
+ * Fast, seedable and splittable pseudo random number generator using the xoshiro256** algorithm 
+ * by Blackman and Vigna, seeded through SplitMix64.
+ * 
+ * Instances are not thread safe. Use {@link #split()} to hand each thread its own generator: 
+ * the split off generators produce non-overlapping sequences.
+ */
+public class Xoshiro256Random {
+
+	private long s0, s1, s2, s3;
+	
+	
+	/**
+	 * Seed from the current time
+	 */
+	public Xoshiro256Random() {
+		this( System.nanoTime() ^ System.currentTimeMillis() << 20 );
+	}
+	
+	/**
+	 * @param seed Generators created with the same seed produce the same sequence
+	 */
+	public Xoshiro256Random(long seed) {
+		
+		// expand the seed with SplitMix64, which never produces an all zero state
+		long x = seed;
+		s0 = mix64( x += 0x9e3779b97f4a7c15L );
+		s1 = mix64( x += 0x9e3779b97f4a7c15L );
+		s2 = mix64( x += 0x9e3779b97f4a7c15L );
+		s3 = mix64( x += 0x9e3779b97f4a7c15L );
+	}
+	
+	private Xoshiro256Random(long s0, long s1, long s2, long s3) {
+		this.s0 = s0;
+		this.s1 = s1;
+		this.s2 = s2;
+		this.s3 = s3;
+	}
+	
+	/**
+	 * @return the next 64 random bits
+	 */
+	public long nextLong() {
+		
+		long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		long t = s1 << 17;
+		
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+		
+		return result;
+	}
+	
+	/**
+	 * @return the next 32 random bits
+	 */
+	public int nextInt() {
+		return (int) (nextLong() >>> 32);
+	}
+	
+	/**
+	 * @param bound
+	 * @return A uniformly distributed value from 0 (inclusive) to bound (exclusive)
+	 */
+	public int nextInt(int bound) {
+		
+		if(bound <= 0) {
+			throw new IllegalArgumentException("bound must be positive");
+		}
+		
+		// multiply a random 32 bit fraction by the bound, rejecting the few values that would make the result uneven
+		long m = (nextLong() >>> 32) * bound;
+		long low = m & 0xffffffffL;
+		
+		if(low < bound) {
+			long threshold = (0x100000000L - bound) % bound;
+			
+			while(low < threshold) {
+				m = (nextLong() >>> 32) * bound;
+				low = m & 0xffffffffL;
+			}
+		}
+		
+		return (int) (m >>> 32);
+	}
+	
+	/**
+	 * @return A uniformly distributed value from 0 (inclusive) to 1 (exclusive)
+	 */
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+	
+	/**
+	 * @return A uniformly distributed value from 0 (inclusive) to 1 (exclusive)
+	 */
+	public float nextFloat() {
+		return (nextLong() >>> 40) * 0x1.0p-24f;
+	}
+	
+	/**
+	 * Split off a new generator. The new generator continues this sequence, and this generator jumps 
+	 * 2^128 values ahead so the two never overlap.
+	 * 
+	 * @return the new generator
+	 */
+	public Xoshiro256Random split() {
+		
+		Xoshiro256Random split = new Xoshiro256Random(s0, s1, s2, s3);
+		jump();
+		
+		return split;
+	}
+	
+	/**
+	 * Advance the state by 2^128 values
+	 */
+	private void jump() {
+		
+		long[] polynomial = JUMP;
+		long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+		
+		for(int i=0; i < polynomial.length; i++) {
+			for(int b=0; b < 64; b++) {
+				if( (polynomial[i] & (1L << b)) != 0 ) {
+					t0 ^= s0;
+					t1 ^= s1;
+					t2 ^= s2;
+					t3 ^= s3;
+				}
+				nextLong();
+			}
+		}
+		
+		s0 = t0;
+		s1 = t1;
+		s2 = t2;
+		s3 = t3;
+	}
+	
+	private static final long[] JUMP = { 
+		0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL, 0xa9582618e03fc9aaL, 0x39abdc4529b1661cL 
+	};
+	
+	/**
+	 * The SplitMix64 finalizer, a fast bijective mix of all 64 bits
+	 * 
+	 * @param z
+	 * @return
+	 */
+	public static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
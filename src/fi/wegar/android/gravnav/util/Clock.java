@@ -0,0 +1,21 @@
+package fi.wegar.android.gravnav.util;
+
+/**
+ * Source of monotonic time, so timing logic can be driven by a simulated clock on a plain JVM
+ */
+public interface Clock {
+
+	/**
+	 * The system clock, System.nanoTime()
+	 */
+	Clock SYSTEM = new Clock() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+	
+	/**
+	 * @return Monotonic time in ns, only meaningful relative to other values from the same clock
+	 */
+	long nanoTime();
+}
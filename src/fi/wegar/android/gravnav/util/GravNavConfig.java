@@ -0,0 +1,128 @@
+package fi.wegar.android.gravnav.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * The tunable parameters of shake detection and the spin, read from a properties file so a tuned 
+ * configuration can be used without rebuilding the app:
+ * 
+ * <pre>
+ * shake.threshold=700
+ * shake.min_interval_ms=100
+ * spin.stop_threshold=150
+ * spin.decay=0.1
+ * </pre>
+ * 
+ * Missing keys keep their defaults.
+ */
+public class GravNavConfig {
+
+	public static final float DEFAULT_SHAKE_THRESHOLD = 700;
+	public static final int DEFAULT_MIN_INTERVAL_MS = 100;
+	public static final float DEFAULT_STOP_THRESHOLD = 150;
+	public static final double DEFAULT_DECAY = 0.1;
+	
+	static final String KEY_SHAKE_THRESHOLD = "shake.threshold";
+	static final String KEY_MIN_INTERVAL = "shake.min_interval_ms";
+	static final String KEY_STOP_THRESHOLD = "spin.stop_threshold";
+	static final String KEY_DECAY = "spin.decay";
+	
+	private final float mShakeThreshold;
+	private final int mMinIntervalMs;
+	private final float mStopThreshold;
+	private final double mDecay;
+	
+	
+	public GravNavConfig() {
+		this(DEFAULT_SHAKE_THRESHOLD, DEFAULT_MIN_INTERVAL_MS, DEFAULT_STOP_THRESHOLD, DEFAULT_DECAY);
+	}
+	
+	/**
+	 * @param shakeThreshold The delta above which a sample is a shake
+	 * @param minIntervalMs The min nr of ms between two updates of the shake calculations
+	 * @param stopThreshold The speed below which the spin stops
+	 * @param decay The fraction of speed the spin loses on each step
+	 */
+	public GravNavConfig(float shakeThreshold, int minIntervalMs, float stopThreshold, double decay) {
+		
+		if(shakeThreshold <= 0 || minIntervalMs < 0 || stopThreshold <= 0 || decay <= 0 || decay >= 1) {
+			throw new IllegalArgumentException("Invalid configuration: "+shakeThreshold+", "+minIntervalMs+", "+stopThreshold+", "+decay);
+		}
+		
+		mShakeThreshold = shakeThreshold;
+		mMinIntervalMs = minIntervalMs;
+		mStopThreshold = stopThreshold;
+		mDecay = decay;
+	}
+	
+	public float getShakeThreshold() {
+		return mShakeThreshold;
+	}
+	
+	public int getMinIntervalMs() {
+		return mMinIntervalMs;
+	}
+	
+	public long getMinIntervalNanos() {
+		return mMinIntervalMs * 1000000L;
+	}
+	
+	public float getStopThreshold() {
+		return mStopThreshold;
+	}
+	
+	public double getDecay() {
+		return mDecay;
+	}
+	
+	/**
+	 * Read a configuration from properties
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException if reading fails or a value is invalid
+	 */
+	public static GravNavConfig load(InputStream in) throws IOException {
+		
+		Properties properties = new Properties();
+		properties.load(in);
+		
+		try {
+			return new GravNavConfig( 
+					Float.parseFloat( properties.getProperty(KEY_SHAKE_THRESHOLD, ""+DEFAULT_SHAKE_THRESHOLD) ), 
+					Integer.parseInt( properties.getProperty(KEY_MIN_INTERVAL, ""+DEFAULT_MIN_INTERVAL_MS) ), 
+					Float.parseFloat( properties.getProperty(KEY_STOP_THRESHOLD, ""+DEFAULT_STOP_THRESHOLD) ), 
+					Double.parseDouble( properties.getProperty(KEY_DECAY, ""+DEFAULT_DECAY) ) );
+		} catch(IllegalArgumentException e) {
+			// NumberFormatException included
+			throw new IOException("Invalid configuration: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Write the configuration as properties
+	 * 
+	 * @param out
+	 * @param comment
+	 * @throws IOException
+	 */
+	public void store(OutputStream out, String comment) throws IOException {
+		
+		Properties properties = new Properties();
+		properties.setProperty(KEY_SHAKE_THRESHOLD, ""+mShakeThreshold);
+		properties.setProperty(KEY_MIN_INTERVAL, ""+mMinIntervalMs);
+		properties.setProperty(KEY_STOP_THRESHOLD, ""+mStopThreshold);
+		properties.setProperty(KEY_DECAY, ""+mDecay);
+		
+		properties.store(out, comment);
+	}
+	
+	@Override
+	public String toString() {
+		return KEY_SHAKE_THRESHOLD+"="+mShakeThreshold+" "+KEY_MIN_INTERVAL+"="+mMinIntervalMs+" "
+				+KEY_STOP_THRESHOLD+"="+mStopThreshold+" "+KEY_DECAY+"="+mDecay;
+	}
+}
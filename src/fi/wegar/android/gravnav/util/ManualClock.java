@@ -0,0 +1,30 @@
+package fi.wegar.android.gravnav.util;
+
+/**
+ * Clock that only moves when it is told to, for simulations
+ */
+public class ManualClock implements Clock {
+
+	private long mNanos;
+	
+	
+	public ManualClock() {
+		this(0);
+	}
+	
+	public ManualClock(long startNanos) {
+		mNanos = startNanos;
+	}
+	
+	public long nanoTime() {
+		return mNanos;
+	}
+	
+	public void setNanoTime(long nanos) {
+		mNanos = nanos;
+	}
+	
+	public void advance(long nanos) {
+		mNanos += nanos;
+	}
+}
@@ -0,0 +1,22 @@
+package fi.wegar.android.gravnav.util;
+
+/**
+ * Runs tasks after a delay, so timing logic can be driven by a simulated scheduler on a plain JVM
+ */
+public interface Scheduler {
+
+	/**
+	 * Run a task once after a delay
+	 * 
+	 * @param task
+	 * @param delayNanos
+	 */
+	void schedule(Runnable task, long delayNanos);
+	
+	/**
+	 * Remove every pending run of a task
+	 * 
+	 * @param task
+	 */
+	void cancel(Runnable task);
+}
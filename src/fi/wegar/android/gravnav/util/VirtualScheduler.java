@@ -0,0 +1,110 @@
+package fi.wegar.android.gravnav.util;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Clock and scheduler on virtual time. Time only moves when the scheduler is advanced, and then jumps 
+ * from task to task, so hours of scheduled work run as fast as the tasks themselves. Tasks due at 
+ * the same time run in the order they were scheduled.
+ * 
+ * Not thread safe.
+ */
+public class VirtualScheduler implements Clock, Scheduler {
+
+	private static class Task implements Comparable<Task> {
+		
+		final long time;
+		final long sequence;
+		final Runnable runnable;
+		
+		Task(long time, long sequence, Runnable runnable) {
+			this.time = time;
+			this.sequence = sequence;
+			this.runnable = runnable;
+		}
+		
+		@Override
+		public int compareTo(Task other) {
+			if(time != other.time) {
+				return (time < other.time) ? -1 : 1;
+			}
+			return (sequence < other.sequence) ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+	
+	private final PriorityQueue<Task> mQueue = new PriorityQueue<Task>();
+	
+	private long mNow;
+	private long mSequence = 0;
+	
+	
+	public VirtualScheduler() {
+		this(0);
+	}
+	
+	public VirtualScheduler(long startNanos) {
+		mNow = startNanos;
+	}
+	
+	@Override
+	public long nanoTime() {
+		return mNow;
+	}
+	
+	@Override
+	public void schedule(Runnable task, long delayNanos) {
+		mQueue.add( new Task(mNow + Math.max(0, delayNanos), mSequence++, task) );
+	}
+	
+	@Override
+	public void cancel(Runnable task) {
+		for(Iterator<Task> i = mQueue.iterator(); i.hasNext(); ) {
+			if(i.next().runnable == task) {
+				i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Run every task due up to the given time, in order, and move the clock to it
+	 * 
+	 * @param nanos
+	 */
+	public void advanceTo(long nanos) {
+		while(!mQueue.isEmpty() && mQueue.peek().time <= nanos) {
+			runNext();
+		}
+		mNow = Math.max(mNow, nanos);
+	}
+	
+	/**
+	 * Move the clock to the next task and run it
+	 * 
+	 * @return false if there was no task
+	 */
+	public boolean runNext() {
+		Task task = mQueue.poll();
+		if(task == null) {
+			return false;
+		}
+		
+		mNow = Math.max(mNow, task.time);
+		task.runnable.run();
+		return true;
+	}
+	
+	/**
+	 * Run tasks until none are left, including the ones they schedule
+	 */
+	public void runAll() {
+		while( runNext() );
+	}
+	
+	/**
+	 * @return The number of tasks waiting to run
+	 */
+	public int getPendingCount() {
+		return mQueue.size();
+	}
+}
@@ -0,0 +1,105 @@
+package fi.wegar.android.gravnav.view;
+
+/**
+ * Lookup table of cosine and sine values for angles around the full circle at a fixed resolution, 
+ * with a shift applied. Lets views that are redrawn every frame look up directions instead of calling 
+ * Math.cos and Math.sin.
+ * 
+ * The shift is rounded to the resolution of the table and applied as an offset to the index, so it 
+ * can follow the compass heading on every sensor event without recalculating the table.
+ */
+public class AngleTable {
+
+	/**
+	 * The default number of entries, a resolution of a quarter degree
+	 */
+	public static final int DEFAULT_STEPS = 1440;
+	
+	private final int mSteps;
+	private final double mStepsPerDegree;
+	
+	private final float[] mCos;
+	private final float[] mSin;
+	
+	private double mShiftRadians = 0;
+	
+	/**
+	 * The shift in entries, from 0 to mSteps-1
+	 */
+	private int mOffset = 0;
+	
+	
+	public AngleTable() {
+		this(DEFAULT_STEPS);
+	}
+	
+	/**
+	 * @param steps The number of entries around the circle
+	 */
+	public AngleTable(int steps) {
+		mSteps = steps;
+		mStepsPerDegree = steps / 360.0;
+		mCos = new float[steps];
+		mSin = new float[steps];
+		
+		for(int i=0; i < mSteps; i++) {
+			double radians = 2 * Math.PI * i / mSteps;
+			mCos[i] = (float) Math.cos(radians);
+			mSin[i] = (float) Math.sin(radians);
+		}
+	}
+	
+	/**
+	 * Set the angle added to every entry
+	 * 
+	 * @param shiftRadians
+	 */
+	public void setShiftRadians(double shiftRadians) {
+		mShiftRadians = shiftRadians;
+		mOffset = indexOf( Math.toDegrees(shiftRadians) );
+	}
+	
+	/**
+	 * @return the shift in radians
+	 */
+	public double getShiftRadians() {
+		return mShiftRadians;
+	}
+	
+	/**
+	 * @return the number of entries around the circle
+	 */
+	public int getSteps() {
+		return mSteps;
+	}
+	
+	/**
+	 * @param degrees Any angle, also negative or above 360
+	 * @return The index of the entry closest to the angle
+	 */
+	public int indexOf(double degrees) {
+		int i = (int) Math.round(degrees * mStepsPerDegree) % mSteps;
+		
+		return (i < 0) ? i + mSteps : i;
+	}
+	
+	/**
+	 * @param i
+	 * @return the cosine of entry i, including the shift
+	 */
+	public float cos(int i) {
+		return mCos[wrap(i + mOffset)];
+	}
+	
+	/**
+	 * @param i
+	 * @return the sine of entry i, including the shift
+	 */
+	public float sin(int i) {
+		return mSin[wrap(i + mOffset)];
+	}
+	
+	private int wrap(int i) {
+		return (i >= mSteps) ? i - mSteps : i;
+	}
+}
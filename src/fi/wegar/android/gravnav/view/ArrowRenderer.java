@@ -0,0 +1,192 @@
+package fi.wegar.android.gravnav.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * Draws the arrow, its head and the hub at the center of a drawing surface. Shared by the views that 
+ * show an arrow so the geometry is only implemented once.
+ */
+public class ArrowRenderer {
+
+	/**
+	 * The arrowhead is at most this high compared to the length of the arrow
+	 */
+	public static final double ARROWHEAD_LENGTH_RATIO = 0.45;
+	
+	private Paint color;
+	
+	/**
+	 * The ratio by which the arrow length should be determined based on the distance from the center of the drawing surface to the closest edge. 
+	 */
+	private double mArrowLengthRatio = 0.5;
+	
+	/**
+	 * The radius of the circle drawn on top of the arrow base
+	 */
+	private float mHubRadius = 7;
+	
+	private double mRadians = 0;
+	
+	/**
+	 * The angle in radians by which the entire arrow canvas should be rotated before calculating the direction of the arrow
+	 */
+	private double mShiftRadians = 0;
+	
+	/**
+	 * Reference to the arrow graphic used to draw the point of the arrow, null until it has been decoded
+	 */
+	private Bitmap arrowhead;
+	
+	/**
+	 * The transform matrix used to rotate the arrow head into place
+	 */
+	private Matrix mRotate = new Matrix();
+	
+	/**
+	 * Directions around the circle, shifted by mShiftRadians
+	 */
+	private AngleTable mAngles = new AngleTable();
+	
+	/**
+	 * The entry in mAngles the arrow points to
+	 */
+	private int mAngleIndex = 0;
+	
+	/**
+	 * Geometry that only changes with the size of the drawing surface
+	 */
+	private float mCenterX, mCenterY, mArrowLength;
+	
+	
+	/**
+	 * @param arrowhead The graphic drawn at the point of the arrow, pointing north, or null to draw the arrow without it
+	 */
+	public ArrowRenderer(Bitmap arrowhead) {
+		
+		this.arrowhead = arrowhead;
+		
+		color = new Paint();
+		color.setColor(0xffffffff);
+		color.setStrokeWidth(5);
+		
+		mAngles.setShiftRadians(mShiftRadians);
+	}
+	
+	/**
+	 * @param arrowhead The graphic drawn at the point of the arrow, pointing north, or null to draw the arrow without it
+	 */
+	public void setArrowhead(Bitmap arrowhead) {
+		this.arrowhead = arrowhead;
+	}
+	
+	/**
+	 * @return The highest arrowhead that fits the arrow at the current size, in pixels
+	 */
+	public int getMaxArrowheadHeight() {
+		return (int) (mArrowLength * ARROWHEAD_LENGTH_RATIO);
+	}
+	
+	/**
+	 * @param mShiftRadians the mShiftRadians to set
+	 */
+	public void setShiftRadians(double mShiftRadians) {
+		this.mShiftRadians = mShiftRadians;
+		mAngles.setShiftRadians(mShiftRadians);
+	}
+
+	/**
+	 * @return the mShiftRadians
+	 */
+	public double getShiftRadians() {
+		return mShiftRadians;
+	}
+	
+	/**
+	 * Set the angle in degrees in which the arrow should be painted
+	 * 
+	 * @param angle
+	 */
+	public void setAngle(double angle) {
+		mRadians = Math.toRadians( angle );
+		mAngleIndex = mAngles.indexOf( angle );
+	}
+	
+	/**
+	 * @return The angle in degrees including shifting according to mShiftRadians
+	 */
+	public double getAngleShifted() {
+		return Math.toDegrees( mRadians+getShiftRadians() );
+	}
+	
+	/**
+	 * Update the geometry for a new size of the drawing surface
+	 * 
+	 * @param width
+	 * @param height
+	 */
+	public void setSize(int width, int height) {
+		
+		mCenterX = width / 2;
+		mCenterY = height / 2;
+		
+		if( mCenterX > mCenterY) {
+			// running in landscape mode, so Y edge will be closer
+			mArrowLength = (float) (mCenterY * mArrowLengthRatio);
+		} else {
+			// running in portrait mode, so X edge will be closer
+			mArrowLength = (float) (mCenterX * mArrowLengthRatio);
+		}
+	}
+	
+	/**
+	 * Calculate the area covered by the arrow at its current angle
+	 * 
+	 * @param out Receives the bounds
+	 */
+	public void getBounds(Rect out) {
+		
+		float tipX = mCenterX + mArrowLength * mAngles.cos(mAngleIndex);
+		float tipY = mCenterY + mArrowLength * mAngles.sin(mAngleIndex);
+		
+		// the head is rotated around the tip, so it stays within this distance of it in any direction
+		float margin = (arrowhead == null) ? 0 : (float) (arrowhead.getWidth() * 0.5 + arrowhead.getHeight());
+		margin = Math.max(margin, mHubRadius) + color.getStrokeWidth();
+		
+		out.set( (int) (Math.min(mCenterX, tipX) - margin), 
+				(int) (Math.min(mCenterY, tipY) - margin), 
+				(int) (Math.max(mCenterX, tipX) + margin) + 1, 
+				(int) (Math.max(mCenterY, tipY) + margin) + 1 );
+	}
+	
+	/**
+	 * Render the arrow
+	 */
+	public void draw(Canvas canvas) {
+		
+		// look up the vector
+		float cos = mAngles.cos(mAngleIndex);
+		float sin = mAngles.sin(mAngleIndex);
+		
+		float arrowX = mArrowLength * cos;
+		float arrowY = mArrowLength * sin;
+		
+		canvas.drawLine( mCenterX, mCenterY, mCenterX + arrowX, mCenterY + arrowY, color);
+		
+		if(arrowhead != null) {
+			float arrowCenterX = (float) (mCenterX - arrowhead.getWidth() * 0.5);
+			float arrowCenterY = (float) (mCenterY - arrowhead.getHeight());
+			
+			// need to add rotation of +90 to arrow graphic as it is painted north by default, sin(a+90) = cos(a) and cos(a+90) = -sin(a)
+			mRotate.setSinCos( cos, -sin, (float) (arrowhead.getWidth()*0.5), arrowhead.getHeight());
+			mRotate.postTranslate( arrowCenterX+arrowX, arrowCenterY+arrowY );
+			canvas.drawBitmap(arrowhead, mRotate, null);
+		}
+		
+		// draw a circle on top of the arrow base
+		canvas.drawCircle( mCenterX, mCenterY, mHubRadius, color);
+	}
+}
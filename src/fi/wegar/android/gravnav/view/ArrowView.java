@@ -1,11 +1,8 @@
 package fi.wegar.android.gravnav.view;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
-import android.graphics.Paint;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.View;
 import fi.wegar.android.gravnav.R;
@@ -13,30 +10,32 @@ import fi.wegar.android.gravnav.R;
 public class ArrowView extends View {
 	
 	
-	private Paint color;
-	/**
-	 * The ratio by which the arrow length should be determined based on the distance from the center of the drawing surface to the closest edge. 
-	 */
-	private double mArrowLengthRatio = 0.5;
+	private ArrowRenderer mArrow;
 	
-	private double mRadians = 0;
+	private OnFrameListener mFrameListener;
 	
 	/**
-	 * The angle in radians by which the entire arrow canvas should be rotated before calculating the direction of the arrow
-	 * 
-	 * This can be used to set angle = 0 to point arrow e.g. to the left. Defaults to -3/4*Math.PI = arrow points north on canvas. 
+	 * Calls the frame listener, posted by the first draw and by requestFrame
 	 */
-	private double mShiftRadians = 0;
+	private Runnable mFrameRunner = new Runnable() {
+		public void run() {
+			mFramePosted = false;
+			mLastFrameUptime = SystemClock.uptimeMillis();
+			
+			if(mFrameListener != null) {
+				mFrameListener.onFrame(ArrowView.this, System.nanoTime());
+			}
+		}
+	};
 	
-	/**
-	 * Reference to the arrow graphic used to draw the point of the arrow
-	 */
-	private Bitmap arrowhead;
+	private boolean mFramePosted = false;
+	private long mLastFrameUptime = 0;
+	private boolean mDrawn = false;
 	
 	/**
-	 * The transform matrix used to rotate the arrow head into place
+	 * The resource of the arrowhead graphic
 	 */
-	private Matrix mRotate;
+	private int mArrowheadId = R.drawable.arrow_head;
 	
 	/**
 	 * Constructor. Use this when instantiating view directly from code (not XML)
@@ -64,30 +63,61 @@ public class ArrowView extends View {
 	
 	private final void initView() {
 		
-		arrowhead = BitmapFactory.decodeResource(getResources(), R.drawable.arrow_head);
+		// decoded once per process, not once per inflation
+		mArrow = new ArrowRenderer( BitmapCache.getDefault().get(getResources(), mArrowheadId) );
 		
-		color = new Paint();
-		color.setColor(0xffffffff);
-		color.setStrokeWidth(5);
-		
-		mRotate = new Matrix();
+	}
+	
+	/**
+	 * Draw the arrow with another arrowhead, e.g. R.drawable.arrow_head_grey
+	 * 
+	 * @param resId
+	 */
+	public void setArrowhead(int resId) {
+		mArrowheadId = resId;
+		mArrow.setArrowhead( BitmapCache.getDefault().get(getResources(), resId, mArrow.getMaxArrowheadHeight()) );
 		
+		invalidate();
 	}
 	
 	/**
 	 * @param mShiftRadians the mShiftRadians to set
 	 */
 	public void setShiftRadians(double mShiftRadians) {
-		this.mShiftRadians = mShiftRadians;
+		mArrow.setShiftRadians(mShiftRadians);
+		
+		invalidate();
 	}
 
 	/**
 	 * @return the mShiftRadians
 	 */
 	public double getShiftRadians() {
-		return mShiftRadians;
+		return mArrow.getShiftRadians();
 	}	
 	
+	/**
+	 * @param listener Called after the first draw and for every requested frame, or null
+	 */
+	public void setOnFrameListener(OnFrameListener listener) {
+		mFrameListener = listener;
+	}
+	
+	/**
+	 * Have the frame listener called for the next frame, at most once every OnFrameListener.FRAME_INTERVAL. 
+	 * Nothing is posted while no frames are requested.
+	 */
+	public void requestFrame() {
+		
+		if(mFramePosted) {
+			return;
+		}
+		mFramePosted = true;
+		
+		long delay = mLastFrameUptime + OnFrameListener.FRAME_INTERVAL - SystemClock.uptimeMillis();
+		postDelayed(mFrameRunner, Math.max(0, delay));
+	}
+	
 	/**
 	 * Set the angle in degrees in which the arrow should be painted
 	 * 
@@ -95,7 +125,7 @@ public class ArrowView extends View {
 	 */
 	public void setAngle(double angle) {
 		
-		mRadians = Math.toRadians( angle );
+		mArrow.setAngle(angle);
 		
 		invalidate();
 	}
@@ -107,7 +137,7 @@ public class ArrowView extends View {
 	 */
 	public double getAngleShifted() {
 		
-		return Math.toDegrees( mRadians+getShiftRadians() );
+		return mArrow.getAngleShifted();
 	}
 	
 	/**
@@ -118,6 +148,14 @@ public class ArrowView extends View {
 		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
 	}
 	
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		
+		mArrow.setSize(w, h);
+		mArrow.setArrowhead( BitmapCache.getDefault().get(getResources(), mArrowheadId, mArrow.getMaxArrowheadHeight()) );
+	}
+	
 	/**
 	 * Render the arrow
 	 */
@@ -125,38 +163,20 @@ public class ArrowView extends View {
 	protected void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
 		
-		// calculate the vector
+		mArrow.draw(canvas);
 		
-		double centerX = getWidth() / 2;
-		double centerY = getHeight() / 2;
-		
-
-		double arrowLength = 0;
-		if( centerX > centerY) {
-			// running in landscape mode, so Y edge will be closer
-			arrowLength = centerY * mArrowLengthRatio;
-		} else {
-			// running in portrait mode, so X edge will be closer
-			arrowLength = centerX * mArrowLengthRatio;
+		if(!mDrawn) {
+			// let the listener know the first frame is on screen
+			mDrawn = true;
+			requestFrame();
 		}
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		removeCallbacks(mFrameRunner);
+		mFramePosted = false;
 		
-		double arrowX = arrowLength * Math.cos(mRadians+getShiftRadians());
-		double arrowY = arrowLength * Math.sin(mRadians+getShiftRadians());
-		
-		canvas.drawLine( (float)centerX, (float)centerY, (float) (centerX + arrowX), (float) (centerY + arrowY), color);
-		
-		float arrowCenterX = (float) (centerX - arrowhead.getWidth() * 0.5);
-		float arrowCenterY = (float) (centerY - arrowhead.getHeight());
-		
-		// need to add rotation of +90 to arrow graphic as it is painted north by default
-		mRotate.setRotate( (float) getAngleShifted()+90, (float) (arrowhead.getWidth()*0.5), arrowhead.getHeight());
-		mRotate.postTranslate( (float)(arrowCenterX+arrowX), (float)(arrowCenterY+arrowY) );
-		canvas.drawBitmap(arrowhead, mRotate, null);
-		
-		// draw a circle on top of the arrow base
-		canvas.drawCircle( (float) centerX, (float) centerY, 7, color);
-		
+		super.onDetachedFromWindow();
 	}
 }
-
-
@@ -0,0 +1,180 @@
+package fi.wegar.android.gravnav.view;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import fi.wegar.android.gravnav.metrics.Counter;
+import fi.wegar.android.gravnav.metrics.MetricsRegistry;
+
+/**
+ * Decoded and scaled bitmap resources, shared by all views of the process so a view that is inflated
+ * again, e.g. when the activity is recreated on rotation, does not decode its graphics again.
+ *
+ * Bitmaps are kept in least recently used order and the oldest are dropped when the total size goes
+ * over the limit. Dropped bitmaps are not recycled, since views may still be drawing them.
+ */
+public class BitmapCache {
+	
+	/**
+	 * The default limit on the total size of the bitmaps
+	 */
+	public static final int DEFAULT_MAX_BYTES = 512 * 1024;
+	
+	private static final BitmapCache sDefault = new BitmapCache(DEFAULT_MAX_BYTES);
+	
+	/**
+	 * Identifies a resource decoded for a screen density and scaled to a height, 0 for unscaled
+	 */
+	static final class Key {
+		
+		final int resId;
+		final int density;
+		final int height;
+		
+		Key(int resId, int density, int height) {
+			this.resId = resId;
+			this.density = density;
+			this.height = height;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return resId == other.resId && density == other.density && height == other.height;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (resId * 31 + density) * 31 + height;
+		}
+	}
+	
+	private final int mMaxBytes;
+	private int mBytes = 0;
+	
+	/**
+	 * In access order, the least recently used first
+	 */
+	private final LinkedHashMap<Key, Bitmap> mBitmaps = new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+	
+	private final Counter mHits = MetricsRegistry.getDefault().counter("bitmap.hit");
+	private final Counter mDecodes = MetricsRegistry.getDefault().counter("bitmap.decode");
+	
+	
+	/**
+	 * @return The cache shared by the whole process
+	 */
+	public static BitmapCache getDefault() {
+		return sDefault;
+	}
+	
+	/**
+	 * @param maxBytes The limit on the total size of the bitmaps
+	 */
+	public BitmapCache(int maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+	
+	/**
+	 * @param res
+	 * @param resId
+	 * @return The resource decoded for the density of the screen
+	 */
+	public synchronized Bitmap get(Resources res, int resId) {
+		
+		Key key = new Key(resId, res.getDisplayMetrics().densityDpi, 0);
+		Bitmap bitmap = mBitmaps.get(key);
+		
+		if(bitmap != null) {
+			mHits.increment();
+			return bitmap;
+		}
+		
+		bitmap = BitmapFactory.decodeResource(res, resId);
+		mDecodes.increment();
+		
+		put(key, bitmap);
+		
+		return bitmap;
+	}
+	
+	/**
+	 * @param res
+	 * @param resId
+	 * @param maxHeight
+	 * @return The resource decoded for the density of the screen and, if it is higher than maxHeight,
+	 * scaled down to maxHeight keeping its aspect ratio
+	 */
+	public synchronized Bitmap get(Resources res, int resId, int maxHeight) {
+		
+		Bitmap original = get(res, resId);
+		
+		if(original == null || original.getHeight() <= maxHeight || maxHeight <= 0) {
+			return original;
+		}
+		
+		Key key = new Key(resId, res.getDisplayMetrics().densityDpi, maxHeight);
+		Bitmap bitmap = mBitmaps.get(key);
+		
+		if(bitmap != null) {
+			mHits.increment();
+			return bitmap;
+		}
+		
+		int width = Math.max(1, Math.round( (float) original.getWidth() * maxHeight / original.getHeight() ));
+		bitmap = Bitmap.createScaledBitmap(original, width, maxHeight, true);
+		mDecodes.increment();
+		
+		put(key, bitmap);
+		
+		return bitmap;
+	}
+	
+	/**
+	 * Drop all bitmaps, e.g. when the system is low on memory. Views keep the ones they hold.
+	 */
+	public synchronized void clear() {
+		mBitmaps.clear();
+		mBytes = 0;
+	}
+	
+	/**
+	 * @return The total size of the bitmaps held
+	 */
+	public synchronized int getSizeBytes() {
+		return mBytes;
+	}
+	
+	public synchronized int getCount() {
+		return mBitmaps.size();
+	}
+	
+	private void put(Key key, Bitmap bitmap) {
+		
+		if(bitmap == null) {
+			return;
+		}
+		
+		mBitmaps.put(key, bitmap);
+		mBytes += getSizeBytes(bitmap);
+		
+		// drop the least recently used, but always keep the one just added
+		Iterator<Map.Entry<Key, Bitmap>> eldest = mBitmaps.entrySet().iterator();
+		while(mBytes > mMaxBytes && mBitmaps.size() > 1) {
+			Map.Entry<Key, Bitmap> entry = eldest.next();
+			mBytes -= getSizeBytes( entry.getValue() );
+			eldest.remove();
+		}
+	}
+	
+	static int getSizeBytes(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,321 @@
+package fi.wegar.android.gravnav.view;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.View;
+import fi.wegar.android.gravnav.R;
+import fi.wegar.android.gravnav.spin.SpokeAngles;
+
+/**
+ * Draws the spokes, the arrow, its head and the hub on a single surface. Replaces a SpokeView and an 
+ * ArrowView stacked on top of each other, which made every arrow move composite two full size views.
+ * 
+ * Moving the arrow only invalidates the area covered by the arrow before and after the move, so the 
+ * rest of the surface is neither redrawn nor composited.
+ */
+public class CompassView extends View {
+
+	private SpokeRenderer mSpokes;
+	private ArrowRenderer mArrow;
+	
+	private OnFrameListener mFrameListener;
+	
+	/**
+	 * Calls the frame listener, posted by the first draw and by requestFrame
+	 */
+	private Runnable mFrameRunner = new Runnable() {
+		public void run() {
+			mFramePosted = false;
+			mLastFrameUptime = SystemClock.uptimeMillis();
+			
+			if(mFrameListener != null) {
+				mFrameListener.onFrame(CompassView.this, System.nanoTime());
+			}
+		}
+	};
+	
+	private boolean mFramePosted = false;
+	private long mLastFrameUptime = 0;
+	private boolean mDrawn = false;
+	
+	/**
+	 * The resource of the arrowhead graphic
+	 */
+	private int mArrowheadId = R.drawable.arrow_head;
+	
+	/**
+	 * Decodes the arrowhead at the size of the view, posted so it runs after the frame being laid out has been drawn
+	 */
+	private Runnable mArrowheadLoader = new Runnable() {
+		public void run() {
+			loadArrowhead();
+		}
+	};
+	
+	/**
+	 * Scratch rectangles used to calculate the area to invalidate when the arrow moves
+	 */
+	private Rect mOldBounds = new Rect();
+	private Rect mNewBounds = new Rect();
+	
+	/**
+	 * Draw time statistics, in ns
+	 */
+	private long mLastDrawNanos = 0;
+	private long mTotalDrawNanos = 0;
+	private long mMaxDrawNanos = 0;
+	private int mDrawCount = 0;
+	
+	
+	/**
+	 * Constructor. Use this when instantiating view directly from code (not XML)
+	 * 
+	 * @param context
+	 */
+	public CompassView(Context context) {
+		super(context);
+		
+		initView();
+	}
+	
+	/**
+	 * Constructor. Used when inflating from XML layout. 
+	 * 
+	 * @param context
+	 * @param attrs
+	 */
+	public CompassView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		
+		initView();
+	}
+	
+	private final void initView() {
+		
+		mSpokes = new SpokeRenderer();
+		// the head is decoded once the view has a size, the first frame is drawn without it
+		mArrow = new ArrowRenderer(null);
+		
+	}
+	
+	/**
+	 * @param listener Called after the first draw and for every requested frame, or null
+	 */
+	public void setOnFrameListener(OnFrameListener listener) {
+		mFrameListener = listener;
+	}
+	
+	/**
+	 * Have the frame listener called for the next frame, at most once every OnFrameListener.FRAME_INTERVAL. 
+	 * Nothing is posted while no frames are requested.
+	 */
+	public void requestFrame() {
+		
+		if(mFramePosted) {
+			return;
+		}
+		mFramePosted = true;
+		
+		long delay = mLastFrameUptime + OnFrameListener.FRAME_INTERVAL - SystemClock.uptimeMillis();
+		postDelayed(mFrameRunner, Math.max(0, delay));
+	}
+	
+	/**
+	 * Set the angle by which both the spokes and the arrow are rotated
+	 * 
+	 * @param shiftRadians
+	 */
+	public void setShiftRadians(double shiftRadians) {
+		mSpokes.setShiftRadians(shiftRadians);
+		mArrow.setShiftRadians(shiftRadians);
+		
+		invalidate();
+	}
+	
+	public double getShiftRadians() {
+		return mArrow.getShiftRadians();
+	}
+	
+	/**
+	 * Draw the arrow with another arrowhead, e.g. R.drawable.arrow_head_grey
+	 * 
+	 * @param resId
+	 */
+	public void setArrowhead(int resId) {
+		
+		mArrowheadId = resId;
+		
+		if(mArrow.getMaxArrowheadHeight() > 0) {
+			loadArrowhead();
+		}
+	}
+	
+	/**
+	 * Put the arrowhead in place at the size of the arrow, decoded once per process, not once per inflation
+	 */
+	private void loadArrowhead() {
+		
+		mArrow.getBounds(mOldBounds);
+		mArrow.setArrowhead( BitmapCache.getDefault().get(getResources(), mArrowheadId, mArrow.getMaxArrowheadHeight()) );
+		
+		mArrow.getBounds(mNewBounds);
+		mNewBounds.union(mOldBounds);
+		invalidate(mNewBounds);
+	}
+	
+	/**
+	 * set the color of the spokes
+	 * 
+	 * @param c The color value in ARGB
+	 */
+	public void setSpokeColor(int c) {
+		mSpokes.setColor(c);
+		
+		invalidate();
+	}
+	
+	public int getSpokeColor() {
+		return mSpokes.getColor();
+	}
+	
+	public void setNumSpokes(int numSpokes) {
+		mSpokes.setNumSpokes(numSpokes);
+		
+		invalidate();
+	}
+	
+	public int getNumSpokes() {
+		return mSpokes.getNumSpokes();
+	}
+	
+	/**
+	 * Draw the spokes at the given angles, or evenly spaced if null. Call again whenever the angles change.
+	 * 
+	 * @param spokes
+	 */
+	public void setSpokeAngles(SpokeAngles spokes) {
+		mSpokes.setSpokeAngles(spokes);
+		
+		invalidate();
+	}
+	
+	/**
+	 * @param spokeNr The number of the first spoke to be draw on screen. Zero-based, going clockwise.
+	 */
+	public void setDrawFromSpoke(int spokeNr) {
+		mSpokes.setDrawFromSpoke(spokeNr);
+		
+		invalidate();
+	}
+	
+	public int getDrawFromSpoke() {
+		return mSpokes.getDrawFromSpoke();
+	}
+	
+	/**
+	 * Set the angle in degrees in which the arrow should be painted. Only the area the arrow moves over is redrawn.
+	 * 
+	 * @param angle
+	 */
+	public void setAngle(double angle) {
+		
+		mArrow.getBounds(mOldBounds);
+		mArrow.setAngle(angle);
+		mArrow.getBounds(mNewBounds);
+		
+		mNewBounds.union(mOldBounds);
+		invalidate(mNewBounds);
+	}
+	
+	/**
+	 * @return The angle of the arrow in degrees including the shift
+	 */
+	public double getAngleShifted() {
+		return mArrow.getAngleShifted();
+	}
+	
+	/**
+	 * @return The time the last draw took, in ns
+	 */
+	public long getLastDrawNanos() {
+		return mLastDrawNanos;
+	}
+	
+	/**
+	 * @return The average time a draw has taken since the last reset, in ns
+	 */
+	public long getAverageDrawNanos() {
+		return (mDrawCount == 0) ? 0 : mTotalDrawNanos / mDrawCount;
+	}
+	
+	/**
+	 * @return The longest time a draw has taken since the last reset, in ns
+	 */
+	public long getMaxDrawNanos() {
+		return mMaxDrawNanos;
+	}
+	
+	/**
+	 * @return The number of draws since the last reset
+	 */
+	public int getDrawCount() {
+		return mDrawCount;
+	}
+	
+	/**
+	 * Clear the draw time statistics
+	 */
+	public void resetDrawStats() {
+		mTotalDrawNanos = 0;
+		mMaxDrawNanos = 0;
+		mDrawCount = 0;
+	}
+	
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		
+		mSpokes.setSize(w, h);
+		mArrow.setSize(w, h);
+		
+		removeCallbacks(mArrowheadLoader);
+		post(mArrowheadLoader);
+	}
+	
+	@Override
+	protected void onDetachedFromWindow() {
+		removeCallbacks(mFrameRunner);
+		mFramePosted = false;
+		removeCallbacks(mArrowheadLoader);
+		
+		super.onDetachedFromWindow();
+	}
+	
+	/**
+	 * Render the spokes with the arrow on top
+	 */
+	@Override
+	protected void onDraw(Canvas canvas) {
+		super.onDraw(canvas);
+		
+		long start = System.nanoTime();
+		
+		// anything outside the invalidated area is clipped away by the canvas
+		mSpokes.draw(canvas);
+		mArrow.draw(canvas);
+		
+		mLastDrawNanos = System.nanoTime() - start;
+		mTotalDrawNanos += mLastDrawNanos;
+		mMaxDrawNanos = Math.max(mMaxDrawNanos, mLastDrawNanos);
+		mDrawCount++;
+		
+		if(!mDrawn) {
+			// let the listener know the first frame is on screen
+			mDrawn = true;
+			requestFrame();
+		}
+	}
+}
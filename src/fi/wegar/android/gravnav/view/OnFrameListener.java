@@ -0,0 +1,26 @@
+package fi.wegar.android.gravnav.view;
+
+import android.view.View;
+
+/**
+ * Called by a view after its first draw and then for each frame requested from it, to prepare the 
+ * frame. Used to drive animations from a frame clock instead of from timed messages. 
+ * 
+ * To keep an animation going, the listener updates the view state, which invalidates the area that 
+ * changed, and requests the next frame. Nothing is posted once it stops requesting them.
+ */
+public interface OnFrameListener {
+
+	/**
+	 * The shortest time between two frames in ms, about the refresh rate of the display
+	 */
+	static final long FRAME_INTERVAL = 16;
+	
+
+	/**
+	 * @param view The view that was drawn
+	 * @param frameTimeNanos The System.nanoTime() when the view called the listener, after its last draw 
+	 * and before the frame being prepared is drawn
+	 */
+	void onFrame(View view, long frameTimeNanos);
+}
@@ -0,0 +1,208 @@
+package fi.wegar.android.gravnav.view;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import fi.wegar.android.gravnav.spin.SpokeAngles;
+
+/**
+ * Draws spokes out from the center of a drawing surface, evenly spaced or at the angles of a junction. 
+ * The end points are kept in a line buffer that is only recalculated when the spokes, the shift or the 
+ * size change, from an angle table rather than with trigonometry, and drawn with one call.
+ */
+public class SpokeRenderer {
+
+	private Paint color;
+	
+	/**
+	 * The number of spokes to draw
+	 */
+	private int mNumSpokes = 5;
+	
+	/**
+	 * The angle in radians by which the entire canvas should be rotated before calculating the direction of the first spoke. 
+	 */
+	private double mShiftRadians = 0;
+	
+	/**
+	 * The angles of the spokes, or null when they are evenly spaced
+	 */
+	private SpokeAngles mSpokeAngles;
+	
+	/**
+	 * Directions around the circle, shifted by mShiftRadians
+	 */
+	private AngleTable mAngles = new AngleTable();
+	
+	/**
+	 * The number of the first spoke to be draw on screen. Zero-based, going clockwise.
+	 */
+	private int mDrawFromSpoke = 0;
+	
+	private int mWidth, mHeight;
+	
+	/**
+	 * The end points of the spokes, four floats per line as expected by Canvas.drawLines
+	 */
+	private float[] mLines = new float[0];
+	
+	/**
+	 * The number of floats in use in mLines
+	 */
+	private int mLinesLength = 0;
+	
+	/**
+	 * Set when the spoke geometry needs to be recalculated before the next draw
+	 */
+	private boolean mLinesDirty = true;
+	
+	
+	public SpokeRenderer() {
+		color = new Paint();
+		color.setStrokeWidth(5);
+		color.setColor(0xffffffff);
+	}
+	
+	/**
+	 * set the color of the spokes
+	 * 
+	 * @param c The color value in ARGB
+	 */
+	public void setColor(int c) {
+		color.setColor(c);
+	}
+	
+	public int getColor() {
+		return color.getColor();
+	}
+	
+	/**
+	 * @param mShiftRadians the mShiftRadians to set
+	 */
+	public void setShiftRadians(double mShiftRadians) {
+		this.mShiftRadians = mShiftRadians;
+		mAngles.setShiftRadians(mShiftRadians);
+		mLinesDirty = true;
+	}
+
+	/**
+	 * @return the mShiftRadians
+	 */
+	public double getShiftRadians() {
+		return mShiftRadians;
+	}
+	
+	/**
+	 * @param numSpokes the mNumSpokes to set
+	 */
+	public void setNumSpokes(int numSpokes) {
+		this.mNumSpokes = numSpokes;
+		mLinesDirty = true;
+	}
+
+	/**
+	 * @return the number of spokes drawn, including the ones skipped by mDrawFromSpoke
+	 */
+	public int getNumSpokes() {
+		return (mSpokeAngles == null) ? mNumSpokes : mSpokeAngles.getNumChoices() + 1;
+	}
+	
+	/**
+	 * Draw the spokes at the given angles instead of evenly spaced, or evenly again if null. 
+	 * Call again whenever the angles change.
+	 * 
+	 * @param spokes
+	 */
+	public void setSpokeAngles(SpokeAngles spokes) {
+		mSpokeAngles = spokes;
+		mLinesDirty = true;
+	}
+	
+	public SpokeAngles getSpokeAngles() {
+		return mSpokeAngles;
+	}
+	
+	/**
+	 * @param spokeNr the mDrawFromSpoke to set
+	 */
+	public void setDrawFromSpoke(int spokeNr) {
+		this.mDrawFromSpoke = spokeNr;
+		mLinesDirty = true;
+	}
+
+	/**
+	 * @return the mDrawFromSpoke
+	 */
+	public int getDrawFromSpoke() {
+		return mDrawFromSpoke;
+	}
+	
+	/**
+	 * Update the geometry for a new size of the drawing surface
+	 * 
+	 * @param width
+	 * @param height
+	 */
+	public void setSize(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mLinesDirty = true;
+	}
+	
+	/**
+	 * Render the spokes
+	 */
+	public void draw(Canvas canvas) {
+		
+		if(mLinesDirty) {
+			updateLines();
+		}
+		
+		canvas.drawLines(mLines, 0, mLinesLength, color);
+	}
+	
+	/**
+	 * Calculate the end points of all spokes into mLines
+	 */
+	private void updateLines() {
+		
+		// calculate the vector length
+		double centerX = mWidth / 2;
+		double centerY = mHeight / 2;
+		
+		double spokeLength = 0;
+		if( centerX > centerY) {
+			// running in landscape mode, so Y edge will be closer
+			spokeLength = centerY * 0.5;
+		} else {
+			// running in portrait mode, so X edge will be closer
+			spokeLength = centerX * 0.5;
+		}
+		
+		double stepSize = 360.0 / getNumSpokes();
+		
+		int count = Math.max(0, getNumSpokes() - getDrawFromSpoke());
+		if(mLines.length < count*4) {
+			mLines = new float[count*4];
+		}
+		
+		int j = 0;
+		
+		// loop for nr of spokes and store the line of each
+		for(int i=getDrawFromSpoke(); i < getNumSpokes(); i++ ) {
+			
+			// look up the direction of the next vector, the table includes the shift
+			int angle = mAngles.indexOf( (mSpokeAngles == null) ? stepSize * i : mSpokeAngles.getAngle(i) );
+			
+			double arrowX = spokeLength * mAngles.cos(angle);
+			double arrowY = spokeLength * mAngles.sin(angle);
+			
+			mLines[j++] = (float) centerX;
+			mLines[j++] = (float) centerY;
+			mLines[j++] = (float) (centerX + arrowX);
+			mLines[j++] = (float) (centerY + arrowY);
+		}
+		
+		mLinesLength = j;
+		mLinesDirty = false;
+	}
+}
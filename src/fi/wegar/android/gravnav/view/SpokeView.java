@@ -2,30 +2,13 @@ package fi.wegar.android.gravnav.view;
 
 import android.content.Context;
 import android.graphics.Canvas;
-import android.graphics.Paint;
 import android.util.AttributeSet;
 import android.view.View;
 
 public class SpokeView extends View {
 
 	
-	private Paint color;
-	
-	/**
-	 * The number of spokes to draw in the view
-	 */
-	private int mNumSpokes = 5;
-	
-	/**
-	 * The angle in radians by which the entire canvas should be rotated before calculating the direction of the first spoke. 
-	 */
-	private double mShiftRadians = 0;
-	
-	/**
-	 * The number of the first spoke to be draw on screen. Zero-based, going clockwise.
-	 * 
-	 */
-	private int mDrawFromSpoke = 0;
+	private SpokeRenderer mSpokes;
 	
 	
 	/**
@@ -53,9 +36,7 @@ public class SpokeView extends View {
 	
 	private final void initView() {
 		
-		color = new Paint();
-		color.setStrokeWidth(5);
-		setColor(0xffffffff);
+		mSpokes = new SpokeRenderer();
 		
 	}
 	
@@ -65,20 +46,20 @@ public class SpokeView extends View {
 	 * @param c The color value in ARGB
 	 */
 	public void setColor(int c) {
-		color.setColor(c);
+		mSpokes.setColor(c);
 		
 		invalidate();
 	}
 	
 	public int getColor() {
-		return color.getColor();
+		return mSpokes.getColor();
 	}
 
 	/**
 	 * @param mShiftRadians the mShiftRadians to set
 	 */
 	public void setShiftRadians(double mShiftRadians) {
-		this.mShiftRadians = mShiftRadians;
+		mSpokes.setShiftRadians(mShiftRadians);
 		
 		invalidate();
 	}
@@ -87,14 +68,14 @@ public class SpokeView extends View {
 	 * @return the mShiftRadians
 	 */
 	public double getShiftRadians() {
-		return mShiftRadians;
+		return mSpokes.getShiftRadians();
 	}	
 	
 	/**
 	 * @param mNumSpokes the mNumSpokes to set
 	 */
 	public void setNumSpokes(int numSpokes) {
-		this.mNumSpokes = numSpokes;
+		mSpokes.setNumSpokes(numSpokes);
 		
 		invalidate();
 	}
@@ -103,14 +84,15 @@ public class SpokeView extends View {
 	 * @return the mNumSpokes
 	 */
 	public int getNumSpokes() {
-		return mNumSpokes;
+		return mSpokes.getNumSpokes();
 	}	
 	
 	/**
 	 * @param mDrawFromSpoke the mDrawFromSpoke to set
 	 */
 	public void setDrawFromSpoke(int spokeNr) {
-		this.mDrawFromSpoke = spokeNr;
+		mSpokes.setDrawFromSpoke(spokeNr);
+		
 		invalidate();
 	}
 
@@ -118,7 +100,7 @@ public class SpokeView extends View {
 	 * @return the mDrawFromSpoke
 	 */
 	public int getDrawFromSpoke() {
-		return mDrawFromSpoke;
+		return mSpokes.getDrawFromSpoke();
 	}	
 	
 	/**
@@ -130,40 +112,22 @@ public class SpokeView extends View {
 		super.onMeasure(widthMeasureSpec, heightMeasureSpec);
 	}
 	
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		
+		mSpokes.setSize(w, h);
+	}
+	
 	/**
-	 * Render the arrow
+	 * Render the spokes
 	 */
 	@Override
 	protected void onDraw(Canvas canvas) {
 		super.onDraw(canvas);
 		
-		// calculate the vector length
-		double centerX = getWidth() / 2;
-		double centerY = getHeight() / 2;
-		
-		double spokeLength = 0;
-		if( centerX > centerY) {
-			// running in landscape mode, so Y edge will be closer
-			spokeLength = centerY * 0.5;
-		} else {
-			// running in portrait mode, so X edge will be closer
-			spokeLength = centerX * 0.5;
-		}
-		
-		double stepSize = 360 / getNumSpokes();
-		
-		// loop for nr of spokes and draw
-		for(int i=getDrawFromSpoke(); i < getNumSpokes(); i++ ) {
-			
-			// calculate angle of next vector
-			double radians = Math.toRadians( stepSize * i );
-			
-			double arrowX = spokeLength * Math.cos( radians+getShiftRadians() );
-			double arrowY = spokeLength * Math.sin( radians+getShiftRadians() );
-			
-			canvas.drawLine( (float)centerX, (float)centerY, (float) (centerX + arrowX), (float) (centerY + arrowY), color);
-		}
+		mSpokes.draw(canvas);
 	}
 
 	
-}
\ No newline at end of file
+}